@@ -0,0 +1,89 @@
+package com.simplaex.metrics.benchmarks;
+
+import com.simplaex.metrics.AbstractMetricSender;
+import com.simplaex.metrics.DogstatsdMetricBuilder;
+import com.simplaex.metrics.Metric;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the cost of turning a call to <code>emit</code> into an encoded line, without any I/O.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class AbstractMetricSenderBenchmark {
+
+  static final class DiscardingSender extends AbstractMetricSender<BenchmarkMetric> {
+
+    long bytes = 0;
+
+    DiscardingSender(final Options options) {
+      super(new DogstatsdMetricBuilder(), options);
+    }
+
+    @Override
+    protected void send(final String metric) {
+      bytes += metric.length();
+    }
+
+    @Override
+    protected void send(final ByteBuffer metric) {
+      bytes += metric.remaining();
+    }
+  }
+
+  @Param({"false", "true"})
+  public boolean aggregating;
+
+  private DiscardingSender sender;
+
+  private Metric<BenchmarkMetric> tagged;
+
+  @Setup
+  public void setup() {
+    sender = new DiscardingSender(AbstractMetricSender.options().aggregating(aggregating).build());
+    tagged = BenchmarkMetric.REQUESTS.withTag("endpoint", "/api/v1/users").withTag("status", 200);
+  }
+
+  @Benchmark
+  public long emit() {
+    sender.emit(BenchmarkMetric.REQUESTS);
+    return sender.bytes;
+  }
+
+  @Benchmark
+  public long emitWithTags() {
+    sender.emit(tagged);
+    return sender.bytes;
+  }
+
+  @Benchmark
+  public long emitWithNewTags() {
+    sender.emit(BenchmarkMetric.REQUESTS.withTag("endpoint", "/api/v1/users").withTag("status", 200));
+    return sender.bytes;
+  }
+
+  @Benchmark
+  public long emitSampled() {
+    sender.emit(BenchmarkMetric.SAMPLED_REQUESTS);
+    return sender.bytes;
+  }
+
+  @Benchmark
+  public long time() {
+    return sender.time(BenchmarkMetric.LATENCY, () -> sender.bytes);
+  }
+}
@@ -0,0 +1,94 @@
+package com.simplaex.metrics.benchmarks;
+
+import com.simplaex.metrics.BatchedUdpSender;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures handing lines to the sender from 1, 8 and 64 producer threads. The datagrams go to a
+ * local port nobody listens on. Lines dropped because the sender's thread could not keep up are
+ * reported as the secondary result <code>dropped</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class BatchedUdpSenderBenchmark {
+
+  private static final byte[] LINE = "requests:1|c|#endpoint:/api/v1/users,status:200\n".getBytes(StandardCharsets.UTF_8);
+
+  /**
+   * The lines dropped during an iteration. Counters of all threads are summed up, so the first
+   * thread to tear down an iteration takes the drops of all of them.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Drops {
+
+    public long dropped;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      dropped = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void collect(final BatchedUdpSenderBenchmark benchmark) {
+      dropped = benchmark.takeDropped();
+    }
+  }
+
+  private BatchedUdpSender sender;
+
+  private long reported;
+
+  @Setup
+  public void setup() {
+    sender = new BatchedUdpSender("127.0.0.1", 9);
+    reported = 0;
+  }
+
+  @TearDown
+  public void tearDown() {
+    sender.close();
+  }
+
+  synchronized long takeDropped() {
+    final long total = sender.getDroppedCount();
+    final long dropped = total - reported;
+    reported = total;
+    return dropped;
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void send1(final Drops drops) {
+    sender.send(LINE);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public void send8(final Drops drops) {
+    sender.send(LINE);
+  }
+
+  @Benchmark
+  @Threads(64)
+  public void send64(final Drops drops) {
+    sender.send(LINE);
+  }
+}
@@ -0,0 +1,37 @@
+package com.simplaex.metrics.benchmarks;
+
+import com.simplaex.metrics.Metric;
+
+import javax.annotation.Nonnull;
+
+enum BenchmarkMetric implements Metric<BenchmarkMetric> {
+  REQUESTS("requests", Kind.COUNTER, 1.0),
+  SAMPLED_REQUESTS("sampled.requests", Kind.COUNTER, 0.1),
+  QUEUE_SIZE("queue.size", Kind.GAUGE, 1.0),
+  LATENCY("latency", Kind.TIMING, 1.0);
+
+  private final String name;
+  private final Kind kind;
+  private final double sampleRate;
+
+  BenchmarkMetric(@Nonnull final String name, @Nonnull final Kind kind, final double sampleRate) {
+    this.name = name;
+    this.kind = kind;
+    this.sampleRate = sampleRate;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public Kind getKind() {
+    return kind;
+  }
+
+  @Override
+  public double getSampleRate() {
+    return sampleRate;
+  }
+}
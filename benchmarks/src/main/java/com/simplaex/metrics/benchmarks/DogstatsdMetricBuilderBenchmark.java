@@ -0,0 +1,59 @@
+package com.simplaex.metrics.benchmarks;
+
+import com.simplaex.metrics.DogstatsdMetricBuilder;
+import com.simplaex.metrics.Metric;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class DogstatsdMetricBuilderBenchmark {
+
+  private final DogstatsdMetricBuilder builder = new DogstatsdMetricBuilder();
+
+  private final Collection<Metric.Tag> noTags = Collections.emptyList();
+
+  private final Collection<Metric.Tag> tags = Arrays.asList(
+    Metric.tag("endpoint", "/api/v1/users"),
+    Metric.tag("status", 200),
+    Metric.tag("region", "eu-central-1")
+  );
+
+  private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+  @Benchmark
+  public String build() {
+    return builder.build("requests", Metric.Kind.COUNTER, 1.0, 1.0, noTags);
+  }
+
+  @Benchmark
+  public String buildWithTags() {
+    return builder.build("requests", Metric.Kind.COUNTER, 1.0, 1.0, tags);
+  }
+
+  @Benchmark
+  public String buildSampledTiming() {
+    return builder.build("latency", Metric.Kind.TIMING, 0.25, 12.345, tags);
+  }
+
+  @Benchmark
+  public ByteBuffer encodeWithTags() {
+    buffer.clear();
+    builder.encode(buffer, "requests", Metric.Kind.COUNTER, 1.0, 1.0, tags);
+    return buffer;
+  }
+}
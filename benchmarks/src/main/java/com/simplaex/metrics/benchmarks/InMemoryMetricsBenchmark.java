@@ -0,0 +1,49 @@
+package com.simplaex.metrics.benchmarks;
+
+import com.simplaex.metrics.InMemoryMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class InMemoryMetricsBenchmark {
+
+  private final InMemoryMetrics<BenchmarkMetric> metrics = new InMemoryMetrics<>();
+
+  @Benchmark
+  public void counter() {
+    metrics.emit(BenchmarkMetric.REQUESTS);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public void counter8() {
+    metrics.emit(BenchmarkMetric.REQUESTS);
+  }
+
+  @Benchmark
+  public void gauge() {
+    metrics.emit(BenchmarkMetric.QUEUE_SIZE, 42);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public void gauge8() {
+    metrics.emit(BenchmarkMetric.QUEUE_SIZE, 42);
+  }
+
+  @Benchmark
+  public Object time() {
+    return metrics.time(BenchmarkMetric.LATENCY, () -> metrics);
+  }
+}
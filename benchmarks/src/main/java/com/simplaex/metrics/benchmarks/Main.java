@@ -0,0 +1,25 @@
+package com.simplaex.metrics.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line (all by default, same arguments as the JMH main
+ * class) with the GC profiler enabled, so that every result comes with allocations per operation.
+ */
+public final class Main {
+
+  private Main() {
+  }
+
+  public static void main(final String[] args) throws Exception {
+    final CommandLineOptions commandLine = new CommandLineOptions(args);
+    new Runner(new OptionsBuilder()
+      .parent(commandLine)
+      .addProfiler(GCProfiler.class)
+      .build()
+    ).run();
+  }
+}
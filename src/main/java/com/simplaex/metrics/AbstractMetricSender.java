@@ -1,28 +1,323 @@
 package com.simplaex.metrics;
 
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Singular;
+import lombok.Value;
+
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+import java.util.function.ToDoubleFunction;
 
 public abstract class AbstractMetricSender<M extends Metric<M>> implements MetricsSender<M> {
 
+  /**
+   * Options which affect how metrics are processed before they are handed to {@link #send(String)}.
+   * <p>
+   * <code>aggregating</code> enables client-side aggregation: instead of sending one line per call to
+   * {@link #emit(Metric, double)} values are aggregated per series and only sent on {@link #flush()}.
+   * Timings are then recorded in a {@link QuantileSketch} with the given <code>timingAccuracy</code>
+   * and sent as the given <code>percentiles</code> (e.g. <code>0.95</code> as <code>.p95</code>) plus
+   * <code>.count</code>, <code>.sum</code>, <code>.min</code> and <code>.max</code>.
+   * Distributions are sent as multi-value lines of the samples (at most <code>distributionSamples</code>
+   * per series and flush, see {@link Aggregator}). {@link Metric.Kind#SET Sets} are aggregated
+   * regardless of this option.
+   * <p>
+   * <code>maxLinesPerSecond</code> enables adaptive sampling (when not aggregating): series which
+   * are emitted more often than that get their sample rate lowered accordingly, the effective rate is
+   * sent along so that counts are scaled back up by the agent. Rates are adjusted on {@link #flush()}.
+   * <p>
+   * <code>eventWindow</code> enables coalescing of events: per title, level and tags only
+   * <code>eventsPerWindow</code> events are sent per window, the others are summarised in one event
+   * with an <code>occurrences</code> tag on the first {@link #flush()} after the window.
+   * <p>
+   * <code>maxSeriesPerMetric</code> bounds the number of tag combinations per metric name, further
+   * combinations are folded into one with all tag values set to <code>other</code>, see
+   * {@link #getCappedMetrics()}.
+   * <p>
+   * <code>constantTags</code> are added to every line and event, e.g. the ones from
+   * {@link KubernetesSupport#getConstantTags()}. They are encoded only once if the {@link MetricBuilder}
+   * supports it (see {@link MetricBuilder#withConstantTags(java.util.Collection)}).
+   * <p>
+   * <code>filter</code> drops, renames and re-tags metrics before anything else happens to them, see
+   * {@link MetricFilter}. It also applies to polled gauges.
+   */
+  @Value
+  @Builder
+  public static class Options {
+    final boolean aggregating;
+    @Builder.Default
+    final double[] percentiles = {0.5, 0.95, 0.99};
+    @Builder.Default
+    final double timingAccuracy = QuantileSketch.DEFAULT_RELATIVE_ACCURACY;
+    @Builder.Default
+    final int distributionSamples = DEFAULT_DISTRIBUTION_SAMPLES;
+    final double maxLinesPerSecond;
+    @Nullable
+    final Duration eventWindow;
+    @Builder.Default
+    final int eventsPerWindow = 1;
+    final int maxSeriesPerMetric;
+    @Singular
+    final List<Metric.Tag> constantTags;
+    @Nullable
+    final MetricFilter filter;
+  }
+
+  public static final int DEFAULT_DISTRIBUTION_SAMPLES = 1024;
+
+  /**
+   * Keeps multi-value lines within a single packet also with long values and tags.
+   */
+  static final int MAX_VALUES_PER_LINE = 64;
+
+  public static final Options DEFAULT_OPTIONS = options().build();
+
+  @Nonnull
+  public static Options.OptionsBuilder options() {
+    return Options.builder();
+  }
+
+  @Getter(AccessLevel.PACKAGE)
   private final MetricBuilder metricBuilder;
 
+  /**
+   * The <code>metricBuilder</code> if it is also a {@link MetricEncoder}, in which case lines are
+   * encoded into a per-thread buffer and handed to {@link #send(ByteBuffer)} instead.
+   */
+  @Nullable
+  private final MetricEncoder metricEncoder;
+
+  private final boolean aggregating;
+
+  /**
+   * Aggregates all metrics if <code>aggregating</code>, only sets otherwise.
+   */
+  private final Aggregator aggregator;
+
+  @Nullable
+  private final AdaptiveSampler sampler;
+
+  private final GaugeRegistry gauges = new GaugeRegistry();
+
+  @Nullable
+  private final EventCoalescer eventCoalescer;
+
+  @Nullable
+  private final CardinalityLimiter cardinalityLimiter;
+
+  @Nullable
+  private final MetricFilter filter;
+
+  private final Aggregator.Sink flushSink = new Aggregator.Sink() {
+    @Override
+    public void accept(@Nonnull final MetricKey key, final double value) {
+      send(key, 1.0, value);
+    }
+
+    @Override
+    public void accept(@Nonnull final MetricKey key, final double sampleRate, @Nonnull final double[] values, final int count) {
+      send(key, sampleRate, values, count);
+    }
+  };
+
   protected AbstractMetricSender(final MetricBuilder metricBuilder) {
-    this.metricBuilder = metricBuilder;
+    this(metricBuilder, null);
+  }
+
+  protected AbstractMetricSender(final MetricBuilder metricBuilder, @Nullable final Options options) {
+    this(metricBuilder, options, System::nanoTime);
+  }
+
+  /**
+   * @param clock The source of {@link System#nanoTime()}, which event windows are measured with.
+   */
+  AbstractMetricSender(final MetricBuilder metricBuilder, @Nullable final Options options, @Nonnull final LongSupplier clock) {
+    final Options opts = Optional.ofNullable(options).orElse(DEFAULT_OPTIONS);
+    this.metricBuilder = opts.getConstantTags().isEmpty()
+      ? metricBuilder : metricBuilder.withConstantTags(opts.getConstantTags());
+    this.metricEncoder = this.metricBuilder instanceof MetricEncoder ? (MetricEncoder) this.metricBuilder : null;
+    this.aggregating = opts.isAggregating();
+    this.aggregator = new Aggregator(opts.getPercentiles(), opts.getTimingAccuracy(), opts.getDistributionSamples());
+    this.sampler = !opts.isAggregating() && opts.getMaxLinesPerSecond() > 0
+      ? new AdaptiveSampler(opts.getMaxLinesPerSecond()) : null;
+    this.eventCoalescer = opts.getEventWindow() == null
+      ? null : new EventCoalescer(opts.getEventWindow(), opts.getEventsPerWindow(), clock);
+    this.cardinalityLimiter = opts.getMaxSeriesPerMetric() > 0
+      ? new CardinalityLimiter(opts.getMaxSeriesPerMetric()) : null;
+    this.filter = opts.getFilter();
   }
 
   abstract protected void send(final String metric);
 
+  /**
+   * Sends a line which has been encoded by the {@link MetricEncoder}. The buffer is only valid for
+   * the duration of the call. Subclasses should override this to avoid decoding the line back into
+   * a <code>String</code>.
+   */
+  protected void send(@Nonnull final ByteBuffer metric) {
+    send(StandardCharsets.UTF_8.decode(metric).toString());
+  }
+
+  /**
+   * Sends an encoded line of the given series, see {@link #send(ByteBuffer)}.
+   */
+  protected void send(@Nonnull final ByteBuffer metric, @Nonnull final MetricKey key) {
+    send(metric);
+  }
+
+  private void send(@Nonnull final MetricKey key, final double sampleRate, final double value) {
+    if (metricEncoder == null) {
+      send(metricBuilder.build(key.getName(), key.getKind(), sampleRate, value, key.getTags()));
+      return;
+    }
+    ByteBuffer buffer = ScratchBuffer.get();
+    while (true) {
+      try {
+        metricEncoder.encode(buffer, key, sampleRate, value);
+        break;
+      } catch (final BufferOverflowException exc) {
+        buffer = ScratchBuffer.grow(buffer);
+      }
+    }
+    buffer.flip();
+    send(buffer, key);
+  }
+
+  private void send(@Nonnull final MetricKey key, final double sampleRate, @Nonnull final double[] values, final int count) {
+    for (int from = 0; from < count; from += MAX_VALUES_PER_LINE) {
+      final int to = Math.min(count, from + MAX_VALUES_PER_LINE);
+      if (metricEncoder == null) {
+        for (int i = from; i < to; i += 1) {
+          send(metricBuilder.build(key.getName(), key.getKind(), sampleRate, values[i], key.getTags()));
+        }
+        continue;
+      }
+      ByteBuffer buffer = ScratchBuffer.get();
+      while (true) {
+        try {
+          metricEncoder.encode(buffer, key, sampleRate, values, from, to);
+          break;
+        } catch (final BufferOverflowException exc) {
+          buffer = ScratchBuffer.grow(buffer);
+        }
+      }
+      buffer.flip();
+      send(buffer, key);
+    }
+  }
+
   @Override
   public void emit(@Nonnull final Metric<M> metric, final double value) {
+    final MetricKey key = keyOf(metric);
+    if (key == null) {
+      return;
+    }
+    if (aggregating || metric.getKind() == Metric.Kind.SET) {
+      aggregator.record(key, value);
+      return;
+    }
+    if (sampler != null) {
+      final double sampleRate = sampler.sampleRate(key, metric.getSampleRate());
+      if (sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < sampleRate) {
+        send(key, sampleRate, value);
+      }
+      return;
+    }
     final double sampleRate = metric.getSampleRate();
-    if (sampleRate >= 1.0 || sampleRate < 1.0 && Math.random() < sampleRate) {
-      final String line = metricBuilder.build(metric.getName(), metric.getKind(), metric.getSampleRate(), value, metric.getTags());
-      send(line);
+    if (sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < sampleRate) {
+      send(key, sampleRate, value);
     }
   }
 
+  /**
+   * The key to emit the metric as, after filtering and limiting; null if the metric is dropped.
+   */
+  @Nullable
+  private MetricKey keyOf(@Nonnull final Metric<M> metric) {
+    final MetricKey key = filter == null ? MetricKey.of(metric) : filter.apply(metric);
+    return key == null || cardinalityLimiter == null ? key : cardinalityLimiter.limit(key);
+  }
+
+  @Nonnull
+  @Override
+  public Map<String, Long> getCappedMetrics() {
+    return cardinalityLimiter == null ? Collections.emptyMap() : cardinalityLimiter.getCapped();
+  }
+
   @Override
   public void emit(@Nonnull final Event event) {
-    send(metricBuilder.build(event));
+    if (eventCoalescer == null || eventCoalescer.admit(event)) {
+      send(event);
+    }
+  }
+
+  private void send(@Nonnull final Event event) {
+    if (metricEncoder == null) {
+      send(metricBuilder.build(event));
+      return;
+    }
+    ByteBuffer buffer = ScratchBuffer.get();
+    while (true) {
+      try {
+        metricEncoder.encode(buffer, event);
+        break;
+      } catch (final BufferOverflowException exc) {
+        buffer = ScratchBuffer.grow(buffer);
+      }
+    }
+    buffer.flip();
+    send(buffer);
+  }
+
+  /**
+   * Polled gauges are sampled on {@link #flush()}, i.e. only by subclasses which flush regularly.
+   */
+  @Override
+  public <T> void registerGauge(
+    @Nonnull final Metric<M> metric,
+    @Nonnull final T target,
+    @Nonnull final ToDoubleFunction<? super T> valueFunction
+  ) {
+    final MetricKey key = filter == null ? MetricKey.of(metric) : filter.apply(metric);
+    if (key != null) {
+      gauges.register(key, target, valueFunction);
+    }
+  }
+
+  @Override
+  public void unregisterGauge(@Nonnull final Metric<M> metric) {
+    final MetricKey key = filter == null ? MetricKey.of(metric) : filter.apply(metric);
+    if (key != null) {
+      gauges.unregister(key);
+    }
+  }
+
+  /**
+   * Samples polled gauges, sends everything that has been aggregated since the last flush and
+   * adjusts adaptive sample rates. Subclasses call this once per flush interval from a single thread.
+   */
+  protected void flush() {
+    if (!gauges.isEmpty()) {
+      gauges.sample((key, value) -> send(key, 1.0, value));
+    }
+    if (sampler != null) {
+      sampler.update();
+    }
+    if (eventCoalescer != null) {
+      eventCoalescer.flush(this::send);
+    }
+    aggregator.flush(flushSink);
   }
 }
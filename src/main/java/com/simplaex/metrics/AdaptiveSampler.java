@@ -0,0 +1,106 @@
+package com.simplaex.metrics;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lowers the sample rate of series which are emitted more often than a given number of lines per
+ * second.
+ * <p>
+ * Every series counts how often it is emitted. On every {@link #update()} (once per flush interval)
+ * the observed rate is folded into an estimate which follows spikes immediately and decays slowly,
+ * and the sample rate for the next interval is set so that the estimate times the sample rate
+ * stays within the budget, but never below {@link #MIN_RATE}. Deciding on a line is a map lookup and
+ * an adder increment.
+ */
+class AdaptiveSampler {
+
+  static final int MAX_IDLE_UPDATES = 10;
+
+  /**
+   * Smaller rates would not be encoded in plain decimal notation.
+   */
+  static final double MIN_RATE = 0.001;
+
+  /**
+   * Weight of the newest observation when the emit rate is going down.
+   */
+  private static final double DECAY = 0.3;
+
+  private static final class State {
+
+    final LongAdder emitted = new LongAdder();
+
+    volatile double rate = 1.0;
+
+    double linesPerSecond = 0.0;
+
+    int idleUpdates = 0;
+  }
+
+  private final double maxLinesPerSecond;
+
+  private final Map<MetricKey, State> states = new ConcurrentHashMap<>();
+
+  private long lastUpdate = System.nanoTime();
+
+  AdaptiveSampler(@Nonnegative final double maxLinesPerSecond) {
+    if (!(maxLinesPerSecond > 0)) {
+      throw new IllegalArgumentException("maxLinesPerSecond must be positive");
+    }
+    this.maxLinesPerSecond = maxLinesPerSecond;
+  }
+
+  /**
+   * Counts one emitted line for the given series and returns the sample rate to apply to it.
+   */
+  double sampleRate(@Nonnull final MetricKey key, final double staticRate) {
+    State state = states.get(key);
+    if (state == null) {
+      state = states.computeIfAbsent(key, k -> new State());
+    }
+    state.emitted.increment();
+    return Math.min(staticRate, state.rate);
+  }
+
+  void update() {
+    update(System.nanoTime());
+  }
+
+  /**
+   * Recomputes the sample rates. Must only be called from a single thread at a time.
+   */
+  void update(final long nanoTime) {
+    final double seconds = (nanoTime - lastUpdate) / (double) TimeUnit.SECONDS.toNanos(1);
+    if (seconds <= 0) {
+      return;
+    }
+    lastUpdate = nanoTime;
+    states.forEach((key, state) -> {
+      final long emitted = state.emitted.sumThenReset();
+      if (emitted == 0) {
+        state.idleUpdates += 1;
+        if (state.idleUpdates >= MAX_IDLE_UPDATES) {
+          states.remove(key, state);
+        }
+      } else {
+        state.idleUpdates = 0;
+      }
+      final double observed = emitted / seconds;
+      state.linesPerSecond = observed >= state.linesPerSecond
+        ? observed
+        : DECAY * observed + (1 - DECAY) * state.linesPerSecond;
+      state.rate = state.linesPerSecond <= maxLinesPerSecond
+        ? 1.0
+        : Math.max(MIN_RATE, maxLinesPerSecond / state.linesPerSecond);
+    });
+  }
+
+  int size() {
+    return states.size();
+  }
+}
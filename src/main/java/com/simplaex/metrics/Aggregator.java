@@ -0,0 +1,370 @@
+package com.simplaex.metrics;
+
+import javax.annotation.Nonnull;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps per-flush-interval state for every series ({@link MetricKey}) so that
+ * only one line per series needs to be sent per flush.
+ * <p>
+ * Counters are summed, gauges keep their last value and timings are recorded in a
+ * {@link QuantileSketch} and summarised as <code>.count</code>, <code>.sum</code>,
+ * <code>.min</code>, <code>.max</code> and the configured percentiles (e.g. <code>.p99</code>).
+ * Sets are counted in a {@link HyperLogLog} and sent as a gauge of the number of distinct values.
+ * Distributions keep up to <code>distributionSamples</code> samples per flush (a uniform sample of
+ * them if there are more), which are sent as they are along with the rate they were sampled at.
+ * Series which did not receive a value for {@link #MAX_IDLE_FLUSHES} consecutive flushes
+ * are evicted. A value which is recorded into a series while it is being evicted is not lost, the
+ * series is flushed once more with the next flush.
+ */
+class Aggregator {
+
+  static final int MAX_IDLE_FLUSHES = 10;
+
+  @FunctionalInterface
+  interface Sink {
+    void accept(@Nonnull MetricKey key, double value);
+
+    /**
+     * Accepts the first <code>count</code> samples of a distribution. The array is only valid for
+     * the duration of the call.
+     */
+    default void accept(@Nonnull final MetricKey key, final double sampleRate, @Nonnull final double[] values, final int count) {
+      for (int i = 0; i < count; i += 1) {
+        accept(key, values[i]);
+      }
+    }
+  }
+
+  private abstract static class Series {
+
+    final MetricKey key;
+
+    volatile boolean dirty = false;
+
+    volatile boolean evicted = false;
+
+    int idleFlushes = 0;
+
+    Series(@Nonnull final MetricKey key) {
+      this.key = key;
+    }
+
+    final void touch() {
+      if (!dirty) {
+        dirty = true;
+      }
+    }
+
+    abstract void record(double value);
+
+    abstract void flush(@Nonnull Sink sink);
+  }
+
+  /**
+   * Whole increments are summed exactly in a {@link LongAdder}, so that subtracting what has been
+   * flushed leaves nothing behind; other increments are summed under the series' monitor.
+   */
+  private static final class CounterSeries extends Series {
+
+    /**
+     * Whole numbers below this are exact as a double.
+     */
+    private static final double WHOLE_LIMIT = 0x1p53;
+
+    private final LongAdder whole = new LongAdder();
+
+    /**
+     * Guarded by the series' monitor.
+     */
+    private double fractional = 0.0;
+
+    CounterSeries(@Nonnull final MetricKey key) {
+      super(key);
+    }
+
+    @Override
+    void record(final double value) {
+      if (Math.abs(value) < WHOLE_LIMIT && value == Math.rint(value)) {
+        whole.add((long) value);
+      } else {
+        synchronized (this) {
+          fractional += value;
+        }
+      }
+      touch();
+    }
+
+    @Override
+    void flush(@Nonnull final Sink sink) {
+      // sumThenReset() would lose what is added between reading and resetting a cell
+      final long wholeValue = whole.sum();
+      whole.add(-wholeValue);
+      final double rest;
+      synchronized (this) {
+        rest = fractional;
+        fractional = 0.0;
+      }
+      sink.accept(key, wholeValue + rest);
+    }
+  }
+
+  private static final class GaugeSeries extends Series {
+
+    private volatile double last;
+
+    GaugeSeries(@Nonnull final MetricKey key) {
+      super(key);
+    }
+
+    @Override
+    void record(final double value) {
+      last = value;
+      touch();
+    }
+
+    @Override
+    void flush(@Nonnull final Sink sink) {
+      sink.accept(key, last);
+    }
+  }
+
+  private static final class TimingSeries extends Series {
+
+    private final MetricKey countKey;
+    private final MetricKey sumKey;
+    private final MetricKey minKey;
+    private final MetricKey maxKey;
+    private final double[] percentiles;
+    private final MetricKey[] percentileKeys;
+
+    private final QuantileSketch sketch;
+    private final QuantileSketch.Snapshot snapshot = new QuantileSketch.Snapshot();
+
+    TimingSeries(
+      @Nonnull final MetricKey key,
+      @Nonnull final double[] percentiles,
+      @Nonnull final String[] percentileSuffixes,
+      final double accuracy
+    ) {
+      super(key);
+      this.countKey = key.derive(".count", Metric.Kind.COUNTER);
+      this.sumKey = key.derive(".sum", Metric.Kind.GAUGE);
+      this.minKey = key.derive(".min", Metric.Kind.GAUGE);
+      this.maxKey = key.derive(".max", Metric.Kind.GAUGE);
+      this.percentiles = percentiles;
+      this.percentileKeys = new MetricKey[percentiles.length];
+      for (int i = 0; i < percentiles.length; i += 1) {
+        percentileKeys[i] = key.derive(percentileSuffixes[i], Metric.Kind.GAUGE);
+      }
+      this.sketch = new QuantileSketch(accuracy);
+    }
+
+    @Override
+    void record(final double value) {
+      sketch.record(value);
+      touch();
+    }
+
+    @Override
+    void flush(@Nonnull final Sink sink) {
+      sketch.snapshot(snapshot);
+      if (snapshot.getCount() == 0) {
+        return;
+      }
+      sink.accept(countKey, snapshot.getCount());
+      sink.accept(sumKey, snapshot.getSum());
+      sink.accept(minKey, snapshot.getMin());
+      sink.accept(maxKey, snapshot.getMax());
+      for (int i = 0; i < percentiles.length; i += 1) {
+        sink.accept(percentileKeys[i], snapshot.quantile(percentiles[i]));
+      }
+    }
+  }
+
+  private static final class SetSeries extends Series {
+
+    private final MetricKey cardinalityKey;
+
+    private final HyperLogLog members = new HyperLogLog();
+
+    SetSeries(@Nonnull final MetricKey key) {
+      super(key);
+      this.cardinalityKey = key.derive("", Metric.Kind.GAUGE);
+    }
+
+    @Override
+    void record(final double value) {
+      members.add(value);
+      touch();
+    }
+
+    @Override
+    void flush(@Nonnull final Sink sink) {
+      sink.accept(cardinalityKey, members.estimateAndReset());
+    }
+  }
+
+  /**
+   * Samples are collected under the series' lock, which is only held for an array store.
+   */
+  private static final class DistributionSeries extends Series {
+
+    private double[] values;
+    private double[] flushing;
+    private long seen = 0;
+
+    DistributionSeries(@Nonnull final MetricKey key, final int samples) {
+      super(key);
+      this.values = new double[samples];
+      this.flushing = new double[samples];
+    }
+
+    @Override
+    void record(final double value) {
+      synchronized (this) {
+        if (seen < values.length) {
+          values[(int) seen] = value;
+        } else {
+          // reservoir sampling, so that the kept samples are a uniform sample of all of them
+          final long index = ThreadLocalRandom.current().nextLong(seen + 1);
+          if (index < values.length) {
+            values[(int) index] = value;
+          }
+        }
+        seen += 1;
+      }
+      touch();
+    }
+
+    @Override
+    void flush(@Nonnull final Sink sink) {
+      final double[] samples;
+      final long count;
+      synchronized (this) {
+        samples = values;
+        count = seen;
+        values = flushing;
+        flushing = samples;
+        seen = 0;
+      }
+      final int kept = (int) Math.min(count, samples.length);
+      if (kept > 0) {
+        sink.accept(key, count > kept ? (double) kept / count : 1.0, samples, kept);
+      }
+    }
+  }
+
+  private final double[] percentiles;
+  private final String[] percentileSuffixes;
+  private final double timingAccuracy;
+  private final int distributionSamples;
+
+  private final Map<MetricKey, Series> series = new ConcurrentHashMap<>();
+
+  /**
+   * Evicted series which received a value after all, flushed once more with the next flush.
+   */
+  private final Queue<Series> evicted = new ConcurrentLinkedQueue<>();
+
+  Aggregator(@Nonnull final double[] percentiles, final double timingAccuracy, final int distributionSamples) {
+    this.percentiles = percentiles.clone();
+    this.percentileSuffixes = new String[percentiles.length];
+    for (int i = 0; i < percentiles.length; i += 1) {
+      if (!(percentiles[i] >= 0 && percentiles[i] <= 1)) {
+        throw new IllegalArgumentException("percentiles must be between 0 and 1");
+      }
+      percentileSuffixes[i] = percentileSuffix(percentiles[i]);
+    }
+    if (!(timingAccuracy > 0 && timingAccuracy < 1)) {
+      throw new IllegalArgumentException("timingAccuracy must be between 0 and 1 (exclusive)");
+    }
+    this.timingAccuracy = timingAccuracy;
+    if (distributionSamples < 1) {
+      throw new IllegalArgumentException("distributionSamples must be positive");
+    }
+    this.distributionSamples = distributionSamples;
+  }
+
+  /**
+   * <code>.p50</code> for 0.5, <code>.p999</code> for 0.999, <code>.p100</code> for 1.
+   */
+  @Nonnull
+  static String percentileSuffix(final double percentile) {
+    if (percentile >= 1) {
+      return ".p100";
+    }
+    final String digits = BigDecimal.valueOf(percentile).stripTrailingZeros().toPlainString();
+    final String fraction = digits.indexOf('.') < 0 ? "" : digits.substring(digits.indexOf('.') + 1);
+    return ".p" + (fraction.length() < 2 ? (fraction + "00").substring(0, 2) : fraction);
+  }
+
+  void record(@Nonnull final MetricKey key, final double value) {
+    Series s = series.get(key);
+    if (s == null) {
+      s = series.computeIfAbsent(key, this::newSeries);
+    }
+    s.record(value);
+    // pairs with flush(), which marks a series as evicted before checking whether it is dirty
+    if (s.evicted) {
+      evicted.add(s);
+    }
+  }
+
+  @Nonnull
+  private Series newSeries(@Nonnull final MetricKey key) {
+    switch (key.getKind()) {
+      case COUNTER:
+        return new CounterSeries(key);
+      case TIMING:
+        return new TimingSeries(key, percentiles, percentileSuffixes, timingAccuracy);
+      case SET:
+        return new SetSeries(key);
+      case DISTRIBUTION:
+        return new DistributionSeries(key, distributionSamples);
+      case GAUGE:
+      default:
+        return new GaugeSeries(key);
+    }
+  }
+
+  /**
+   * Emits one line per series that received values since the last flush. Must only be
+   * called from a single thread at a time (the flushing thread of the sender).
+   */
+  void flush(@Nonnull final Sink sink) {
+    for (Series s = evicted.poll(); s != null; s = evicted.poll()) {
+      flush(s, sink);
+    }
+    series.forEach((key, s) -> {
+      if (!s.dirty) {
+        s.idleFlushes += 1;
+        if (s.idleFlushes >= MAX_IDLE_FLUSHES) {
+          s.evicted = true;
+          series.remove(key, s);
+          flush(s, sink);
+        }
+        return;
+      }
+      s.idleFlushes = 0;
+      flush(s, sink);
+    });
+  }
+
+  private static void flush(@Nonnull final Series s, @Nonnull final Sink sink) {
+    if (s.dirty) {
+      s.dirty = false;
+      s.flush(sink);
+    }
+  }
+
+  int size() {
+    return series.size();
+  }
+}
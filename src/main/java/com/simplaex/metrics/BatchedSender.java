@@ -0,0 +1,860 @@
+package com.simplaex.metrics;
+
+import lombok.Builder;
+import lombok.Setter;
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends lines in batches (packets) from a background thread, which all senders share except for the
+ * shards of a {@link StatsdMetricSender}, which get one thread per shard (see {@link Reactor}).
+ * <p>
+ * Producers copy their lines into a bounded lock-free ring buffer (see <code>ringBufferSize</code> in
+ * {@link Options}), which is drained into packets by the sender's thread. If the ring buffer is full
+ * lines are dropped and counted (see {@link #getDroppedCount()}) instead of queueing up without bounds.
+ * <p>
+ * Lines are packed into packets of at most <code>maxPacketSize</code> bytes and are never split
+ * across packets. A packet is sent as soon as the next line would not fit anymore, when it holds
+ * more than <code>batchThreshold</code> bytes or on the next flush, whichever happens first. A single
+ * line which is larger than <code>maxPacketSize</code> is sent in a packet of its own.
+ * <p>
+ * Subclasses implement {@link #write(ByteBuffer)} for a specific transport and call {@link #start()}
+ * once they are fully initialized.
+ * <p>
+ * The sender keeps counters about itself, see {@link #getStats()}. If <code>telemetryInterval</code>
+ * is set they are also sent as metrics (prefixed with <code>telemetryPrefix</code>) on that interval,
+ * in the dogstatsd format or in the format of the {@link StatsdMetricSender} using this sender.
+ * <p>
+ * If a <code>spillFile</code> is set, lines which would be dropped because the ring buffer is full or
+ * because the transport can not deliver them (see {@link #undeliverable(ByteBuffer)}) are appended to
+ * that memory-mapped file instead, up to <code>spillFileSize</code> bytes. They are replayed on the
+ * flush interval at <code>spillReplayBytesPerSecond</code> once the transport delivers again, after
+ * the lines sent in the meantime; gauges replayed this way may arrive after newer values.
+ * <p>
+ * {@link #close()} flushes one last time, closes the transport and returns the sender's buffers to a
+ * pool. Senders which are still open when the JVM shuts down are closed by a shutdown hook. Until then
+ * a sender is referenced by its thread and the shutdown hook, so senders which are not used anymore
+ * must be closed, dropping the last reference to one does not release anything.
+ */
+@Log4j2
+public abstract class BatchedSender implements AutoCloseable {
+
+  public static class CreationException extends RuntimeException {
+    CreationException(final Throwable cause) {
+      super(cause);
+    }
+  }
+
+  public static final int DEFAULT_RING_BUFFER_SIZE = 1 << 20;
+
+  /**
+   * Fits into a single IP packet on an ethernet link with a 1500 byte MTU, also with some overhead
+   * from an overlay network.
+   */
+  public static final int DEFAULT_MAX_PACKET_SIZE = 1432;
+
+  public static final String DEFAULT_TELEMETRY_PREFIX = "metrics.client.";
+
+  private static final MetricBuilder TELEMETRY_BUILDER = new DogstatsdMetricBuilder();
+
+  public static final int DEFAULT_SPILL_FILE_SIZE = 64 << 20;
+
+  public static final int DEFAULT_SPILL_REPLAY_BYTES_PER_SECOND = 1 << 20;
+
+  /**
+   * How long {@link #close()} waits for the final flush.
+   */
+  public static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(5);
+
+  @Value
+  @Builder
+  public static class Options {
+    @Builder.Default
+    final Duration flushInterval = Duration.ofMillis(100);
+    @Builder.Default
+    final int batchThreshold = Integer.MAX_VALUE;
+    @Builder.Default
+    final int ringBufferSize = DEFAULT_RING_BUFFER_SIZE;
+    @Builder.Default
+    final int maxPacketSize = DEFAULT_MAX_PACKET_SIZE;
+    @Nullable
+    final Duration telemetryInterval;
+    @Builder.Default
+    final String telemetryPrefix = DEFAULT_TELEMETRY_PREFIX;
+    /**
+     * The number of senders (each with its own channel, ring buffer and thread) which a
+     * {@link StatsdMetricSender} spreads lines over.
+     */
+    @Builder.Default
+    final int shards = 1;
+    @Builder.Default
+    final Sharding sharding = Sharding.BY_SERIES;
+    /**
+     * How often senders which resolve their destination in the background re-resolve it.
+     */
+    @Builder.Default
+    final Duration resolveInterval = Duration.ofMinutes(1);
+    /**
+     * The shards of a {@link StatsdMetricSender} (see <code>shards</code>) each spill to a file of
+     * their own, the first one to this path and the others to it with <code>.1</code>, <code>.2</code>
+     * and so on appended.
+     */
+    @Nullable
+    final Path spillFile;
+    @Builder.Default
+    final int spillFileSize = DEFAULT_SPILL_FILE_SIZE;
+    @Builder.Default
+    final int spillReplayBytesPerSecond = DEFAULT_SPILL_REPLAY_BYTES_PER_SECOND;
+  }
+
+  /**
+   * How lines are spread over multiple senders.
+   */
+  public enum Sharding {
+    /**
+     * All lines of a series go through the same sender, so they arrive in the order they were sent.
+     */
+    BY_SERIES,
+    /**
+     * Each producer thread sends through one sender, so threads emitting the same hot series do not
+     * contend on one ring buffer. Gauges are still sharded by series as their order matters.
+     */
+    BY_THREAD
+  }
+
+  /**
+   * A snapshot of the counters of a sender. All counts are totals since the sender was created.
+   */
+  @Value
+  public static class Stats {
+    /**
+     * Lines accepted into the ring buffer.
+     */
+    long linesEnqueued;
+    /**
+     * Lines dropped because the ring buffer was full.
+     */
+    long linesDroppedOverflow;
+    /**
+     * Lines dropped because they could not possibly fit into a packet.
+     */
+    long linesDroppedOversize;
+    /**
+     * Lines dropped by the transport, e.g. while it is not connected.
+     */
+    long linesDroppedTransport;
+    long packetsWritten;
+    long bytesWritten;
+    /**
+     * Failed writes, not counting datagrams which were rejected because nobody is listening.
+     */
+    long writeErrors;
+    /**
+     * Datagrams rejected with a <code>PortUnreachableException</code>, i.e. nobody is listening.
+     */
+    long packetsUnreachable;
+    /**
+     * Records (one or more lines) appended to the spill file.
+     */
+    long linesSpilled;
+    /**
+     * Records replayed from the spill file.
+     */
+    long linesReplayed;
+    /**
+     * Bytes waiting in the ring buffer right now.
+     */
+    long queuedBytes;
+    /**
+     * Bytes waiting in the spill file right now.
+     */
+    long spilledBytes;
+    /**
+     * How long the last flush (including flush listeners) took.
+     */
+    @Nonnull
+    Duration lastFlushDuration;
+  }
+
+  public static Options DEFAULT_OPTIONS = options().build();
+
+  @Nonnull
+  public static Options.OptionsBuilder options() {
+    return Options.builder();
+  }
+
+  private final Options options;
+  private final ByteBuffer buffer;
+  private final ByteRingBuffer ring;
+  private final Reactor reactor;
+  private final ScheduledExecutorService loop;
+  private final List<Runnable> flushListeners = new CopyOnWriteArrayList<>();
+  private final List<Future<?>> scheduled = new CopyOnWriteArrayList<>();
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  /**
+   * Cleared at the end of the final flush, so that lines sent by flush listeners on the final flush
+   * are still sent.
+   */
+  private volatile boolean accepting = true;
+
+  private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+  private final Runnable drainTask = this::drain;
+  private final LongAdder enqueued = new LongAdder();
+  private final LongAdder droppedOverflow = new LongAdder();
+  private final LongAdder droppedOversize = new LongAdder();
+  private final LongAdder droppedTransport = new LongAdder();
+  private final LongAdder packetsWritten = new LongAdder();
+  private final LongAdder bytesWritten = new LongAdder();
+  private final LongAdder writeErrors = new LongAdder();
+  private final LongAdder unreachable = new LongAdder();
+  private final LongAdder spilled = new LongAdder();
+  private final LongAdder replayed = new LongAdder();
+  private volatile long lastFlushNanos = 0;
+  private volatile boolean dropReported = false;
+
+  @Nullable
+  private Stats lastReportedStats;
+
+  private volatile MetricBuilder telemetryBuilder = TELEMETRY_BUILDER;
+
+  private final int maxPacketSize;
+
+  @Nullable
+  private final SpillFile spill;
+
+  private final int replayBytesPerFlush;
+
+  /**
+   * Whether the packet being written has not been handed back. Only accessed from the sender's thread.
+   */
+  private boolean deliverable = true;
+
+  private boolean replaying = false;
+
+  /**
+   * Bytes at the start of the spill file which have been replayed but not confirmed yet: a datagram
+   * transport only learns that a packet was not delivered on the next write, so replayed lines are
+   * only removed from the spill file once the next write succeeded as well.
+   */
+  private int unconfirmed = 0;
+
+  /**
+   * A copy of the last packet written, which is not from the spill file, see {@link #previousLost()}.
+   */
+  @Nullable
+  private final ByteBuffer lastWritten;
+
+  @Setter
+  private volatile int batchThreshold;
+
+  /**
+   * @param maximumPacketSize The largest packet the transport can possibly send.
+   */
+  protected BatchedSender(@Nullable final Options options, @Nonnegative final int maximumPacketSize) {
+    this(options, maximumPacketSize, false);
+  }
+
+  /**
+   * @param maximumPacketSize The largest packet the transport can possibly send.
+   * @param blockingWrites    Whether {@link #write(ByteBuffer)} may block, in which case the sender gets
+   *                          a thread of its own instead of sharing one with all other senders.
+   */
+  protected BatchedSender(
+    @Nullable final Options options,
+    @Nonnegative final int maximumPacketSize,
+    final boolean blockingWrites
+  ) {
+    this(options, maximumPacketSize, blockingWrites, 0);
+  }
+
+  /**
+   * @param shard The shard of a {@link StatsdMetricSender} this sender is, senders of different shards
+   *              run on different threads.
+   */
+  BatchedSender(
+    @Nullable final Options options,
+    @Nonnegative final int maximumPacketSize,
+    final boolean blockingWrites,
+    final int shard
+  ) {
+    this.options = Optional.ofNullable(options).orElse(DEFAULT_OPTIONS);
+    this.maxPacketSize = Math.min(Math.max(this.options.getMaxPacketSize(), 1), maximumPacketSize);
+    this.ring = new ByteRingBuffer(this.options.getRingBufferSize());
+    this.spill = openSpillFile(this.options, shard);
+    this.lastWritten = spill == null ? null : ByteBuffer.allocate(maximumPacketSize);
+    this.replayBytesPerFlush = (int) Math.max(maxPacketSize,
+      Math.min(Integer.MAX_VALUE, (long) this.options.getSpillReplayBytesPerSecond() * this.options.getFlushInterval().toMillis() / 1000));
+    try {
+      this.reactor = blockingWrites ? Reactor.dedicated(this.getClass().getName()) : Reactor.acquireShared(shard);
+    } catch (final IOException exc) {
+      throw new CreationException(exc);
+    }
+    this.loop = reactor.loop();
+    this.buffer = DirectBufferPool.acquire(maximumPacketSize);
+    this.buffer.limit(maxPacketSize);
+    setBatchThreshold(this.options.getBatchThreshold());
+  }
+
+  @Nullable
+  private static SpillFile openSpillFile(@Nonnull final Options options, final int shard) {
+    final Path path = options.getSpillFile();
+    if (path == null) {
+      return null;
+    }
+    try {
+      // every spill file keeps its own read and write positions, so shards must not share one
+      return new SpillFile(shard == 0 ? path : path.resolveSibling(path.getFileName() + "." + shard), options.getSpillFileSize());
+    } catch (final IOException exc) {
+      throw new CreationException(exc);
+    }
+  }
+
+  /**
+   * Starts flushing on the configured interval. Must be called once by subclasses at the end of
+   * their constructor.
+   */
+  protected final void start() {
+    final long flushIntervalMs = options.getFlushInterval().toMillis();
+    scheduled.add(loop.scheduleAtFixedRate(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS));
+    final Duration telemetryInterval = options.getTelemetryInterval();
+    if (telemetryInterval != null) {
+      final long telemetryIntervalMs = telemetryInterval.toMillis();
+      scheduled.add(loop.scheduleAtFixedRate(this::reportStats, telemetryIntervalMs, telemetryIntervalMs, TimeUnit.MILLISECONDS));
+    }
+    Reactor.opened(this);
+  }
+
+  /**
+   * Gives back the thread and the buffer acquired by the constructor. Must be called by subclasses
+   * whose constructor fails before {@link #start()}.
+   */
+  protected final void abandon() {
+    if (closed.compareAndSet(false, true)) {
+      accepting = false;
+      reactor.release();
+      DirectBufferPool.release(buffer);
+    }
+  }
+
+  /**
+   * The reactor whose thread this sender runs on, for subclasses to register channels and to
+   * schedule blocking work.
+   */
+  @Nonnull
+  Reactor reactor() {
+    return reactor;
+  }
+
+  /**
+   * Flushes one last time, including flush listeners, and closes the transport. Lines sent afterwards
+   * are dropped. Waits at most {@link #CLOSE_TIMEOUT} for the final flush; calling this again does
+   * nothing.
+   */
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    Reactor.closed(this);
+    boolean finished = false;
+    if (reactor.inLoop()) {
+      finish();
+      finished = true;
+    } else {
+      try {
+        loop.submit(this::finish).get(CLOSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        finished = true;
+      } catch (final InterruptedException exc) {
+        Thread.currentThread().interrupt();
+      } catch (final ExecutionException | TimeoutException | RejectedExecutionException exc) {
+        log.warn("Could not flush {} on close", getClass().getName(), exc);
+      }
+    }
+    reactor.release();
+    if (finished) {
+      DirectBufferPool.release(buffer);
+    }
+  }
+
+  public boolean isClosed() {
+    return closed.get();
+  }
+
+  /**
+   * Flushes on the sender's thread right away and waits for it.
+   */
+  void flushNow() throws InterruptedException, ExecutionException {
+    loop.submit(this::flush).get();
+  }
+
+  private void finish() {
+    for (final Future<?> task : scheduled) {
+      task.cancel(false);
+    }
+    flush();
+    accepting = false;
+    drain();
+    sendBuffer();
+    try {
+      closeTransport();
+    } catch (final IOException exc) {
+      log.warn("Could not close {}", getClass().getName(), exc);
+    }
+  }
+
+  /**
+   * Closes the transport after the final flush. Only ever called from the sender's thread.
+   */
+  protected void closeTransport() throws IOException {
+  }
+
+  /**
+   * Whether the transport can write packets. While it is not, lines stay in the ring buffer (and
+   * are dropped once it is full). Only ever called from the sender's thread.
+   */
+  protected boolean isReady() {
+    return true;
+  }
+
+  /**
+   * Writes one packet to the transport. Only ever called from the sender's thread. The packet is
+   * discarded afterwards; if the transport did not take any of it or this method throws, what is left
+   * of it is spilled or counted as dropped, as if it had been handed back as
+   * {@link #undeliverable(ByteBuffer)}.
+   */
+  protected abstract void write(@Nonnull ByteBuffer packet) throws IOException;
+
+  /**
+   * The number of lines which have been dropped because the ring buffer was full or because they
+   * were too large to fit into a single packet.
+   */
+  public long getDroppedCount() {
+    return droppedOverflow.sum() + droppedOversize.sum() + droppedTransport.sum();
+  }
+
+  @Nonnull
+  public Stats getStats() {
+    return new Stats(
+      enqueued.sum(),
+      droppedOverflow.sum(),
+      droppedOversize.sum(),
+      droppedTransport.sum(),
+      packetsWritten.sum(),
+      bytesWritten.sum(),
+      writeErrors.sum(),
+      unreachable.sum(),
+      spilled.sum(),
+      replayed.sum(),
+      ring.size(),
+      spill == null ? 0 : spill.size(),
+      Duration.ofNanos(lastFlushNanos)
+    );
+  }
+
+  /**
+   * Counts lines which have been dropped by the transport.
+   */
+  protected void dropped(final long lines) {
+    droppedTransport.add(lines);
+  }
+
+  /**
+   * Hands back a packet which the transport could not deliver (or not take right now), so that it
+   * is spilled if there is a spill file and dropped otherwise. Only ever called from the sender's thread.
+   */
+  protected void undeliverable(@Nonnull final ByteBuffer packet) {
+    deliverable = false;
+    if (replaying) {
+      // it is still in the spill file
+      return;
+    }
+    final int lines = countLines(packet);
+    if (!spill(packet)) {
+      dropped(lines);
+    }
+  }
+
+  /**
+   * Whether the packets written so far have been delivered, as far as the transport can tell without
+   * writing. Called on the flush interval while there are packets which may have to be spilled or
+   * replayed again. Only ever called from the sender's thread.
+   */
+  protected boolean checkDelivered() throws IOException {
+    return true;
+  }
+
+  /**
+   * Tells that the previous packet has not been delivered after all, which a datagram transport
+   * only learns on the next write. Only ever called from the sender's thread.
+   */
+  protected void previousLost() {
+    if (lastWritten != null && lastWritten.position() > 0) {
+      lastWritten.flip();
+      final int lines = countLines(lastWritten);
+      if (!spill(lastWritten)) {
+        dropped(lines);
+      }
+      lastWritten.clear();
+    }
+  }
+
+  /**
+   * Counts a failed write which the transport handled itself instead of throwing.
+   */
+  protected void writeFailed() {
+    writeErrors.increment();
+  }
+
+  /**
+   * Counts a packet which was rejected because nobody is listening at the other end.
+   */
+  protected void unreachable() {
+    unreachable.increment();
+  }
+
+  /**
+   * The number of lines in the remaining bytes of a packet.
+   */
+  protected static int countLines(@Nonnull final ByteBuffer packet) {
+    int lines = 0;
+    for (int i = packet.position(); i < packet.limit(); i += 1) {
+      if (packet.get(i) == '\n') {
+        lines += 1;
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Sends the bytes from <code>from</code> (inclusive) to <code>to</code> (exclusive).
+   */
+  public void send(@Nonnull final byte[] bytes, @Nonnegative final int from, @Nonnegative final int to) {
+    final int length = to - from;
+    if (checkOpen() && checkLength(length)) {
+      final boolean queued = ring.offer(bytes, from, length);
+      enqueued(queued, queued || spill(ByteBuffer.wrap(bytes, from, length)));
+    }
+  }
+
+  public void send(@Nonnull final byte[] bytes) {
+    send(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Sends the remaining bytes of the given buffer. The bytes are copied, the buffer can be reused
+   * once this method returns.
+   */
+  public void send(@Nonnull final ByteBuffer bytes) {
+    if (checkOpen() && checkLength(bytes.remaining())) {
+      final boolean queued = ring.offer(bytes);
+      enqueued(queued, queued || spill(bytes));
+    }
+  }
+
+  public void send(@Nonnull final String string) {
+    send(string.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private boolean checkOpen() {
+    if (!accepting) {
+      droppedTransport.increment();
+      return false;
+    }
+    return true;
+  }
+
+  private boolean checkLength(final int length) {
+    if (length == 0) {
+      // nothing to send, and the ring buffer does not take empty records
+      return false;
+    }
+    if (length > buffer.capacity()) {
+      droppedOversize.increment();
+      log.error("Trying to send something which can not possibly fit into a single packet");
+      return false;
+    }
+    return true;
+  }
+
+  private boolean spill(@Nonnull final ByteBuffer lines) {
+    if (spill != null && spill.append(lines)) {
+      spilled.increment();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param queued   Whether the lines went into the ring buffer.
+   * @param accepted Whether the lines went into the ring buffer or the spill file.
+   */
+  private void enqueued(final boolean queued, final boolean accepted) {
+    if (queued) {
+      enqueued.increment();
+    } else if (!accepted) {
+      droppedOverflow.increment();
+      if (!dropReported) {
+        dropReported = true;
+        log.warn("New events are being produced too fast and could not be added to the buffer");
+      }
+    }
+    final long pending = ring.size();
+    if ((pending >= maxPacketSize || pending > batchThreshold) && drainScheduled.compareAndSet(false, true)) {
+      try {
+        loop.execute(drainTask);
+      } catch (final RejectedExecutionException exc) {
+        // closed in the meantime
+      }
+    }
+  }
+
+  /**
+   * Registers an action which is run on the sender's thread on every flush interval, right
+   * before the buffer is flushed. Anything sent from within the listener goes out with that flush.
+   */
+  public void addFlushListener(@Nonnull final Runnable listener) {
+    flushListeners.add(listener);
+  }
+
+  private void flush() {
+    final long start = System.nanoTime();
+    for (final Runnable listener : flushListeners) {
+      try {
+        listener.run();
+      } catch (final Exception exc) {
+        log.error("Flush listener failed", exc);
+      }
+    }
+    drain();
+    sendBuffer();
+    confirmDelivery();
+    replay();
+    dropReported = false;
+    lastFlushNanos = System.nanoTime() - start;
+  }
+
+  /**
+   * Sends the stats as metrics, counts as the difference to the last report.
+   */
+  private void reportStats() {
+    final Stats stats = getStats();
+    final Stats last = lastReportedStats == null
+      ? new Stats(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, Duration.ZERO)
+      : lastReportedStats;
+    lastReportedStats = stats;
+    final Telemetry lines = new Telemetry(telemetryBuilder, options.getTelemetryPrefix());
+    lines.add("lines.enqueued", Metric.Kind.COUNTER, stats.getLinesEnqueued() - last.getLinesEnqueued());
+    lines.add("lines.dropped.overflow", Metric.Kind.COUNTER, stats.getLinesDroppedOverflow() - last.getLinesDroppedOverflow());
+    lines.add("lines.dropped.oversize", Metric.Kind.COUNTER, stats.getLinesDroppedOversize() - last.getLinesDroppedOversize());
+    lines.add("lines.dropped.transport", Metric.Kind.COUNTER, stats.getLinesDroppedTransport() - last.getLinesDroppedTransport());
+    lines.add("packets.written", Metric.Kind.COUNTER, stats.getPacketsWritten() - last.getPacketsWritten());
+    lines.add("bytes.written", Metric.Kind.COUNTER, stats.getBytesWritten() - last.getBytesWritten());
+    lines.add("write.errors", Metric.Kind.COUNTER, stats.getWriteErrors() - last.getWriteErrors());
+    lines.add("packets.unreachable", Metric.Kind.COUNTER, stats.getPacketsUnreachable() - last.getPacketsUnreachable());
+    lines.add("queue.bytes", Metric.Kind.GAUGE, stats.getQueuedBytes());
+    if (spill != null) {
+      lines.add("lines.spilled", Metric.Kind.COUNTER, stats.getLinesSpilled() - last.getLinesSpilled());
+      lines.add("lines.replayed", Metric.Kind.COUNTER, stats.getLinesReplayed() - last.getLinesReplayed());
+      lines.add("spill.bytes", Metric.Kind.GAUGE, stats.getSpilledBytes());
+    }
+    lines.add("flush.duration", Metric.Kind.TIMING, stats.getLastFlushDuration().toNanos() / 1e6);
+    send(lines.toString());
+  }
+
+  /**
+   * Builds telemetry lines with the given builder instead of in the dogstatsd format, so that they
+   * can be sent along with the lines of a {@link StatsdMetricSender} using another format.
+   */
+  void formatTelemetry(@Nonnull final MetricBuilder metricBuilder) {
+    this.telemetryBuilder = metricBuilder;
+  }
+
+  private static final class Telemetry {
+
+    private final StringBuilder lines = new StringBuilder(512);
+    private final MetricBuilder metricBuilder;
+    private final String prefix;
+
+    Telemetry(@Nonnull final MetricBuilder metricBuilder, @Nonnull final String prefix) {
+      this.metricBuilder = metricBuilder;
+      this.prefix = prefix;
+    }
+
+    void add(@Nonnull final String name, @Nonnull final Metric.Kind kind, final double value) {
+      lines.append(metricBuilder.build(prefix + name, kind, 1.0, value, Collections.emptyList()));
+    }
+
+    @Override
+    public String toString() {
+      return lines.toString();
+    }
+  }
+
+  /**
+   * Moves lines from the ring buffer into the packet buffer, sending the packet buffer whenever
+   * the next line does not fit or it holds more than <code>batchThreshold</code> bytes.
+   */
+  private void drain() {
+    if (!isReady()) {
+      // leave drainScheduled set so that producers do not schedule drains until the next flush
+      return;
+    }
+    drainScheduled.set(false);
+    while (true) {
+      final int result = ring.poll(buffer);
+      if (result == 0) {
+        return;
+      }
+      if (result < 0) {
+        if (buffer.position() == 0) {
+          sendOversized();
+        } else {
+          sendBuffer();
+        }
+        continue;
+      }
+      if (buffer.position() > batchThreshold) {
+        sendBuffer();
+      }
+    }
+  }
+
+  private void sendOversized() {
+    buffer.limit(buffer.capacity());
+    ring.poll(buffer);
+    sendBuffer();
+  }
+
+  /**
+   * Removes replayed lines from the spill file or spills the last packet, depending on whether the
+   * transport reports that they have been delivered.
+   */
+  private void confirmDelivery() {
+    if (spill == null || unconfirmed == 0 && lastWritten.position() == 0) {
+      return;
+    }
+    boolean delivered;
+    try {
+      delivered = checkDelivered();
+    } catch (final IOException exc) {
+      delivered = false;
+    }
+    if (delivered) {
+      spill.skip(unconfirmed);
+      lastWritten.clear();
+    } else {
+      previousLost();
+    }
+    unconfirmed = 0;
+  }
+
+  /**
+   * Sends lines from the spill file, at most <code>replayBytesPerFlush</code>, as long as the
+   * transport delivers them. Lines are only removed from the spill file once they have been written.
+   */
+  private void replay() {
+    if (spill == null || spill.size() <= unconfirmed || !isReady()) {
+      return;
+    }
+    replaying = true;
+    try {
+      int budget = replayBytesPerFlush;
+      while (budget > 0) {
+        int length = spill.peek(buffer, unconfirmed);
+        if (length == 0 && spill.size() > unconfirmed) {
+          // the next line is larger than maxPacketSize, send it in a packet of its own
+          buffer.limit(buffer.capacity());
+          length = spill.peek(buffer, unconfirmed);
+        }
+        if (length == 0 || !sendBuffer()) {
+          return;
+        }
+        unconfirmed = length;
+        replayed.increment();
+        budget -= length;
+      }
+    } finally {
+      replaying = false;
+      buffer.clear();
+      buffer.limit(maxPacketSize);
+    }
+  }
+
+  private void rememberWritten() {
+    if (lastWritten == null) {
+      return;
+    }
+    lastWritten.clear();
+    if (!replaying) {
+      final ByteBuffer written = buffer.duplicate();
+      written.flip();
+      lastWritten.put(written);
+    }
+  }
+
+  /**
+   * @return true if the packet was written and not handed back as {@link #undeliverable(ByteBuffer)}.
+   */
+  private boolean sendBuffer() {
+    if (buffer.position() == 0) {
+      return false;
+    }
+    buffer.flip();
+    final int bytes = buffer.remaining();
+    deliverable = true;
+    boolean failed = false;
+    try {
+      write(buffer);
+    } catch (final IOException exc) {
+      failed = true;
+      writeErrors.increment();
+      log.error("Could not send data", exc);
+    } catch (final Exception exc) {
+      failed = true;
+      writeErrors.increment();
+      log.error("Some unexpected exception happened while trying to send data", exc);
+    }
+    // unless the transport has handed the packet back already (and it has been spilled or dropped)
+    if (deliverable) {
+      if (!failed && buffer.remaining() < bytes) {
+        packetsWritten.increment();
+        bytesWritten.add(bytes - buffer.remaining());
+        rememberWritten();
+      } else {
+        // the transport did not take the packet (e.g. the socket was not writable) or failed
+        undeliverable(buffer);
+      }
+    }
+    buffer.clear();
+    buffer.limit(maxPacketSize);
+    if (spill != null && unconfirmed > 0) {
+      if (deliverable) {
+        spill.skip(unconfirmed);
+      }
+      unconfirmed = 0;
+    }
+    return deliverable;
+  }
+}
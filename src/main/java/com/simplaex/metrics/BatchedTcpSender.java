@@ -0,0 +1,266 @@
+package com.simplaex.metrics;
+
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends lines over a persistent TCP connection, e.g. to Graphite (see {@link GraphiteMetricBuilder})
+ * or InfluxDB (see {@link InfluxMetricBuilder}). See {@link BatchedSender} for how lines are batched.
+ * <p>
+ * Writes are non-blocking: whatever the socket does not take right away is kept in a backlog of
+ * {@link #BACKLOG_SIZE} bytes and written together with the next packet in a single gathering write.
+ * While the backlog has no room for a packet the packet is spilled or dropped as a whole (see
+ * {@link #undeliverable(ByteBuffer)}), so lines are never cut in half.
+ * <p>
+ * The connection is established lazily. After an error the backlog is dropped and connecting is
+ * retried with an exponential backoff between {@link #MIN_RECONNECT_DELAY} and
+ * {@link #MAX_RECONNECT_DELAY}; in the meantime lines stay in the ring buffer. Connecting does not
+ * block the sender's (shared) thread: the host is resolved on the reactor's resolver thread, right
+ * away and then every <code>resolveInterval</code>, and a pending connection is completed on the
+ * following flushes and given up after {@link #CONNECT_TIMEOUT}. Until the host has been resolved
+ * lines stay in the ring buffer.
+ */
+@Log4j2
+public class BatchedTcpSender extends BatchedSender {
+
+  public static final int DEFAULT_MAX_PACKET_SIZE = 8192;
+
+  public static final int MAXIMUM_PACKET_SIZE = 65536;
+
+  public static final int BACKLOG_SIZE = 4 * MAXIMUM_PACKET_SIZE;
+
+  public static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(3);
+
+  public static final Duration MIN_RECONNECT_DELAY = Duration.ofMillis(100);
+
+  public static final Duration MAX_RECONNECT_DELAY = Duration.ofSeconds(30);
+
+  private final String host;
+  private final int port;
+
+  private final Future<?> resolving;
+
+  /**
+   * The address to connect to, null until it has been resolved.
+   */
+  @Nullable
+  private volatile InetSocketAddress address;
+
+  /**
+   * Bytes which have been accepted but not written yet, in write mode.
+   */
+  private final ByteBuffer backlog = DirectBufferPool.acquire(BACKLOG_SIZE);
+
+  private final ByteBuffer[] gather = new ByteBuffer[2];
+
+  @Nullable
+  private SocketChannel channel;
+
+  /**
+   * Whether <code>channel</code> has not finished connecting yet.
+   */
+  private boolean connecting = false;
+
+  private long connectStarted;
+
+  private long nextConnectAttempt = 0;
+
+  private long reconnectDelayNanos = MIN_RECONNECT_DELAY.toNanos();
+
+  public BatchedTcpSender(@Nonnull final String host, @Nonnegative final int port) {
+    this(host, port, null);
+  }
+
+  /**
+   * @param options If the options are not given <code>maxPacketSize</code> defaults to
+   *                {@link #DEFAULT_MAX_PACKET_SIZE}.
+   */
+  public BatchedTcpSender(@Nonnull final String host, @Nonnegative final int port, @Nullable final Options options) {
+    super(options == null ? options().maxPacketSize(DEFAULT_MAX_PACKET_SIZE).build() : options, MAXIMUM_PACKET_SIZE);
+    this.host = host;
+    this.port = port;
+    final long resolveIntervalMs = Optional.ofNullable(options).orElse(DEFAULT_OPTIONS).getResolveInterval().toMillis();
+    this.resolving = reactor().resolver().scheduleWithFixedDelay(this::resolve, 0, resolveIntervalMs, TimeUnit.MILLISECONDS);
+    addFlushListener(this::writeBacklog);
+    start();
+  }
+
+  /**
+   * Runs on the reactor's resolver thread, as resolving may block. A connection which is already
+   * established is kept, the new address is used for the next one.
+   */
+  private void resolve() {
+    final InetSocketAddress resolved = new InetSocketAddress(host, port);
+    if (resolved.isUnresolved()) {
+      log.warn("Could not resolve {}, keeping {}", resolved, address);
+    } else if (!resolved.equals(address)) {
+      log.info("Resolved {} to {}", host, resolved);
+      address = resolved;
+    }
+  }
+
+  @Override
+  protected boolean isReady() {
+    return connect() != null;
+  }
+
+  @Override
+  protected void write(@Nonnull final ByteBuffer packet) throws IOException {
+    final SocketChannel ch = connect();
+    if (ch == null) {
+      undeliverable(packet);
+      return;
+    }
+    try {
+      if (backlog.remaining() < packet.remaining()) {
+        writeBacklog(ch);
+        if (backlog.remaining() < packet.remaining()) {
+          undeliverable(packet);
+          return;
+        }
+      }
+      backlog.flip();
+      gather[0] = backlog;
+      gather[1] = packet;
+      ch.write(gather);
+      backlog.compact();
+      backlog.put(packet);
+    } catch (final IOException exc) {
+      disconnect();
+      throw exc;
+    } finally {
+      gather[0] = null;
+      gather[1] = null;
+    }
+  }
+
+  /**
+   * Tries to write the backlog on every flush, also if nothing new has been sent.
+   */
+  private void writeBacklog() {
+    if (channel == null || connecting || backlog.position() == 0) {
+      return;
+    }
+    try {
+      writeBacklog(channel);
+    } catch (final IOException exc) {
+      writeFailed();
+      log.warn("Could not write to {}:{}", host, port, exc);
+      disconnect();
+    }
+  }
+
+  private void writeBacklog(@Nonnull final SocketChannel ch) throws IOException {
+    backlog.flip();
+    try {
+      ch.write(backlog);
+    } finally {
+      backlog.compact();
+    }
+  }
+
+  @Nullable
+  private SocketChannel connect() {
+    if (channel != null) {
+      return connecting ? finishConnect() : channel;
+    }
+    final long now = System.nanoTime();
+    if (nextConnectAttempt != 0 && now - nextConnectAttempt < 0) {
+      return null;
+    }
+    final InetSocketAddress target = address;
+    if (target == null) {
+      return null;
+    }
+    try {
+      channel = SocketChannel.open();
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      channel.configureBlocking(false);
+      connectStarted = now;
+      connecting = true;
+      if (channel.connect(target)) {
+        return connected();
+      }
+    } catch (final IOException exc) {
+      connectFailed(exc);
+    }
+    return null;
+  }
+
+  @Nullable
+  private SocketChannel finishConnect() {
+    try {
+      if (channel.finishConnect()) {
+        return connected();
+      }
+      if (System.nanoTime() - connectStarted > CONNECT_TIMEOUT.toNanos()) {
+        throw new SocketTimeoutException("Not connected within " + CONNECT_TIMEOUT);
+      }
+    } catch (final IOException exc) {
+      connectFailed(exc);
+    }
+    return null;
+  }
+
+  @Nonnull
+  private SocketChannel connected() {
+    connecting = false;
+    reconnectDelayNanos = MIN_RECONNECT_DELAY.toNanos();
+    log.info("Connected to {}:{}", host, port);
+    return channel;
+  }
+
+  private void connectFailed(@Nonnull final IOException exc) {
+    close(channel);
+    channel = null;
+    connecting = false;
+    nextConnectAttempt = System.nanoTime() + reconnectDelayNanos;
+    log.warn("Could not connect to {}:{}, retrying in {}ms", host, port, reconnectDelayNanos / 1_000_000, exc);
+    reconnectDelayNanos = Math.min(reconnectDelayNanos * 2, MAX_RECONNECT_DELAY.toNanos());
+  }
+
+  /**
+   * Makes one last attempt to write the backlog, without waiting for the socket.
+   */
+  @Override
+  protected void closeTransport() {
+    resolving.cancel(true);
+    writeBacklog();
+    close(channel);
+    channel = null;
+    DirectBufferPool.release(backlog);
+  }
+
+  private void disconnect() {
+    close(channel);
+    channel = null;
+    backlog.flip();
+    dropped(countLines(backlog));
+    backlog.clear();
+    nextConnectAttempt = System.nanoTime() + reconnectDelayNanos;
+  }
+
+  private static void close(@Nullable final SocketChannel ch) {
+    if (ch == null) {
+      return;
+    }
+    try {
+      ch.close();
+    } catch (final IOException ignore) {
+      // we are giving up on this connection anyway
+    }
+  }
+}
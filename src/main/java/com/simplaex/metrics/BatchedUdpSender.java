@@ -1,8 +1,5 @@
 package com.simplaex.metrics;
 
-import lombok.Builder;
-import lombok.Setter;
-import lombok.Value;
 import lombok.extern.log4j.Log4j2;
 
 import javax.annotation.Nonnegative;
@@ -11,66 +8,55 @@ import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.PortUnreachableException;
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.charset.StandardCharsets;
-import java.time.Duration;
 import java.util.Optional;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-
+import java.util.function.Supplier;
+
+/**
+ * Sends lines as UDP datagrams, see {@link BatchedSender} for how lines are batched.
+ * <p>
+ * The destination host can either be given directly or be resolved in the background (see
+ * {@link #BatchedUdpSender(Supplier, int, Options)}), in which case the sender starts right away and
+ * lines are kept in the ring buffer until the host has been resolved.
+ * <p>
+ * The channel is registered with the selector of the shared {@link Reactor}, background resolution
+ * runs on the reactor's resolver thread.
+ */
 @Log4j2
-public class BatchedUdpSender {
-
-  public static class CreationException extends RuntimeException {
-    private CreationException(final Throwable cause) {
-      super(cause);
-    }
-  }
+public class BatchedUdpSender extends BatchedSender {
 
   public static final int MAXIMUM_UDP_PAYLOAD_SIZE = 65507;
 
   private final DatagramChannel channel;
-  private final Selector selector;
-  private final ByteBuffer buffer;
-  private final ScheduledExecutorService loop;
+  private final SelectionKey selectionKey;
+  private final ByteBuffer probe = ByteBuffer.allocate(1);
+
+  @Nullable
+  private final Future<?> resolving;
 
-  @Setter
-  private int batchThreshold = 0;
+  /**
+   * The address to send to, null until it has been resolved.
+   */
+  @Nullable
+  private volatile InetSocketAddress address;
 
-  private boolean overflowing = false;
+  /**
+   * The address the channel is connected to. Only accessed from the sender's thread.
+   */
+  @Nullable
+  private InetSocketAddress connectedTo;
 
   @Nonnull
-  private static DatagramChannel openChannel(
-    @Nonnull final String host,
-    @Nonnegative final int port,
-    @Nonnull final Selector selector) throws IOException {
-    final InetSocketAddress address = new InetSocketAddress(host, port);
+  private static DatagramChannel openChannel() throws IOException {
     final DatagramChannel channel = DatagramChannel.open();
     channel.configureBlocking(false);
-    channel.connect(address);
-    channel.register(selector, SelectionKey.OP_WRITE);
     return channel;
   }
 
-  @Value
-  @Builder
-  public static class Options {
-    final Duration flushInterval;
-    final int batchThreshold;
-  }
-
-  public static Options DEFAULT_OPTIONS = new Options(Duration.ofMillis(100), 0);
-
-  @Nonnull
-  public static Options.OptionsBuilder options() {
-    return Options.builder();
-  }
-
   public BatchedUdpSender() {
     this("localhost", 8125);
   }
@@ -87,95 +73,152 @@ public class BatchedUdpSender {
     @Nonnegative final int port,
     @Nullable final Options options
   ) {
+    this(host, port, options, 0);
+  }
+
+  BatchedUdpSender(
+    @Nonnull final String host,
+    @Nonnegative final int port,
+    @Nullable final Options options,
+    final int shard
+  ) {
+    super(options, MAXIMUM_UDP_PAYLOAD_SIZE, false, shard);
+    DatagramChannel opened = null;
     try {
-      this.buffer = ByteBuffer.allocateDirect(MAXIMUM_UDP_PAYLOAD_SIZE);
-      this.loop = Executors.newScheduledThreadPool(1, runnable -> {
-        final Thread thread = Executors.defaultThreadFactory().newThread(runnable);
-        thread.setName(this.getClass().getName());
-        thread.setDaemon(true);
-        return thread;
-      });
-      this.selector = Selector.open();
-      this.channel = openChannel(host, port, selector);
-      final Options opts = Optional.ofNullable(options).orElse(DEFAULT_OPTIONS);
-      final long flushIntervalMs = opts.getFlushInterval().toMillis();
-      setBatchThreshold(opts.getBatchThreshold());
-      loop.scheduleAtFixedRate(this::sendBuffer, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+      opened = openChannel();
+      this.channel = opened;
+      this.selectionKey = reactor().register(channel, SelectionKey.OP_WRITE);
+      this.address = new InetSocketAddress(host, port);
+      connect(address);
     } catch (final Exception exc) {
-      throw new CreationException(exc);
+      throw creationFailed(opened, exc);
     }
+    this.resolving = null;
+    start();
   }
 
-  private void execute(@Nonnull final Runnable action) {
-    loop.execute(() -> {
-      if (overflowing) {
-        return;
-      }
-      action.run();
-    });
-  }
-
-  public void send(@Nonnull final byte[] bytes, @Nonnegative final int from, @Nonnegative final int to) {
-    execute(() -> sendInternal(bytes, from, to));
+  /**
+   * Resolves the host with the given supplier on a background thread, right away and then every
+   * <code>resolveInterval</code>, so that the sender does not block on startup and picks up changes.
+   * The supplier may block, but should eventually return or throw. If it throws or returns null (or
+   * an empty string) the address which has been resolved last is kept.
+   */
+  public BatchedUdpSender(
+    @Nonnull final Supplier<String> host,
+    @Nonnegative final int port,
+    @Nullable final Options options
+  ) {
+    this(host, port, options, 0);
   }
 
-  public void send(@Nonnull final byte[] bytes) {
-    execute(() -> sendInternal(bytes));
+  BatchedUdpSender(
+    @Nonnull final Supplier<String> host,
+    @Nonnegative final int port,
+    @Nullable final Options options,
+    final int shard
+  ) {
+    super(options, MAXIMUM_UDP_PAYLOAD_SIZE, false, shard);
+    DatagramChannel opened = null;
+    try {
+      opened = openChannel();
+      this.channel = opened;
+      this.selectionKey = reactor().register(channel, SelectionKey.OP_WRITE);
+    } catch (final Exception exc) {
+      throw creationFailed(opened, exc);
+    }
+    final long resolveIntervalMs = Optional.ofNullable(options).orElse(DEFAULT_OPTIONS).getResolveInterval().toMillis();
+    this.resolving = reactor().resolver()
+      .scheduleWithFixedDelay(() -> resolve(host, port), 0, resolveIntervalMs, TimeUnit.MILLISECONDS);
+    start();
   }
 
-  public void send(@Nonnull final String string) {
-    execute(() -> sendInternal(string.getBytes(StandardCharsets.UTF_8)));
+  @Nonnull
+  private CreationException creationFailed(@Nullable final DatagramChannel opened, @Nonnull final Exception exc) {
+    if (opened != null) {
+      try {
+        opened.close();
+      } catch (final IOException ignore) {
+        // we are failing anyway
+      }
+    }
+    abandon();
+    return new CreationException(exc);
   }
 
-  private void sendBuffer() {
+  private void resolve(@Nonnull final Supplier<String> host, @Nonnegative final int port) {
     try {
-      if (buffer.remaining() == buffer.capacity()) {
+      final String hostname = host.get();
+      if (hostname == null || hostname.isEmpty()) {
+        log.warn("Could not determine host, keeping {}", address);
         return;
       }
-      selector.selectNow();
-      for (final SelectionKey key : selector.selectedKeys()) {
-        if (key.isWritable()) {
-          try {
-            buffer.flip();
-            channel.write(buffer);
-          } catch (final PortUnreachableException ignore) {
-            // other end is simply not available, that's okay, it's UDP baby
-          } finally {
-            buffer.clear();
-            overflowing = false;
-          }
-          return;
-        }
+      final InetSocketAddress resolved = new InetSocketAddress(hostname, port);
+      if (resolved.isUnresolved()) {
+        log.warn("Could not resolve {}, keeping {}", resolved, address);
+      } else if (!resolved.equals(address)) {
+        log.info("Sending to {}", resolved);
+        address = resolved;
       }
-    } catch (final IOException exc) {
-      log.error("Could not send udp data", exc);
     } catch (final Exception exc) {
-      log.error("Some unexpected exception happened while trying to send UDP data", exc);
+      log.warn("Could not determine host, keeping {}", address, exc);
+    }
+  }
+
+  private void connect(@Nonnull final InetSocketAddress target) throws IOException {
+    if (channel.isConnected()) {
+      channel.disconnect();
     }
+    channel.connect(target);
+    connectedTo = target;
   }
 
-  private void sendInternal(final byte[] bytes) {
-    sendInternal(bytes, 0, bytes.length);
+  @Override
+  protected boolean isReady() {
+    return address != null;
   }
 
-  private void sendInternal(final byte[] bytes, final int from, final int to) {
+  /**
+   * A pending ICMP port unreachable error is reported by reading from the connected channel, too.
+   */
+  @Override
+  protected boolean checkDelivered() throws IOException {
+    if (!channel.isConnected()) {
+      return true;
+    }
     try {
-      final int len = to - from;
-      if (len > buffer.capacity()) {
-        log.error("Trying to send something which can not possibly fit into a UDP package");
-        return;
-      }
-      if (len > buffer.remaining()) {
-        sendBuffer();
-      }
-      buffer.put(bytes, from, to);
-      if (buffer.position() > batchThreshold) {
-        sendBuffer();
+      probe.clear();
+      channel.read(probe);
+      return true;
+    } catch (final PortUnreachableException exc) {
+      unreachable();
+      return false;
+    }
+  }
+
+  @Override
+  protected void write(@Nonnull final ByteBuffer packet) throws IOException {
+    final InetSocketAddress target = address;
+    if (target != null && !target.equals(connectedTo)) {
+      connect(target);
+    }
+    if (reactor().isReady(selectionKey, SelectionKey.OP_WRITE)) {
+      try {
+        channel.write(packet);
+      } catch (final PortUnreachableException ignore) {
+        // other end is simply not available, that's okay, it's UDP baby
+        // the error is about an earlier datagram, this one has not been sent
+        unreachable();
+        previousLost();
+        undeliverable(packet);
       }
-    } catch (final BufferOverflowException ignore) {
-      overflowing = true;
-      loop.execute(this::sendBuffer);
-      log.warn("New events are being produced too fast and could not be added to the buffer");
     }
   }
+
+  @Override
+  protected void closeTransport() throws IOException {
+    if (resolving != null) {
+      resolving.cancel(true);
+    }
+    channel.close();
+  }
 }
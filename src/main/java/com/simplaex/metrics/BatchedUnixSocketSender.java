@@ -0,0 +1,151 @@
+package com.simplaex.metrics;
+
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+
+/**
+ * Sends lines to a dogstatsd agent via a Unix domain stream socket, see {@link BatchedSender} for
+ * how lines are batched.
+ * <p>
+ * Every packet is prefixed by its length as a 4-byte little-endian integer, which is the framing
+ * the dogstatsd agent expects on stream sockets. Writes are blocking: if the socket buffer is full
+ * the sender's thread waits for the agent, lines queue up in the ring buffer and are only dropped
+ * once that is full too. As writes block, this sender has a thread of its own instead of using the
+ * shared {@link Reactor}.
+ * <p>
+ * The connection is established lazily and re-established after errors, at most once per
+ * {@link #RECONNECT_INTERVAL}. While there is no connection lines stay in the ring buffer (and are
+ * spilled or dropped once it is full); a packet whose write fails is spilled or dropped, see
+ * {@link #undeliverable(ByteBuffer)}.
+ * <p>
+ * Unix domain sockets are supported by the JDK starting with Java 16; on older runtimes creating
+ * this sender fails with a {@link CreationException}. As this library targets Java 8 there is no
+ * factory for this sender in {@link MetricsSender}, on Java 16 or later pass it to
+ * {@link StatsdMetricSender#StatsdMetricSender(BatchedSender, AbstractMetricSender.Options)}.
+ * Datagram Unix domain sockets are not supported by the JDK at all.
+ */
+@Log4j2
+public class BatchedUnixSocketSender extends BatchedSender {
+
+  /**
+   * The packet size recommended for Unix domain sockets by the dogstatsd agent.
+   */
+  public static final int DEFAULT_MAX_PACKET_SIZE = 8192;
+
+  public static final int MAXIMUM_PACKET_SIZE = 65536;
+
+  public static final Duration RECONNECT_INTERVAL = Duration.ofSeconds(1);
+
+  private final SocketAddress address;
+
+  private final ByteBuffer lengthPrefix = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+
+  private final ByteBuffer[] frame = new ByteBuffer[]{lengthPrefix, null};
+
+  @Nullable
+  private SocketChannel channel;
+
+  private long lastConnectAttempt = 0;
+
+  @Nonnull
+  private static SocketAddress unixDomainSocketAddress(@Nonnull final String path) {
+    try {
+      return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+        .getMethod("of", String.class)
+        .invoke(null, path);
+    } catch (final ReflectiveOperationException exc) {
+      throw new CreationException(new UnsupportedOperationException(
+        "Unix domain sockets require Java 16 or later", exc));
+    }
+  }
+
+  public BatchedUnixSocketSender(@Nonnull final String path) {
+    this(path, null);
+  }
+
+  /**
+   * @param options If the options are not given <code>maxPacketSize</code> defaults to
+   *                {@link #DEFAULT_MAX_PACKET_SIZE}.
+   */
+  public BatchedUnixSocketSender(@Nonnull final String path, @Nullable final Options options) {
+    super(options == null ? options().maxPacketSize(DEFAULT_MAX_PACKET_SIZE).build() : options, MAXIMUM_PACKET_SIZE, true);
+    try {
+      this.address = unixDomainSocketAddress(path);
+    } catch (final CreationException exc) {
+      abandon();
+      throw exc;
+    }
+    start();
+  }
+
+  @Override
+  protected boolean isReady() {
+    return connect() != null;
+  }
+
+  @Override
+  protected void write(@Nonnull final ByteBuffer packet) throws IOException {
+    final SocketChannel ch = connect();
+    if (ch == null) {
+      undeliverable(packet);
+      return;
+    }
+    lengthPrefix.clear();
+    lengthPrefix.putInt(packet.remaining());
+    lengthPrefix.flip();
+    frame[1] = packet;
+    try {
+      while (packet.hasRemaining()) {
+        ch.write(frame);
+      }
+    } catch (final IOException exc) {
+      disconnect();
+      throw exc;
+    } finally {
+      frame[1] = null;
+    }
+  }
+
+  @Nullable
+  private SocketChannel connect() {
+    if (channel != null) {
+      return channel;
+    }
+    final long now = System.nanoTime();
+    if (lastConnectAttempt != 0 && now - lastConnectAttempt < RECONNECT_INTERVAL.toNanos()) {
+      return null;
+    }
+    lastConnectAttempt = now;
+    try {
+      channel = SocketChannel.open(address);
+      log.info("Connected to {}", address);
+    } catch (final IOException exc) {
+      log.warn("Could not connect to {}", address, exc);
+    }
+    return channel;
+  }
+
+  @Override
+  protected void closeTransport() {
+    disconnect();
+  }
+
+  private void disconnect() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (final IOException ignore) {
+        // we are giving up on this connection anyway
+      }
+      channel = null;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package com.simplaex.metrics;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A concurrent cache of at most <code>maxSize</code> entries which forgets entries that have not been
+ * looked up for a while.
+ * <p>
+ * Entries are added to the current generation. Once that holds half of <code>maxSize</code> entries
+ * it becomes the previous generation and the one before is dropped; entries of the previous
+ * generation which are looked up again are moved to the current one. Looking up an entry of the
+ * current generation is a single map lookup and does not allocate.
+ */
+final class BoundedCache<K, V> {
+
+  private final int generationSize;
+
+  private volatile Map<K, V> current = new ConcurrentHashMap<>();
+
+  private volatile Map<K, V> previous = new ConcurrentHashMap<>();
+
+  BoundedCache(final int maxSize) {
+    if (maxSize < 2) {
+      throw new IllegalArgumentException("maxSize must be at least 2");
+    }
+    this.generationSize = maxSize / 2;
+  }
+
+  @Nullable
+  V get(@Nonnull final K key) {
+    final V value = current.get(key);
+    if (value != null) {
+      return value;
+    }
+    final V old = previous.get(key);
+    return old == null ? null : putIfAbsent(key, old);
+  }
+
+  /**
+   * The cached value for the given key, computing (and caching) it if there is none. Concurrent
+   * callers may compute a value for the same key more than once, but all of them get the one which
+   * is cached.
+   */
+  @Nonnull
+  V computeIfAbsent(@Nonnull final K key, @Nonnull final Function<? super K, ? extends V> compute) {
+    final V value = get(key);
+    return value == null ? putIfAbsent(key, compute.apply(key)) : value;
+  }
+
+  @Nonnull
+  private V putIfAbsent(@Nonnull final K key, @Nonnull final V value) {
+    Map<K, V> generation = current;
+    if (generation.size() >= generationSize) {
+      synchronized (this) {
+        if (current == generation) {
+          previous = generation;
+          current = new ConcurrentHashMap<>();
+        }
+        generation = current;
+      }
+    }
+    final V existing = generation.putIfAbsent(key, value);
+    return existing == null ? value : existing;
+  }
+
+  int size() {
+    return current.size() + previous.size();
+  }
+}
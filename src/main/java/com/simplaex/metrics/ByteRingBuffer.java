@@ -0,0 +1,203 @@
+package com.simplaex.metrics;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free, multi-producer/single-consumer ring buffer of variable length byte records.
+ * <p>
+ * Producers claim space with a single CAS on the tail, copy their record in and then commit it by
+ * setting the record's length in a separate array of commit markers (one per {@link #ALIGNMENT}
+ * bytes, records start at multiples of it). Producers never wait for each other: the consumer reads
+ * records in the order in which space was claimed and stops at the first one which has not been
+ * committed yet. A producer which is descheduled between claiming and committing therefore only
+ * holds up the consumer, and space for new records while the buffer fills up.
+ * <p>
+ * If there is not enough space the record is rejected, nothing ever blocks on a full buffer. Records
+ * must not be empty, so that a length of 0 from {@link #poll(ByteBuffer)} always means there is none.
+ */
+final class ByteRingBuffer {
+
+  /**
+   * Records are padded to a multiple of this many bytes.
+   */
+  static final int ALIGNMENT = 8;
+
+  private static final int ALIGNMENT_SHIFT = 3;
+
+  private final byte[] data;
+  private final int mask;
+
+  /**
+   * The length plus one of the record starting at every aligned position, 0 while there is no
+   * committed record. Set by the producer after copying its record in, cleared by the consumer.
+   */
+  private final AtomicIntegerArray commits;
+
+  /**
+   * Position up to which space has been claimed by producers.
+   */
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * Position up to which records have been consumed. Only written by the consumer.
+   */
+  private final AtomicLong head = new AtomicLong();
+
+  /**
+   * @param capacity The capacity in bytes, rounded up to the next power of two.
+   */
+  ByteRingBuffer(@Nonnegative final int capacity) {
+    final int size = Integer.highestOneBit(Math.max(capacity, 64) - 1) << 1;
+    this.data = new byte[size];
+    this.mask = size - 1;
+    this.commits = new AtomicIntegerArray(size >>> ALIGNMENT_SHIFT);
+  }
+
+  int capacity() {
+    return data.length;
+  }
+
+  /**
+   * The number of bytes (including padding) which have been claimed but not yet consumed.
+   */
+  long size() {
+    return tail.get() - head.get();
+  }
+
+  /**
+   * Whether there is no committed record to consume. Must only be called by the consumer.
+   */
+  boolean isEmpty() {
+    return committedLength(head.get()) < 0;
+  }
+
+  /**
+   * Appends the remaining bytes of <code>source</code> as one record. On success the position of
+   * <code>source</code> is advanced to its limit.
+   *
+   * @return false if there is not enough space.
+   */
+  boolean offer(@Nonnull final ByteBuffer source) {
+    final int length = source.remaining();
+    final long start = claim(length);
+    if (start < 0) {
+      return false;
+    }
+    final int offset = (int) (start & mask);
+    final int firstPart = Math.min(length, data.length - offset);
+    source.get(data, offset, firstPart);
+    source.get(data, 0, length - firstPart);
+    commit(start, length);
+    return true;
+  }
+
+  /**
+   * Appends <code>length</code> bytes of <code>source</code> starting at <code>offset</code> as one record.
+   *
+   * @return false if there is not enough space.
+   */
+  boolean offer(@Nonnull final byte[] source, @Nonnegative final int offset, @Nonnegative final int length) {
+    final long start = claim(length);
+    if (start < 0) {
+      return false;
+    }
+    final int position = (int) (start & mask);
+    final int firstPart = Math.min(length, data.length - position);
+    System.arraycopy(source, offset, data, position, firstPart);
+    System.arraycopy(source, offset + firstPart, data, 0, length - firstPart);
+    commit(start, length);
+    return true;
+  }
+
+  private static long recordLength(final long length) {
+    return Math.max(ALIGNMENT, (length + ALIGNMENT - 1) & -ALIGNMENT);
+  }
+
+  private long claim(final int length) {
+    if (length == 0) {
+      throw new IllegalArgumentException("records must not be empty");
+    }
+    final long recordLength = recordLength(length);
+    if (recordLength > data.length) {
+      return -1;
+    }
+    while (true) {
+      final long start = tail.get();
+      if (start + recordLength - head.get() > data.length) {
+        return -1;
+      }
+      if (tail.compareAndSet(start, start + recordLength)) {
+        return start;
+      }
+    }
+  }
+
+  private int slot(final long position) {
+    return (int) (position & mask) >>> ALIGNMENT_SHIFT;
+  }
+
+  private void commit(final long start, final int length) {
+    // a volatile write, so that the consumer which sees the marker also sees the record's bytes
+    commits.set(slot(start), length + 1);
+  }
+
+  /**
+   * The length of the record at the given position, or -1 if it has not been committed yet.
+   */
+  private int committedLength(final long start) {
+    return commits.get(slot(start)) - 1;
+  }
+
+  /**
+   * Clears the commit marker of a consumed record before its space is handed back to producers.
+   */
+  private void consumed(final long start, final int length) {
+    commits.lazySet(slot(start), 0);
+    head.lazySet(start + recordLength(length));
+  }
+
+  /**
+   * Length of the next record or -1 if there is none. Must only be called by the consumer.
+   */
+  int peekLength() {
+    return committedLength(head.get());
+  }
+
+  /**
+   * Moves the next record into <code>target</code> if there is one and it fits into the remaining
+   * space of <code>target</code>. Must only be called by the consumer.
+   *
+   * @return the length of the record, 0 if the buffer is empty and -1 if the record does not fit.
+   */
+  int poll(@Nonnull final ByteBuffer target) {
+    final long start = head.get();
+    final int length = committedLength(start);
+    if (length < 0) {
+      return 0;
+    }
+    if (length > target.remaining()) {
+      return -1;
+    }
+    final int offset = (int) (start & mask);
+    final int firstPart = Math.min(length, data.length - offset);
+    target.put(data, offset, firstPart);
+    target.put(data, 0, length - firstPart);
+    consumed(start, length);
+    return length;
+  }
+
+  /**
+   * Discards the next record. Must only be called by the consumer.
+   */
+  void skip() {
+    final long start = head.get();
+    final int length = committedLength(start);
+    if (length >= 0) {
+      consumed(start, length);
+    }
+  }
+}
@@ -0,0 +1,229 @@
+package com.simplaex.metrics;
+
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Bounds the number of tag combinations per metric name, so that a tag with unbounded values
+ * (a user id, a URL with query parameters, ...) can not blow up the number of series.
+ * <p>
+ * Every metric name has a table of at most <code>maxSeriesPerMetric</code> known tag combinations.
+ * While the table is full, new combinations are folded into one series with the same tag names but
+ * all values replaced by {@link #OTHER}. A combination which has not been seen for {@link #EVICT_AFTER}
+ * is evicted to make room for new ones, which makes the table an approximate LRU: combinations
+ * remember (at a granularity of {@link #TOUCH_INTERVAL}) when they were last seen, and the table is
+ * swept only while it is full and at most once per {@link #TOUCH_INTERVAL}.
+ * <p>
+ * Looking up a known combination is a map lookup and does not lock or allocate. Metrics without tags
+ * are not limited.
+ */
+@Log4j2
+class CardinalityLimiter {
+
+  static final String OTHER = "other";
+
+  static final Duration EVICT_AFTER = Duration.ofMinutes(5);
+
+  static final Duration TOUCH_INTERVAL = Duration.ofSeconds(1);
+
+  private static final long TOUCH_INTERVAL_NANOS = TOUCH_INTERVAL.toNanos();
+
+  private static final class Entry {
+
+    volatile long lastSeen;
+
+    Entry(final long lastSeen) {
+      this.lastSeen = lastSeen;
+    }
+  }
+
+  private static final class Table {
+
+    @Nonnull
+    final String name;
+
+    /**
+     * The known combinations of this name, guarded by the table's monitor.
+     */
+    final List<MetricKey> keys = new ArrayList<>();
+
+    final LongAdder folded = new LongAdder();
+
+    long lastSweep;
+
+    volatile boolean capped;
+
+    /**
+     * The most recent key into which combinations have been folded.
+     */
+    @Nullable
+    volatile MetricKey other;
+
+    Table(@Nonnull final String name, final long now) {
+      this.name = name;
+      this.lastSweep = now;
+    }
+  }
+
+  private final int maxSeriesPerMetric;
+
+  private final long evictAfterNanos;
+
+  @Nonnull
+  private final Consumer<MetricKey> onEvict;
+
+  private final Map<MetricKey, Entry> known = new ConcurrentHashMap<>();
+
+  private final Map<String, Table> tables = new ConcurrentHashMap<>();
+
+  CardinalityLimiter(@Nonnegative final int maxSeriesPerMetric) {
+    this(maxSeriesPerMetric, EVICT_AFTER, key -> {
+    });
+  }
+
+  /**
+   * @param onEvict Called with combinations which have been evicted, so that state kept for them can
+   *                be dropped.
+   */
+  CardinalityLimiter(
+    @Nonnegative final int maxSeriesPerMetric,
+    @Nonnull final Duration evictAfter,
+    @Nonnull final Consumer<MetricKey> onEvict
+  ) {
+    if (maxSeriesPerMetric < 1) {
+      throw new IllegalArgumentException("maxSeriesPerMetric must be positive");
+    }
+    this.maxSeriesPerMetric = maxSeriesPerMetric;
+    this.evictAfterNanos = evictAfter.toNanos();
+    this.onEvict = onEvict;
+  }
+
+  /**
+   * The given key if its combination of tags is admitted, the key it is folded into otherwise.
+   */
+  @Nonnull
+  MetricKey limit(@Nonnull final MetricKey key) {
+    return limit(key, System.nanoTime());
+  }
+
+  @Nonnull
+  MetricKey limit(@Nonnull final MetricKey key, final long now) {
+    if (key.getTags().isEmpty()) {
+      return key;
+    }
+    final Entry entry = known.get(key);
+    if (entry != null) {
+      if (now - entry.lastSeen >= TOUCH_INTERVAL_NANOS) {
+        entry.lastSeen = now;
+      }
+      return key;
+    }
+    return admit(key, now);
+  }
+
+  @Nonnull
+  private MetricKey admit(@Nonnull final MetricKey key, final long now) {
+    Table table = tables.get(key.getName());
+    if (table == null) {
+      table = tables.computeIfAbsent(key.getName(), name -> new Table(name, now));
+    }
+    synchronized (table) {
+      if (known.containsKey(key)) {
+        return key;
+      }
+      if (table.keys.size() >= maxSeriesPerMetric && now - table.lastSweep >= TOUCH_INTERVAL_NANOS) {
+        sweep(table, now);
+      }
+      if (table.keys.size() < maxSeriesPerMetric) {
+        table.keys.add(key);
+        known.put(key, new Entry(now));
+        return key;
+      }
+    }
+    table.folded.increment();
+    if (!table.capped) {
+      table.capped = true;
+      log.warn("Metric {} has more than {} combinations of tags, folding new ones into {}",
+        table.name, maxSeriesPerMetric, OTHER);
+    }
+    return other(table, key);
+  }
+
+  /**
+   * Evicts the combinations of a full table which have not been seen for a while.
+   */
+  private void sweep(@Nonnull final Table table, final long now) {
+    table.lastSweep = now;
+    table.keys.removeIf(key -> {
+      final Entry entry = known.get(key);
+      if (entry != null && now - entry.lastSeen < evictAfterNanos) {
+        return false;
+      }
+      known.remove(key);
+      onEvict.accept(key);
+      return true;
+    });
+  }
+
+  @Nonnull
+  private static MetricKey other(@Nonnull final Table table, @Nonnull final MetricKey key) {
+    final MetricKey current = table.other;
+    if (current != null && sameShape(current, key)) {
+      return current;
+    }
+    final List<Metric.Tag> tags = new ArrayList<>(key.getTags().size());
+    for (final Metric.Tag tag : key.getTags()) {
+      tags.add(Metric.tag(tag.getName(), OTHER));
+    }
+    final MetricKey other = MetricKey.of(key.getName(), key.getKind(), key.getSampleRate(), tags);
+    table.other = other;
+    return other;
+  }
+
+  private static boolean sameShape(@Nonnull final MetricKey a, @Nonnull final MetricKey b) {
+    if (a.getKind() != b.getKind() || Double.compare(a.getSampleRate(), b.getSampleRate()) != 0) {
+      return false;
+    }
+    final List<Metric.Tag> aTags = a.getTags();
+    final List<Metric.Tag> bTags = b.getTags();
+    if (aTags.size() != bTags.size()) {
+      return false;
+    }
+    for (int i = 0; i < aTags.size(); i += 1) {
+      if (!aTags.get(i).getName().equals(bTags.get(i).getName())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The names of the metrics which have hit the limit, with the number of emits which have been folded.
+   */
+  @Nonnull
+  Map<String, Long> getCapped() {
+    final Map<String, Long> result = new TreeMap<>();
+    tables.forEach((name, table) -> {
+      if (table.capped) {
+        result.put(name, table.folded.sum());
+      }
+    });
+    return Collections.unmodifiableMap(result);
+  }
+
+  int size() {
+    return known.size();
+  }
+}
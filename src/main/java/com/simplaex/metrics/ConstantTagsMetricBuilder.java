@@ -0,0 +1,61 @@
+package com.simplaex.metrics;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Adds constant tags to the tags of every line and event built by another {@link MetricBuilder},
+ * for builders which do not support constant tags themselves (see
+ * {@link MetricBuilder#withConstantTags(Collection)}).
+ */
+class ConstantTagsMetricBuilder implements MetricBuilder {
+
+  private final MetricBuilder metricBuilder;
+
+  private final List<Metric.Tag> constantTags;
+
+  ConstantTagsMetricBuilder(@Nonnull final MetricBuilder metricBuilder, @Nonnull final Collection<Metric.Tag> constantTags) {
+    this.metricBuilder = metricBuilder;
+    this.constantTags = Collections.unmodifiableList(new ArrayList<>(constantTags));
+  }
+
+  @Nonnull
+  @Override
+  public String build(
+    @Nonnull final String metricName,
+    @Nonnull final Metric.Kind kind,
+    final double sampleRate,
+    final double value,
+    @Nonnull final Collection<Metric.Tag> tags
+  ) {
+    return metricBuilder.build(metricName, kind, sampleRate, value, merged(tags));
+  }
+
+  @Nonnull
+  @Override
+  public String build(@Nonnull final Event event) {
+    final Event tagged = new Event(event.getTitle(), event.getMessage(), event.getLevel(),
+      event.getPriority(), merged(event.getTags()));
+    return metricBuilder.build(tagged);
+  }
+
+  @Nonnull
+  @Override
+  public MetricBuilder withConstantTags(@Nonnull final Collection<Metric.Tag> moreTags) {
+    return new ConstantTagsMetricBuilder(metricBuilder, merged(moreTags));
+  }
+
+  @Nonnull
+  private List<Metric.Tag> merged(@Nonnull final Collection<Metric.Tag> tags) {
+    if (tags.isEmpty()) {
+      return constantTags;
+    }
+    final List<Metric.Tag> result = new ArrayList<>(tags.size() + constantTags.size());
+    result.addAll(tags);
+    result.addAll(constantTags);
+    return result;
+  }
+}
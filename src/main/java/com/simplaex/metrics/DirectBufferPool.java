@@ -0,0 +1,53 @@
+package com.simplaex.metrics;
+
+import lombok.experimental.UtilityClass;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps the direct buffers of closed senders for the next sender, as direct memory is only freed
+ * once the garbage collector gets around to the buffer.
+ */
+@UtilityClass
+class DirectBufferPool {
+
+  /**
+   * Per capacity, buffers beyond that are left to the garbage collector.
+   */
+  static final int MAX_POOLED = 16;
+
+  private static final Map<Integer, Queue<ByteBuffer>> POOL = new ConcurrentHashMap<>();
+
+  /**
+   * A cleared direct buffer with the given capacity.
+   */
+  @Nonnull
+  static ByteBuffer acquire(@Nonnegative final int capacity) {
+    final Queue<ByteBuffer> pooled = POOL.get(capacity);
+    final ByteBuffer buffer = pooled == null ? null : pooled.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(capacity);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer from {@link #acquire(int)}, which must not be used afterwards.
+   */
+  static void release(@Nonnull final ByteBuffer buffer) {
+    if (!buffer.isDirect()) {
+      return;
+    }
+    final Queue<ByteBuffer> pooled = POOL.computeIfAbsent(buffer.capacity(), capacity -> new ConcurrentLinkedQueue<>());
+    if (pooled.size() < MAX_POOLED) {
+      pooled.offer(buffer);
+    }
+  }
+}
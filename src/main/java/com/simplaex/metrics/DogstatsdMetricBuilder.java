@@ -1,10 +1,146 @@
 package com.simplaex.metrics;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
-public class DogstatsdMetricBuilder implements MetricBuilder {
+/**
+ * Builds and encodes lines in the dogstatsd format.
+ * <p>
+ * Characters which are reserved by the format are replaced by <code>_</code>: <code>|</code>,
+ * <code>:</code>, <code>,</code>, <code>#</code> and newlines in metric names and tag names as well as
+ * <code>|</code>, <code>,</code>, <code>#</code> and newlines in tag values (colons are fine in values).
+ * <p>
+ * Constant tags (see {@link #withConstantTags(Collection)}) are encoded once and appended to the tags
+ * of every line and event as they are.
+ */
+public class DogstatsdMetricBuilder implements MetricBuilder, MetricEncoder {
+
+  private static final Map<Metric.Kind, byte[]> KIND_SUFFIXES = new EnumMap<>(Metric.Kind.class);
+  private static final Map<Event.Priority, byte[]> PRIORITIES = new EnumMap<>(Event.Priority.class);
+  private static final Map<Event.Level, byte[]> LEVELS = new EnumMap<>(Event.Level.class);
+
+  static {
+    KIND_SUFFIXES.put(Metric.Kind.GAUGE, ascii("|g"));
+    KIND_SUFFIXES.put(Metric.Kind.COUNTER, ascii("|c"));
+    KIND_SUFFIXES.put(Metric.Kind.TIMING, ascii("|ms"));
+    KIND_SUFFIXES.put(Metric.Kind.SET, ascii("|s"));
+    KIND_SUFFIXES.put(Metric.Kind.DISTRIBUTION, ascii("|d"));
+    for (final Event.Priority priority : Event.Priority.values()) {
+      PRIORITIES.put(priority, ascii("|p:" + priority.toString().toLowerCase()));
+    }
+    for (final Event.Level level : Event.Level.values()) {
+      LEVELS.put(level, ascii("|t:" + level.toString().toLowerCase()));
+    }
+  }
+
+  private static final byte[] SAMPLE_RATE_PREFIX = ascii("|@");
+  private static final byte[] TAGS_PREFIX = ascii("|#");
+  private static final byte[] EVENT_PREFIX = ascii("_e{");
+  private static final byte[] EVENT_HEADER_END = ascii("}:");
+
+  private final List<Metric.Tag> constantTags;
+
+  /**
+   * The constant tags for lines without tags of their own (<code>|#a:b,c:d</code>) and for lines
+   * with tags (<code>,a:b,c:d</code>), empty if there are no constant tags.
+   */
+  private final byte[] constantTagsFirst;
+  private final byte[] constantTagsNext;
+
+  public DogstatsdMetricBuilder() {
+    this(Collections.emptyList());
+  }
+
+  public DogstatsdMetricBuilder(@Nonnull final Collection<Metric.Tag> constantTags) {
+    this.constantTags = Collections.unmodifiableList(new ArrayList<>(constantTags));
+    if (constantTags.isEmpty()) {
+      this.constantTagsFirst = new byte[0];
+      this.constantTagsNext = constantTagsFirst;
+    } else {
+      ByteBuffer buffer = ByteBuffer.allocate(ScratchBuffer.INITIAL_CAPACITY);
+      while (true) {
+        try {
+          buffer.clear();
+          putTags(buffer, constantTags);
+          break;
+        } catch (final BufferOverflowException exc) {
+          buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+        }
+      }
+      this.constantTagsFirst = Wire.toBytes(buffer);
+      this.constantTagsNext = Arrays.copyOfRange(constantTagsFirst, TAGS_PREFIX.length - 1, constantTagsFirst.length);
+      constantTagsNext[0] = ',';
+    }
+  }
+
+  @Nonnull
+  @Override
+  public MetricBuilder withConstantTags(@Nonnull final Collection<Metric.Tag> moreTags) {
+    final List<Metric.Tag> tags = new ArrayList<>(constantTags);
+    tags.addAll(moreTags);
+    return new DogstatsdMetricBuilder(tags);
+  }
+
+  private void putConstantTags(@Nonnull final ByteBuffer target, final boolean hasTags) {
+    target.put(hasTags ? constantTagsNext : constantTagsFirst);
+  }
+
+  /**
+   * The pre-encoded parts of a line for a {@link MetricKey}: everything but the value and the sample rate.
+   */
+  private static final class Wire {
+    private final byte[] prefix;
+    private final byte[] kindSuffix;
+    private final byte[] tags;
+
+    private Wire(@Nonnull final byte[] prefix, @Nonnull final byte[] kindSuffix, @Nonnull final byte[] tags) {
+      this.prefix = prefix;
+      this.kindSuffix = kindSuffix;
+      this.tags = tags;
+    }
+
+    @Nonnull
+    private static Wire create(@Nonnull final MetricKey key) {
+      ByteBuffer buffer = ByteBuffer.allocate(ScratchBuffer.INITIAL_CAPACITY);
+      while (true) {
+        try {
+          buffer.clear();
+          putName(buffer, key.getName());
+          buffer.put((byte) ':');
+          final byte[] prefix = toBytes(buffer);
+          buffer.clear();
+          putTags(buffer, key.getTags());
+          return new Wire(prefix, KIND_SUFFIXES.get(key.getKind()), toBytes(buffer));
+        } catch (final BufferOverflowException exc) {
+          buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+        }
+      }
+    }
+
+    @Nonnull
+    private static byte[] toBytes(@Nonnull final ByteBuffer buffer) {
+      buffer.flip();
+      final byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      return bytes;
+    }
+  }
+
+  @Nonnull
+  private static byte[] ascii(@Nonnull final String string) {
+    return string.getBytes(StandardCharsets.US_ASCII);
+  }
 
   @Nonnull
   @Override
@@ -15,78 +151,204 @@ public class DogstatsdMetricBuilder implements MetricBuilder {
     final double value,
     @Nonnull final Collection<Metric.Tag> tags
   ) {
-    final StringBuilder b = new StringBuilder();
-    b.append(metricName);
-    b.append(':');
-    b.append(value);
-    b.append('|');
-    switch (kind) {
-      case GAUGE:
-        b.append('g');
-        break;
-      case COUNTER:
-        b.append('c');
-        break;
-      case TIMING:
-        b.append("ms");
-        break;
+    ByteBuffer buffer = ScratchBuffer.get();
+    while (true) {
+      try {
+        encode(buffer, metricName, kind, sampleRate, value, tags);
+        return toString(buffer);
+      } catch (final BufferOverflowException exc) {
+        buffer = ScratchBuffer.grow(buffer);
+      }
+    }
+  }
+
+  @Nonnull
+  @Override
+  public String build(@Nonnull final Event event) {
+    ByteBuffer buffer = ScratchBuffer.get();
+    while (true) {
+      try {
+        encode(buffer, event);
+        return toString(buffer);
+      } catch (final BufferOverflowException exc) {
+        buffer = ScratchBuffer.grow(buffer);
+      }
+    }
+  }
+
+  @Nonnull
+  private static String toString(@Nonnull final ByteBuffer buffer) {
+    return new String(buffer.array(), buffer.arrayOffset(), buffer.position(), StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void encode(
+    @Nonnull final ByteBuffer target,
+    @Nonnull final MetricKey key,
+    final double sampleRate,
+    final double value
+  ) {
+    final Wire wire = key.encoded(DogstatsdMetricBuilder.class, Wire::create);
+    target.put(wire.prefix);
+    Encoding.putDouble(target, value);
+    target.put(wire.kindSuffix);
+    if (sampleRate < 1.0 && sampleRate > 0) {
+      target.put(SAMPLE_RATE_PREFIX);
+      Encoding.putDouble(target, sampleRate);
+    }
+    target.put(wire.tags);
+    putConstantTags(target, wire.tags.length > 0);
+    target.put((byte) '\n');
+  }
+
+  /**
+   * Writes a multi-value line (<code>name:1:2:3|d</code>), which requires version 6.25 or later of
+   * the agent.
+   */
+  @Override
+  public void encode(
+    @Nonnull final ByteBuffer target,
+    @Nonnull final MetricKey key,
+    final double sampleRate,
+    @Nonnull final double[] values,
+    final int from,
+    final int to
+  ) {
+    if (to <= from) {
+      return;
+    }
+    final Wire wire = key.encoded(DogstatsdMetricBuilder.class, Wire::create);
+    target.put(wire.prefix);
+    Encoding.putDouble(target, values[from]);
+    for (int i = from + 1; i < to; i += 1) {
+      target.put((byte) ':');
+      Encoding.putDouble(target, values[i]);
     }
+    target.put(wire.kindSuffix);
     if (sampleRate < 1.0 && sampleRate > 0) {
-      b.append("|@");
-      b.append(sampleRate);
+      target.put(SAMPLE_RATE_PREFIX);
+      Encoding.putDouble(target, sampleRate);
     }
-    appendTags(b, tags);
-    b.append('\n');
-    return b.toString();
+    target.put(wire.tags);
+    putConstantTags(target, wire.tags.length > 0);
+    target.put((byte) '\n');
   }
 
-  private static void appendTags(@Nonnull final StringBuilder b, @Nonnull final Iterable<Metric.Tag> tags) {
+  @Override
+  public void encode(
+    @Nonnull final ByteBuffer target,
+    @Nonnull final String metricName,
+    @Nonnull final Metric.Kind kind,
+    final double sampleRate,
+    final double value,
+    @Nonnull final Collection<Metric.Tag> tags
+  ) {
+    putName(target, metricName);
+    target.put((byte) ':');
+    Encoding.putDouble(target, value);
+    target.put(KIND_SUFFIXES.get(kind));
+    if (sampleRate < 1.0 && sampleRate > 0) {
+      target.put(SAMPLE_RATE_PREFIX);
+      Encoding.putDouble(target, sampleRate);
+    }
+    putTags(target, tags);
+    putConstantTags(target, !tags.isEmpty());
+    target.put((byte) '\n');
+  }
+
+  private static void putTags(@Nonnull final ByteBuffer target, @Nonnull final Collection<Metric.Tag> tags) {
+    if (tags.isEmpty()) {
+      return;
+    }
     final Iterator<Metric.Tag> tagIterator = tags.iterator();
-    if (tagIterator.hasNext()) {
-      final Metric.Tag tag = tagIterator.next();
-      b.append("|#");
-      b.append(tag.getName());
-      b.append(':');
-      b.append(tag.getValue());
-      while (tagIterator.hasNext()) {
-        final Metric.Tag next = tagIterator.next();
-        b.append(',');
-        b.append(next.getName());
-        b.append(':');
-        b.append(next.getValue());
+    final Metric.Tag tag = tagIterator.next();
+    target.put(TAGS_PREFIX);
+    putTag(target, tag);
+    while (tagIterator.hasNext()) {
+      target.put((byte) ',');
+      putTag(target, tagIterator.next());
+    }
+  }
+
+  private static void putTag(@Nonnull final ByteBuffer target, @Nonnull final Metric.Tag tag) {
+    putName(target, tag.getName());
+    target.put((byte) ':');
+    putSanitized(target, tag.getValue(), false);
+  }
+
+  private static void putName(@Nonnull final ByteBuffer target, @Nonnull final String name) {
+    putSanitized(target, name, true);
+  }
+
+  private static void putSanitized(@Nonnull final ByteBuffer target, @Nonnull final String string, final boolean colonReserved) {
+    int from = 0;
+    for (int i = 0; i < string.length(); i += 1) {
+      final char c = string.charAt(i);
+      if (c == '|' || c == ',' || c == '#' || c == '\n' || c == ':' && colonReserved) {
+        Encoding.putUtf8(target, string, from, i);
+        target.put((byte) '_');
+        from = i + 1;
       }
     }
+    Encoding.putUtf8(target, string, from, string.length());
   }
 
-  @Nonnull
-  private String escapeEventString(@Nonnull final String string) {
-    return string.replaceAll("\n", "\\n");
+  /**
+   * Writes the UTF-8 encoding of an event title or text, replacing newlines by <code>\n</code>.
+   */
+  private static void putEventString(@Nonnull final ByteBuffer target, @Nonnull final String string) {
+    int from = 0;
+    for (int i = 0; i < string.length(); i += 1) {
+      if (string.charAt(i) == '\n') {
+        Encoding.putUtf8(target, string, from, i);
+        target.put((byte) '\\');
+        target.put((byte) 'n');
+        from = i + 1;
+      }
+    }
+    Encoding.putUtf8(target, string, from, string.length());
+  }
+
+  /**
+   * The number of bytes {@link #putEventString(ByteBuffer, String)} writes.
+   */
+  private static int eventStringLength(@Nonnull final String string) {
+    int newlines = 0;
+    for (int i = 0; i < string.length(); i += 1) {
+      if (string.charAt(i) == '\n') {
+        newlines += 1;
+      }
+    }
+    // the newline itself is one byte in UTF-8, its escape sequence is two
+    return Encoding.utf8Length(string) + newlines;
   }
 
   @Nonnull
+  private static String nonNull(@Nullable final String string) {
+    return string == null ? "" : string;
+  }
+
   @Override
-  public String build(@Nonnull final Event event) {
-    final String title = escapeEventString(event.getTitle());
-    final String message = escapeEventString(event.getMessage());
-    final StringBuilder b = new StringBuilder("_e{");
-    b.append(title.length());
-    b.append(',');
-    b.append(message.length());
-    b.append("}:");
-    b.append(title);
-    b.append('|');
-    b.append(message);
+  public void encode(@Nonnull final ByteBuffer target, @Nonnull final Event event) {
+    final String title = nonNull(event.getTitle());
+    final String message = nonNull(event.getMessage());
+    target.put(EVENT_PREFIX);
+    Encoding.putLong(target, eventStringLength(title));
+    target.put((byte) ',');
+    Encoding.putLong(target, eventStringLength(message));
+    target.put(EVENT_HEADER_END);
+    putEventString(target, title);
+    target.put((byte) '|');
+    putEventString(target, message);
     if (event.getPriority() != Event.Priority.NORMAL) {
-      b.append("|p:");
-      b.append(event.getPriority().toString().toLowerCase());
+      target.put(PRIORITIES.get(event.getPriority()));
     }
     if (event.getLevel() != Event.Level.INFO) {
-      b.append("|t:");
-      b.append(event.getLevel().toString().toLowerCase());
+      target.put(LEVELS.get(event.getLevel()));
     }
-    appendTags(b, event.getTags());
-    b.append('\n');
-    return b.toString();
+    putTags(target, event.getTags());
+    putConstantTags(target, !event.getTags().isEmpty());
+    target.put((byte) '\n');
   }
 
 }
@@ -0,0 +1,185 @@
+package com.simplaex.metrics;
+
+import lombok.experimental.UtilityClass;
+
+import javax.annotation.Nonnull;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Garbage-free primitives for writing text into {@link ByteBuffer}s, used by {@link MetricEncoder}s.
+ * <p>
+ * All methods throw {@link BufferOverflowException} if the target buffer is too small.
+ */
+@UtilityClass
+public class Encoding {
+
+  private static final long[] POWERS_OF_TEN = {
+    1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L,
+    10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L, 10_000_000_000_000L, 100_000_000_000_000L,
+    1_000_000_000_000_000L, 10_000_000_000_000_000L, 100_000_000_000_000_000L, 1_000_000_000_000_000_000L
+  };
+
+  private static final byte[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+  /**
+   * Number of fractional digits written by {@link #putDouble(ByteBuffer, double)}.
+   */
+  public static final int FRACTION_DIGITS = 9;
+
+  private static final double FRACTION_SCALE = 1e9;
+
+  /**
+   * Doubles outside of <code>[MIN_FIXED, MAX_FIXED)</code> (by absolute value) are written
+   * in scientific notation via {@link Double#toString(double)}, which allocates.
+   */
+  private static final double MIN_FIXED = 1e-3;
+  private static final double MAX_FIXED = 1e15;
+
+  /**
+   * Writes a string that is known to consist of ASCII characters only.
+   */
+  public static void putAscii(@Nonnull final ByteBuffer target, @Nonnull final CharSequence string) {
+    final int length = string.length();
+    if (target.remaining() < length) {
+      throw new BufferOverflowException();
+    }
+    for (int i = 0; i < length; i += 1) {
+      target.put((byte) string.charAt(i));
+    }
+  }
+
+  /**
+   * Writes the UTF-8 encoding of the given string. Unpaired surrogates are written as <code>?</code>.
+   */
+  public static void putUtf8(@Nonnull final ByteBuffer target, @Nonnull final CharSequence string) {
+    putUtf8(target, string, 0, string.length());
+  }
+
+  /**
+   * Writes the UTF-8 encoding of the characters <code>from</code> (inclusive) to <code>to</code> (exclusive).
+   */
+  public static void putUtf8(@Nonnull final ByteBuffer target, @Nonnull final CharSequence string, final int from, final int to) {
+    for (int i = from; i < to; i += 1) {
+      final char c = string.charAt(i);
+      if (c < 0x80) {
+        target.put((byte) c);
+      } else if (c < 0x800) {
+        target.put((byte) (0xC0 | (c >> 6)));
+        target.put((byte) (0x80 | (c & 0x3F)));
+      } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(string.charAt(i + 1))) {
+        final int codePoint = Character.toCodePoint(c, string.charAt(i + 1));
+        i += 1;
+        target.put((byte) (0xF0 | (codePoint >> 18)));
+        target.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+        target.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        target.put((byte) (0x80 | (codePoint & 0x3F)));
+      } else if (Character.isSurrogate(c)) {
+        target.put((byte) '?');
+      } else {
+        target.put((byte) (0xE0 | (c >> 12)));
+        target.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        target.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+  }
+
+  /**
+   * The number of bytes {@link #putUtf8(ByteBuffer, CharSequence)} would write for the given string.
+   */
+  public static int utf8Length(@Nonnull final CharSequence string) {
+    final int length = string.length();
+    int bytes = 0;
+    for (int i = 0; i < length; i += 1) {
+      final char c = string.charAt(i);
+      if (c < 0x80) {
+        bytes += 1;
+      } else if (c < 0x800) {
+        bytes += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+        bytes += 4;
+        i += 1;
+      } else if (Character.isSurrogate(c)) {
+        bytes += 1;
+      } else {
+        bytes += 3;
+      }
+    }
+    return bytes;
+  }
+
+  public static void putLong(@Nonnull final ByteBuffer target, final long value) {
+    if (value == Long.MIN_VALUE) {
+      target.put(LONG_MIN_VALUE);
+      return;
+    }
+    long v = value;
+    if (v < 0) {
+      target.put((byte) '-');
+      v = -v;
+    }
+    final int length = digits(v);
+    if (target.remaining() < length) {
+      throw new BufferOverflowException();
+    }
+    final int start = target.position();
+    for (int i = start + length - 1; i >= start; i -= 1) {
+      target.put(i, (byte) ('0' + (v % 10)));
+      v /= 10;
+    }
+    target.position(start + length);
+  }
+
+  /**
+   * Writes a double in plain notation with at most {@link #FRACTION_DIGITS} fractional digits and
+   * without trailing zeros (integral values are written without a decimal point).
+   * <p>
+   * This does not allocate unless the value is very large or very small, in which case it falls
+   * back to {@link Double#toString(double)}.
+   */
+  public static void putDouble(@Nonnull final ByteBuffer target, final double value) {
+    final double abs = Math.abs(value);
+    if (Double.isNaN(value) || abs >= MAX_FIXED || abs < MIN_FIXED && abs != 0.0) {
+      putAscii(target, Double.toString(value));
+      return;
+    }
+    if (value < 0) {
+      target.put((byte) '-');
+    }
+    long integral = (long) abs;
+    long fraction = Math.round((abs - integral) * FRACTION_SCALE);
+    if (fraction >= POWERS_OF_TEN[FRACTION_DIGITS]) {
+      integral += 1;
+      fraction = 0;
+    }
+    putLong(target, integral);
+    if (fraction == 0) {
+      return;
+    }
+    int length = FRACTION_DIGITS;
+    while (fraction % 10 == 0) {
+      fraction /= 10;
+      length -= 1;
+    }
+    target.put((byte) '.');
+    if (target.remaining() < length) {
+      throw new BufferOverflowException();
+    }
+    final int start = target.position();
+    for (int i = start + length - 1; i >= start; i -= 1) {
+      target.put(i, (byte) ('0' + (fraction % 10)));
+      fraction /= 10;
+    }
+    target.position(start + length);
+  }
+
+  private static int digits(final long value) {
+    for (int i = 1; i < POWERS_OF_TEN.length; i += 1) {
+      if (value < POWERS_OF_TEN[i]) {
+        return i;
+      }
+    }
+    return POWERS_OF_TEN.length;
+  }
+}
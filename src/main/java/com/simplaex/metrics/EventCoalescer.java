@@ -0,0 +1,158 @@
+package com.simplaex.metrics;
+
+import lombok.EqualsAndHashCode;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Rate limits events per title, level and tags.
+ * <p>
+ * Every such key may send <code>eventsPerWindow</code> events per window; further events are only
+ * counted and, once the window is over, the last one of them is sent with an <code>occurrences</code>
+ * tag holding the number of suppressed events. At most {@link #MAX_KEYS} keys are tracked, events
+ * for other keys are dropped while the table is full and reported as a single summary event.
+ */
+class EventCoalescer {
+
+  static final int MAX_KEYS = 1000;
+
+  static final String OCCURRENCES_TAG = "occurrences";
+
+  @EqualsAndHashCode
+  private static final class Key {
+
+    private final String title;
+    private final Event.Level level;
+    private final List<Metric.Tag> tags;
+
+    Key(@Nonnull final Event event) {
+      this.title = event.getTitle();
+      this.level = event.getLevel();
+      this.tags = new ArrayList<>(event.getTags());
+    }
+  }
+
+  private final class Bucket {
+
+    final AtomicInteger tokens = new AtomicInteger(eventsPerWindow);
+
+    final LongAdder suppressed = new LongAdder();
+
+    volatile Event lastSuppressed;
+
+    volatile boolean seen = true;
+
+    long windowStart;
+
+    Bucket(final long now) {
+      this.windowStart = now;
+    }
+  }
+
+  private final long windowNanos;
+
+  private final int eventsPerWindow;
+
+  private final Map<Key, Bucket> buckets = new ConcurrentHashMap<>();
+
+  private final LongAdder overflowed = new LongAdder();
+
+  @Nonnull
+  private final LongSupplier clock;
+
+  EventCoalescer(@Nonnull final Duration window, final int eventsPerWindow) {
+    this(window, eventsPerWindow, System::nanoTime);
+  }
+
+  /**
+   * @param clock The source of {@link System#nanoTime()}, which windows are measured with.
+   */
+  EventCoalescer(@Nonnull final Duration window, final int eventsPerWindow, @Nonnull final LongSupplier clock) {
+    if (window.isNegative() || window.isZero()) {
+      throw new IllegalArgumentException("window must be positive");
+    }
+    if (eventsPerWindow < 0) {
+      throw new IllegalArgumentException("eventsPerWindow must not be negative");
+    }
+    this.windowNanos = window.toNanos();
+    this.eventsPerWindow = eventsPerWindow;
+    this.clock = clock;
+  }
+
+  /**
+   * @return true if the event should be sent right away.
+   */
+  boolean admit(@Nonnull final Event event) {
+    final Key key = new Key(event);
+    Bucket bucket = buckets.get(key);
+    if (bucket == null) {
+      if (buckets.size() >= MAX_KEYS) {
+        overflowed.increment();
+        return false;
+      }
+      bucket = buckets.computeIfAbsent(key, k -> new Bucket(clock.getAsLong()));
+    }
+    if (!bucket.seen) {
+      bucket.seen = true;
+    }
+    if (bucket.tokens.get() > 0 && bucket.tokens.getAndDecrement() > 0) {
+      return true;
+    }
+    bucket.lastSuppressed = event;
+    bucket.suppressed.increment();
+    return false;
+  }
+
+  /**
+   * Sends summaries for windows which are over and forgets keys which have been quiet for a whole
+   * window. Must only be called from a single thread at a time.
+   */
+  void flush(@Nonnull final Consumer<Event> sink) {
+    final long now = clock.getAsLong();
+    buckets.forEach((key, bucket) -> {
+      if (now - bucket.windowStart < windowNanos) {
+        return;
+      }
+      bucket.windowStart = now;
+      final long suppressed = bucket.suppressed.sumThenReset();
+      final Event last = bucket.lastSuppressed;
+      bucket.lastSuppressed = null;
+      bucket.tokens.set(eventsPerWindow);
+      if (suppressed > 0 && last != null) {
+        sink.accept(withOccurrences(last, suppressed));
+      }
+      if (!bucket.seen) {
+        buckets.remove(key, bucket);
+      }
+      bucket.seen = false;
+    });
+    final long dropped = overflowed.sumThenReset();
+    if (dropped > 0) {
+      sink.accept(withOccurrences(Event.warning(
+        "Events suppressed",
+        "Events with more than " + MAX_KEYS + " distinct titles, levels and tags were dropped"
+      ), dropped));
+    }
+  }
+
+  @Nonnull
+  private static Event withOccurrences(@Nonnull final Event event, final long occurrences) {
+    final List<Metric.Tag> tags = new ArrayList<>(event.getTags().size() + 1);
+    tags.addAll(event.getTags());
+    tags.add(Metric.tag(OCCURRENCES_TAG, occurrences));
+    return new Event(event.getTitle(), event.getMessage(), event.getLevel(), event.getPriority(), tags);
+  }
+
+  int size() {
+    return buckets.size();
+  }
+}
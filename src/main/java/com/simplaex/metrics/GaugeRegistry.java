@@ -0,0 +1,72 @@
+package com.simplaex.metrics;
+
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Gauges which are polled instead of being emitted, see {@link MetricsSender#registerGauge(Metric, Object, ToDoubleFunction)}.
+ * <p>
+ * The objects which are polled are only weakly referenced; once one has been garbage collected its
+ * gauge is removed on the next {@link #sample(Aggregator.Sink)}.
+ */
+@Log4j2
+class GaugeRegistry {
+
+  private static final class Registration<T> {
+
+    final WeakReference<T> target;
+
+    final ToDoubleFunction<? super T> valueFunction;
+
+    Registration(@Nonnull final T target, @Nonnull final ToDoubleFunction<? super T> valueFunction) {
+      this.target = new WeakReference<>(target);
+      this.valueFunction = valueFunction;
+    }
+  }
+
+  private final Map<MetricKey, Registration<?>> gauges = new ConcurrentHashMap<>();
+
+  <T> void register(@Nonnull final MetricKey key, @Nonnull final T target, @Nonnull final ToDoubleFunction<? super T> valueFunction) {
+    gauges.put(key, new Registration<>(target, valueFunction));
+  }
+
+  void unregister(@Nonnull final MetricKey key) {
+    gauges.remove(key);
+  }
+
+  /**
+   * Polls every registered gauge once.
+   */
+  void sample(@Nonnull final Aggregator.Sink sink) {
+    gauges.forEach((key, registration) -> sample(key, registration, sink));
+  }
+
+  private <T> void sample(@Nonnull final MetricKey key, @Nonnull final Registration<T> registration, @Nonnull final Aggregator.Sink sink) {
+    final T target = registration.target.get();
+    if (target == null) {
+      gauges.remove(key, registration);
+      return;
+    }
+    final double value;
+    try {
+      value = registration.valueFunction.applyAsDouble(target);
+    } catch (final Exception exc) {
+      log.error("Could not sample gauge {}", key.getName(), exc);
+      return;
+    }
+    sink.accept(key, value);
+  }
+
+  boolean isEmpty() {
+    return gauges.isEmpty();
+  }
+
+  int size() {
+    return gauges.size();
+  }
+}
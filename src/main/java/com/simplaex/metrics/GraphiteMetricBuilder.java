@@ -0,0 +1,166 @@
+package com.simplaex.metrics;
+
+import javax.annotation.Nonnull;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Builds and encodes lines in the Graphite plaintext format, with tags as supported by Graphite 1.1:
+ * <code>name;tag=value;... value timestamp</code>, with the timestamp in seconds.
+ * <p>
+ * Graphite does not know about sample rates, so sampled counters are scaled up by the sample rate.
+ * Events are sent as a counter named <code>events</code>, tagged with their level and title.
+ * Spaces, <code>;</code> and newlines as well as <code>=</code> in names and a leading <code>~</code>
+ * in tag values are replaced by <code>_</code>.
+ * <p>
+ * Constant tags (see {@link #withConstantTags(Collection)}) are encoded once and appended to the tags
+ * of every line.
+ */
+public class GraphiteMetricBuilder implements MetricBuilder, MetricEncoder {
+
+  private static final String EVENTS = "events";
+
+  private final List<Metric.Tag> constantTags;
+
+  /**
+   * <code>;a=b;c=d</code> followed by the space before the value.
+   */
+  private final byte[] constantTagsAndSpace;
+
+  public GraphiteMetricBuilder() {
+    this(Collections.emptyList());
+  }
+
+  public GraphiteMetricBuilder(@Nonnull final Collection<Metric.Tag> constantTags) {
+    this.constantTags = Collections.unmodifiableList(new ArrayList<>(constantTags));
+    final StringBuilder b = new StringBuilder();
+    appendTags(b, constantTags);
+    b.append(' ');
+    this.constantTagsAndSpace = b.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Nonnull
+  @Override
+  public MetricBuilder withConstantTags(@Nonnull final Collection<Metric.Tag> moreTags) {
+    final List<Metric.Tag> tags = new ArrayList<>(constantTags);
+    tags.addAll(moreTags);
+    return new GraphiteMetricBuilder(tags);
+  }
+
+  @Nonnull
+  private static byte[] prefix(@Nonnull final MetricKey key) {
+    final StringBuilder b = new StringBuilder();
+    appendSeries(b, key.getName(), key.getTags());
+    return b.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void appendSeries(@Nonnull final StringBuilder b, @Nonnull final String name, @Nonnull final Collection<Metric.Tag> tags) {
+    appendSanitized(b, name, true);
+    appendTags(b, tags);
+  }
+
+  private static void appendTags(@Nonnull final StringBuilder b, @Nonnull final Collection<Metric.Tag> tags) {
+    for (final Metric.Tag tag : tags) {
+      b.append(';');
+      appendSanitized(b, tag.getName(), true);
+      b.append('=');
+      final int start = b.length();
+      appendSanitized(b, tag.getValue(), false);
+      if (b.length() > start && b.charAt(start) == '~') {
+        b.setCharAt(start, '_');
+      }
+    }
+  }
+
+  private static void appendSanitized(@Nonnull final StringBuilder b, @Nonnull final String string, final boolean isName) {
+    for (int i = 0; i < string.length(); i += 1) {
+      final char c = string.charAt(i);
+      b.append(c == ' ' || c == ';' || c == '\n' || c == '=' && isName ? '_' : c);
+    }
+  }
+
+  static double scaled(@Nonnull final Metric.Kind kind, final double sampleRate, final double value) {
+    return kind == Metric.Kind.COUNTER && sampleRate > 0 && sampleRate < 1.0 ? value / sampleRate : value;
+  }
+
+  @Nonnull
+  @Override
+  public String build(
+    @Nonnull final String metricName,
+    @Nonnull final Metric.Kind kind,
+    final double sampleRate,
+    final double value,
+    @Nonnull final Collection<Metric.Tag> tags
+  ) {
+    return build(buffer -> encode(buffer, metricName, kind, sampleRate, value, tags));
+  }
+
+  @Nonnull
+  @Override
+  public String build(@Nonnull final Event event) {
+    return build(buffer -> encode(buffer, event));
+  }
+
+  @Nonnull
+  private static String build(@Nonnull final Consumer<ByteBuffer> encode) {
+    ByteBuffer buffer = ScratchBuffer.get();
+    while (true) {
+      try {
+        encode.accept(buffer);
+        return new String(buffer.array(), buffer.arrayOffset(), buffer.position(), StandardCharsets.UTF_8);
+      } catch (final BufferOverflowException exc) {
+        buffer = ScratchBuffer.grow(buffer);
+      }
+    }
+  }
+
+  @Override
+  public void encode(
+    @Nonnull final ByteBuffer target,
+    @Nonnull final MetricKey key,
+    final double sampleRate,
+    final double value
+  ) {
+    target.put(key.encoded(GraphiteMetricBuilder.class, GraphiteMetricBuilder::prefix));
+    target.put(constantTagsAndSpace);
+    putValue(target, scaled(key.getKind(), sampleRate, value));
+  }
+
+  @Override
+  public void encode(
+    @Nonnull final ByteBuffer target,
+    @Nonnull final String metricName,
+    @Nonnull final Metric.Kind kind,
+    final double sampleRate,
+    final double value,
+    @Nonnull final Collection<Metric.Tag> tags
+  ) {
+    final StringBuilder b = new StringBuilder();
+    appendSeries(b, metricName, tags);
+    Encoding.putUtf8(target, b);
+    target.put(constantTagsAndSpace);
+    putValue(target, scaled(kind, sampleRate, value));
+  }
+
+  @Override
+  public void encode(@Nonnull final ByteBuffer target, @Nonnull final Event event) {
+    final List<Metric.Tag> tags = new ArrayList<>(event.getTags().size() + 2);
+    tags.add(Metric.tag("level", event.getLevel().toString().toLowerCase()));
+    tags.add(Metric.tag("title", event.getTitle() == null ? "" : event.getTitle()));
+    tags.addAll(event.getTags());
+    encode(target, EVENTS, Metric.Kind.COUNTER, 1.0, 1.0, tags);
+  }
+
+  private static void putValue(@Nonnull final ByteBuffer target, final double value) {
+    Encoding.putDouble(target, value);
+    target.put((byte) ' ');
+    Encoding.putLong(target, System.currentTimeMillis() / 1000);
+    target.put((byte) '\n');
+  }
+}
@@ -1,30 +1,237 @@
 package com.simplaex.metrics;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
 
+/**
+ * Keeps the current value of every series in memory.
+ * <p>
+ * Counters are summed exactly, like <code>BigDecimal</code>s: whole increments (the common case) go
+ * into a striped adder, fractional ones are added to a <code>BigDecimal</code> under the counter's
+ * lock. Sets count their distinct values (since the last {@link #reset()}) in a {@link HyperLogLog}
+ * and gauges and timings keep their last value. Once a series has been seen, emitting a whole
+ * increment or a gauge does not lock and does not allocate.
+ * <p>
+ * Series are kept by their name in {@link #getValues()}, so metrics with the same name and tags but
+ * another sample rate (or kind) are recorded into the same series, which is of the kind of the first one.
+ * <p>
+ * {@link #getValues()} is a live view in which every value is read when it is accessed.
+ * {@link #snapshot()} is a consistent copy: emitters are held off while it is taken, so it contains
+ * every value emitted before and none emitted after one point in time. Polled gauges are sampled whenever values are read.
+ * <p>
+ * The number of tag combinations per metric name can be bounded, see {@link #InMemoryMetrics(int)}.
+ */
 public class InMemoryMetrics<M extends Metric<M>> implements MetricsSender<M> {
 
-  private final Map<String, BigDecimal> values = new ConcurrentHashMap<>();
+  private abstract static class Cell {
+
+    /**
+     * The key of the first metric recorded into this cell.
+     */
+    final MetricKey key;
+
+    /**
+     * Whether metrics with other keys are recorded into this cell, too.
+     */
+    volatile boolean shared = false;
+
+    Cell(@Nonnull final MetricKey key) {
+      this.key = key;
+    }
+
+    abstract void record(double value);
+
+    @Nonnull
+    abstract BigDecimal get();
+  }
+
+  private static final class CounterCell extends Cell {
+
+    /**
+     * Whole increments below this are exact as a long and are written by {@link Double#toString(double)}
+     * (which is what <code>BigDecimal.valueOf</code> uses) with exactly one decimal place.
+     */
+    private static final double WHOLE_LIMIT = 1e7;
+
+    private final LongAdder whole = new LongAdder();
+
+    /**
+     * Guarded by the cell's monitor.
+     */
+    private BigDecimal fractional = BigDecimal.ZERO;
+
+    CounterCell(@Nonnull final MetricKey key) {
+      super(key);
+    }
+
+    @Override
+    void record(final double value) {
+      if (Math.abs(value) < WHOLE_LIMIT && value == Math.rint(value)) {
+        whole.add((long) value);
+      } else {
+        final BigDecimal increment = BigDecimal.valueOf(value);
+        synchronized (this) {
+          fractional = fractional.add(increment);
+        }
+      }
+    }
+
+    @Nonnull
+    @Override
+    BigDecimal get() {
+      final BigDecimal rest;
+      synchronized (this) {
+        rest = fractional;
+      }
+      // the same scale as the sum of BigDecimal.valueOf(double) of whole numbers
+      return BigDecimal.valueOf(whole.sum()).setScale(1).add(rest);
+    }
+  }
+
+  private static final class GaugeCell extends Cell {
+
+    private volatile double last;
+
+    GaugeCell(@Nonnull final MetricKey key) {
+      super(key);
+    }
+
+    @Override
+    void record(final double value) {
+      last = value;
+    }
+
+    @Nonnull
+    @Override
+    BigDecimal get() {
+      return BigDecimal.valueOf(last);
+    }
+  }
+
+  private static final class SetCell extends Cell {
+
+    private final HyperLogLog members = new HyperLogLog();
+
+    SetCell(@Nonnull final MetricKey key) {
+      super(key);
+    }
+
+    @Override
+    void record(final double value) {
+      members.add(value);
+    }
+
+    @Nonnull
+    @Override
+    BigDecimal get() {
+      return BigDecimal.valueOf(members.estimate());
+    }
+  }
+
+  /**
+   * Emitters register in one of these counters (padded to a cache line each) while recording.
+   */
+  private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+
+  private static final int PADDING = 8;
+
+  private final AtomicLongArray emitting = new AtomicLongArray(STRIPES * PADDING);
+
+  private volatile boolean holdingOff = false;
+
+  private final Object exclusiveLock = new Object();
+
+  /**
+   * The cells by the keys which have been recorded into them, several keys may share one cell.
+   */
+  private final Map<MetricKey, Cell> values = new ConcurrentHashMap<>();
+
+  /**
+   * The cells by their names in {@link #getValues()}.
+   */
+  private final Map<String, Cell> names = new ConcurrentHashMap<>();
+
+  private final Map<String, BigDecimal> view = new ValuesView();
 
   private final List<Event> events = Collections.synchronizedList(new ArrayList<>());
 
+  private final GaugeRegistry gauges = new GaugeRegistry();
+
+  @Nullable
+  private final CardinalityLimiter cardinalityLimiter;
+
+  public InMemoryMetrics() {
+    this.cardinalityLimiter = null;
+  }
+
+  /**
+   * Keeps at most <code>maxSeriesPerMetric</code> combinations of tags per metric name, further
+   * combinations are folded into one with all tag values set to <code>other</code>. Combinations which
+   * have not been emitted for a while are evicted.
+   */
+  public InMemoryMetrics(final int maxSeriesPerMetric) {
+    this.cardinalityLimiter = new CardinalityLimiter(maxSeriesPerMetric, CardinalityLimiter.EVICT_AFTER, this::remove);
+  }
+
+  private void sampleGauges() {
+    if (!gauges.isEmpty()) {
+      gauges.sample(this::record);
+    }
+  }
+
+  /**
+   * The current values, keyed by the metric name followed by <code>,name=value</code> for every tag.
+   * <p>
+   * This is an unmodifiable live view: values are read when they are accessed, and series which are
+   * emitted later show up in it. Polled gauges are sampled when this method is called.
+   */
   public Map<String, BigDecimal> getValues() {
-    return Collections.unmodifiableMap(values);
+    sampleGauges();
+    return view;
+  }
+
+  /**
+   * A consistent copy of the current values.
+   */
+  @Nonnull
+  public Map<MetricKey, BigDecimal> snapshot() {
+    sampleGauges();
+    final Map<MetricKey, BigDecimal> result = new HashMap<>();
+    exclusive(() -> names.values().forEach(cell -> result.put(cell.key, cell.get())));
+    return Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * The current value of the given series, 0 if nothing has been emitted for it.
+   */
+  public double getValue(@Nonnull final Metric<M> metric) {
+    sampleGauges();
+    final Cell cell = names.get(metricName(MetricKey.of(metric)));
+    return cell == null ? 0.0 : cell.get().doubleValue();
   }
 
   public List<Event> getEvents() {
     return Collections.unmodifiableList(events);
   }
 
-  private String metricName(final Metric<?> metric) {
-    final StringBuilder b = new StringBuilder(metric.getName());
-    metric.getTags().forEach(tag -> {
+  private static String metricName(final MetricKey key) {
+    final StringBuilder b = new StringBuilder(key.getName());
+    key.getTags().forEach(tag -> {
       b.append(',');
       b.append(tag.getName());
       b.append('=');
@@ -35,24 +242,187 @@ public class InMemoryMetrics<M extends Metric<M>> implements MetricsSender<M> {
 
   @Override
   public void emit(@Nonnull final Metric<M> metric, final double value) {
-    switch (metric.getKind()) {
-      case GAUGE:
-      case TIMING:
-        values.put(metricName(metric), BigDecimal.valueOf(value));
-        break;
-      case COUNTER:
-        values.compute(metricName(metric), (k, v) -> (v == null ? BigDecimal.ZERO : v).add(BigDecimal.valueOf(value)));
-        break;
+    final MetricKey key = MetricKey.of(metric);
+    record(cardinalityLimiter == null ? key : cardinalityLimiter.limit(key), value);
+  }
+
+  @Nonnull
+  @Override
+  public Map<String, Long> getCappedMetrics() {
+    return cardinalityLimiter == null ? Collections.emptyMap() : cardinalityLimiter.getCapped();
+  }
+
+  private void record(@Nonnull final MetricKey key, final double value) {
+    final int stripe = enter();
+    try {
+      Cell cell = values.get(key);
+      if (cell == null) {
+        cell = values.computeIfAbsent(key, this::newCell);
+      }
+      cell.record(value);
+    } finally {
+      emitting.decrementAndGet(stripe);
     }
   }
 
+  /**
+   * Registers the calling thread as emitting, waiting while values are read exclusively.
+   *
+   * @return the index to decrement once done.
+   */
+  private int enter() {
+    final int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+    while (true) {
+      emitting.incrementAndGet(stripe);
+      // pairs with exclusive(), which sets the flag before it waits for emitters to leave
+      if (!holdingOff) {
+        return stripe;
+      }
+      emitting.decrementAndGet(stripe);
+      synchronized (exclusiveLock) {
+        // wait for the exclusive section to end
+      }
+    }
+  }
+
+  /**
+   * Runs the given action while no value is being recorded.
+   */
+  private void exclusive(@Nonnull final Runnable action) {
+    synchronized (exclusiveLock) {
+      holdingOff = true;
+      try {
+        for (int i = 0; i < STRIPES; i += 1) {
+          while (emitting.get(i * PADDING) != 0) {
+            Thread.yield();
+          }
+        }
+        action.run();
+      } finally {
+        holdingOff = false;
+      }
+    }
+  }
+
+  @Nonnull
+  private Cell newCell(@Nonnull final MetricKey key) {
+    final Cell cell = names.computeIfAbsent(metricName(key), name -> {
+      switch (key.getKind()) {
+        case COUNTER:
+          return new CounterCell(key);
+        case SET:
+          return new SetCell(key);
+        default:
+          return new GaugeCell(key);
+      }
+    });
+    if (cell.key != key) {
+      cell.shared = true;
+    }
+    return cell;
+  }
+
+  private void remove(@Nonnull final MetricKey key) {
+    final Cell cell = values.remove(key);
+    if (cell == null) {
+      return;
+    }
+    names.remove(metricName(key), cell);
+    if (cell.shared) {
+      // the other keys recorded into the same cell start over with a new one, too
+      values.values().removeIf(other -> other == cell);
+    }
+  }
+
+  @Override
+  public <T> void registerGauge(
+    @Nonnull final Metric<M> metric,
+    @Nonnull final T target,
+    @Nonnull final ToDoubleFunction<? super T> valueFunction
+  ) {
+    gauges.register(MetricKey.of(metric), target, valueFunction);
+  }
+
+  @Override
+  public void unregisterGauge(@Nonnull final Metric<M> metric) {
+    gauges.unregister(MetricKey.of(metric));
+  }
+
   @Override
   public void emit(@Nonnull final Event event) {
     events.add(event);
   }
 
   public void reset() {
-    values.clear();
+    exclusive(() -> {
+      values.clear();
+      names.clear();
+    });
     events.clear();
   }
+
+  private final class ValuesView extends AbstractMap<String, BigDecimal> {
+
+    @Nullable
+    private Cell cell(@Nullable final Object name) {
+      return name == null ? null : names.get(name);
+    }
+
+    @Override
+    public BigDecimal get(final Object name) {
+      final Cell cell = cell(name);
+      return cell == null ? null : cell.get();
+    }
+
+    @Override
+    public boolean containsKey(final Object name) {
+      return cell(name) != null;
+    }
+
+    @Override
+    public int size() {
+      return names.size();
+    }
+
+    @Nonnull
+    @Override
+    public Set<Entry<String, BigDecimal>> entrySet() {
+      return new AbstractSet<Entry<String, BigDecimal>>() {
+        @Override
+        public int size() {
+          return names.size();
+        }
+
+        @Nonnull
+        @Override
+        public Iterator<Entry<String, BigDecimal>> iterator() {
+          final Iterator<Entry<String, Cell>> cells = names.entrySet().iterator();
+          return new Iterator<Entry<String, BigDecimal>>() {
+
+            @Nullable
+            private Entry<String, BigDecimal> next;
+
+            @Override
+            public boolean hasNext() {
+              if (next == null && cells.hasNext()) {
+                final Entry<String, Cell> entry = cells.next();
+                next = new SimpleImmutableEntry<>(entry.getKey(), entry.getValue().get());
+              }
+              return next != null;
+            }
+
+            @Override
+            public Entry<String, BigDecimal> next() {
+              if (!hasNext()) {
+                throw new NoSuchElementException();
+              }
+              final Entry<String, BigDecimal> result = next;
+              next = null;
+              return result;
+            }
+          };
+        }
+      };
+    }
+  }
 }
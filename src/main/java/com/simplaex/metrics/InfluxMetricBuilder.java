@@ -0,0 +1,199 @@
+package com.simplaex.metrics;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Builds and encodes lines in the InfluxDB line protocol:
+ * <code>name,tag=value,... value=1.5 timestamp</code>, with the timestamp in nanoseconds (at
+ * millisecond precision). Tags are sorted by name, as recommended by InfluxDB.
+ * <p>
+ * Sampled counters are scaled up by the sample rate. Events are sent to the measurement
+ * <code>events</code>, tagged with their level, with their title and text as string fields.
+ * Commas, spaces and <code>=</code> in names and tags are escaped; newlines, which the line protocol
+ * does not support, are replaced by <code>_</code>.
+ * <p>
+ * Constant tags (see {@link #withConstantTags(Collection)}) are encoded once and appended to the tags
+ * of every line, they are therefore not sorted together with the tags of the line.
+ */
+public class InfluxMetricBuilder implements MetricBuilder, MetricEncoder {
+
+  private static final String EVENTS = "events";
+
+  private static final byte[] VALUE_FIELD = " value=".getBytes(StandardCharsets.US_ASCII);
+
+  private final List<Metric.Tag> constantTags;
+
+  /**
+   * <code>,a=b,c=d</code>, empty if there are no constant tags.
+   */
+  private final byte[] encodedConstantTags;
+
+  public InfluxMetricBuilder() {
+    this(Collections.emptyList());
+  }
+
+  public InfluxMetricBuilder(@Nonnull final Collection<Metric.Tag> constantTags) {
+    this.constantTags = Collections.unmodifiableList(new ArrayList<>(constantTags));
+    final StringBuilder b = new StringBuilder();
+    appendTags(b, constantTags);
+    this.encodedConstantTags = b.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Nonnull
+  @Override
+  public MetricBuilder withConstantTags(@Nonnull final Collection<Metric.Tag> moreTags) {
+    final List<Metric.Tag> tags = new ArrayList<>(constantTags);
+    tags.addAll(moreTags);
+    return new InfluxMetricBuilder(tags);
+  }
+
+  @Nonnull
+  private static byte[] prefix(@Nonnull final MetricKey key) {
+    final StringBuilder b = new StringBuilder();
+    appendSeries(b, key.getName(), key.getTags());
+    return b.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void appendSeries(@Nonnull final StringBuilder b, @Nonnull final String name, @Nonnull final Collection<Metric.Tag> tags) {
+    appendEscaped(b, name, false);
+    appendTags(b, tags);
+  }
+
+  private static void appendTags(@Nonnull final StringBuilder b, @Nonnull final Collection<Metric.Tag> tags) {
+    final List<Metric.Tag> sorted = new ArrayList<>(tags);
+    sorted.sort(Comparator.comparing(Metric.Tag::getName));
+    for (final Metric.Tag tag : sorted) {
+      b.append(',');
+      appendEscaped(b, tag.getName(), true);
+      b.append('=');
+      appendEscaped(b, tag.getValue(), true);
+    }
+  }
+
+  /**
+   * Measurement names need commas and spaces escaped, tag names and values also <code>=</code>.
+   */
+  private static void appendEscaped(@Nonnull final StringBuilder b, @Nonnull final String string, final boolean isTag) {
+    for (int i = 0; i < string.length(); i += 1) {
+      final char c = string.charAt(i);
+      if (c == ',' || c == ' ' || c == '=' && isTag) {
+        b.append('\\');
+      }
+      b.append(c == '\n' ? '_' : c);
+    }
+  }
+
+  private static void appendStringField(@Nonnull final StringBuilder b, @Nonnull final String name, @Nullable final String value) {
+    b.append(name).append("=\"");
+    final String string = value == null ? "" : value;
+    for (int i = 0; i < string.length(); i += 1) {
+      final char c = string.charAt(i);
+      if (c == '"' || c == '\\') {
+        b.append('\\');
+      }
+      b.append(c == '\n' ? ' ' : c);
+    }
+    b.append('"');
+  }
+
+  @Nonnull
+  @Override
+  public String build(
+    @Nonnull final String metricName,
+    @Nonnull final Metric.Kind kind,
+    final double sampleRate,
+    final double value,
+    @Nonnull final Collection<Metric.Tag> tags
+  ) {
+    return build(buffer -> encode(buffer, metricName, kind, sampleRate, value, tags));
+  }
+
+  @Nonnull
+  @Override
+  public String build(@Nonnull final Event event) {
+    return build(buffer -> encode(buffer, event));
+  }
+
+  @Nonnull
+  private static String build(@Nonnull final Consumer<ByteBuffer> encode) {
+    ByteBuffer buffer = ScratchBuffer.get();
+    while (true) {
+      try {
+        encode.accept(buffer);
+        return new String(buffer.array(), buffer.arrayOffset(), buffer.position(), StandardCharsets.UTF_8);
+      } catch (final BufferOverflowException exc) {
+        buffer = ScratchBuffer.grow(buffer);
+      }
+    }
+  }
+
+  @Override
+  public void encode(
+    @Nonnull final ByteBuffer target,
+    @Nonnull final MetricKey key,
+    final double sampleRate,
+    final double value
+  ) {
+    target.put(key.encoded(InfluxMetricBuilder.class, InfluxMetricBuilder::prefix));
+    target.put(encodedConstantTags);
+    putValue(target, GraphiteMetricBuilder.scaled(key.getKind(), sampleRate, value));
+  }
+
+  @Override
+  public void encode(
+    @Nonnull final ByteBuffer target,
+    @Nonnull final String metricName,
+    @Nonnull final Metric.Kind kind,
+    final double sampleRate,
+    final double value,
+    @Nonnull final Collection<Metric.Tag> tags
+  ) {
+    final StringBuilder b = new StringBuilder();
+    appendSeries(b, metricName, tags);
+    Encoding.putUtf8(target, b);
+    target.put(encodedConstantTags);
+    putValue(target, GraphiteMetricBuilder.scaled(kind, sampleRate, value));
+  }
+
+  @Override
+  public void encode(@Nonnull final ByteBuffer target, @Nonnull final Event event) {
+    final List<Metric.Tag> tags = new ArrayList<>(event.getTags().size() + 1);
+    tags.add(Metric.tag("level", event.getLevel().toString().toLowerCase()));
+    tags.addAll(event.getTags());
+    final StringBuilder b = new StringBuilder();
+    appendSeries(b, EVENTS, tags);
+    Encoding.putUtf8(target, b);
+    target.put(encodedConstantTags);
+    b.setLength(0);
+    b.append(' ');
+    appendStringField(b, "title", event.getTitle());
+    b.append(',');
+    appendStringField(b, "text", event.getMessage());
+    b.append(' ');
+    Encoding.putUtf8(target, b);
+    putTimestamp(target);
+  }
+
+  private static void putValue(@Nonnull final ByteBuffer target, final double value) {
+    target.put(VALUE_FIELD);
+    Encoding.putDouble(target, value);
+    target.put((byte) ' ');
+    putTimestamp(target);
+  }
+
+  private static void putTimestamp(@Nonnull final ByteBuffer target) {
+    Encoding.putLong(target, TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()));
+    target.put((byte) '\n');
+  }
+}
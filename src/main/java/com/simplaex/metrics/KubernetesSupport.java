@@ -17,8 +17,15 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -49,6 +56,10 @@ import java.util.regex.Pattern;
  *    <dd>The regular expression which extracts the hostIP form the reponse of the API server.
  *    Defaults to <code>"hostIP"[^,"]+"([^"]+)"</code></dd>
  * </dl>
+ * <p>
+ * All network calls and the <code>hostname</code> command are subject to strict timeouts (see
+ * {@link #METADATA_TIMEOUT} and {@link #API_TIMEOUT}) so that this fails fast when not running on
+ * AWS or Kubernetes.
  *
  * @author Julian Fleischer
  */
@@ -65,6 +76,87 @@ public class KubernetesSupport {
     .ofNullable(System.getenv("KUBERNETES_SERVICEACCOUNT_SECRETS_PATH"))
     .orElse("/var/run/secrets/kubernetes.io/serviceaccount");
 
+  /**
+   * Connect and read timeout for the instance metadata service, which is link-local and answers
+   * within milliseconds if it exists at all.
+   */
+  public static final Duration METADATA_TIMEOUT = Duration.ofMillis(500);
+
+  /**
+   * Connect and read timeout for the Kubernetes API server, also used for the <code>hostname</code> command.
+   */
+  public static final Duration API_TIMEOUT = Duration.ofSeconds(3);
+
+  /**
+   * Tags which identify this process, to be used as constant tags of a sender (see
+   * {@link AbstractMetricSender.Options#getConstantTags()}):
+   * <ul>
+   *   <li>the tags in <code>DD_TAGS</code> (<code>name:value</code>, separated by spaces or commas),</li>
+   *   <li><code>env</code>, <code>service</code> and <code>version</code> from <code>DD_ENV</code>,
+   *   <code>DD_SERVICE</code> and <code>DD_VERSION</code>,</li>
+   *   <li><code>dd.internal.entity_id</code> from <code>DD_ENTITY_ID</code> (the pod's uid, which the agent
+   *   uses to add the tags of the pod),</li>
+   *   <li><code>kube_namespace</code> and <code>pod_name</code> (from <code>HOSTNAME</code>) when running
+   *   on Kubernetes.</li>
+   * </ul>
+   * This neither makes network calls nor fails, tags which can not be determined are left out.
+   */
+  @Nonnull
+  public static List<Metric.Tag> getConstantTags() {
+    return getConstantTags(System::getenv, KubernetesSupport::findKubernetesNamespace);
+  }
+
+  @Nonnull
+  static List<Metric.Tag> getConstantTags(
+    @Nonnull final Function<String, String> env,
+    @Nonnull final Supplier<Optional<String>> namespace
+  ) {
+    final List<Metric.Tag> tags = new ArrayList<>();
+    final String ddTags = env.apply("DD_TAGS");
+    if (ddTags != null) {
+      for (final String tag : ddTags.split("[\\s,]+")) {
+        final int colon = tag.indexOf(':');
+        if (colon > 0) {
+          tags.add(Metric.tag(tag.substring(0, colon), tag.substring(colon + 1)));
+        }
+      }
+    }
+    addTagFromEnv(tags, env, "env", "DD_ENV");
+    addTagFromEnv(tags, env, "service", "DD_SERVICE");
+    addTagFromEnv(tags, env, "version", "DD_VERSION");
+    addTagFromEnv(tags, env, "dd.internal.entity_id", "DD_ENTITY_ID");
+    namespace.get().ifPresent(ns -> {
+      tags.add(Metric.tag("kube_namespace", ns));
+      addTagFromEnv(tags, env, "pod_name", "HOSTNAME");
+    });
+    return tags;
+  }
+
+  private static void addTagFromEnv(
+    @Nonnull final List<Metric.Tag> tags,
+    @Nonnull final Function<String, String> env,
+    @Nonnull final String tagName,
+    @Nonnull final String variable
+  ) {
+    final String value = env.apply(variable);
+    if (value != null && !value.trim().isEmpty()) {
+      tags.add(Metric.tag(tagName, value.trim()));
+    }
+  }
+
+  @Nonnull
+  private static Optional<String> findKubernetesNamespace() {
+    if (!Files.isReadable(Paths.get(KUBERNETES_SERVICEACCOUNT, "namespace"))) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(getKubernetesNamespace().trim()).filter(ns -> !ns.isEmpty());
+    } catch (final RuntimeException exc) {
+      log.warn("Could not read the Kubernetes namespace", exc);
+      return Optional.empty();
+    }
+  }
+
   /**
    * Get the namespace of the pod from the kubernetes serviceaccount secret.
    */
@@ -113,9 +205,12 @@ public class KubernetesSupport {
     }
     try {
       final Process hostnamePs = Runtime.getRuntime().exec("hostname");
-      hostnamePs.waitFor();
-      final String hostnameFromPs = new java.util.Scanner(hostnamePs.getInputStream()).useDelimiter("\\A").next();
-      log.info("Determined hostname via `hostname` command ({})", hostname);
+      if (!hostnamePs.waitFor(API_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+        hostnamePs.destroyForcibly();
+        throw new TimeoutException("`hostname` did not finish within " + API_TIMEOUT);
+      }
+      final String hostnameFromPs = new java.util.Scanner(hostnamePs.getInputStream()).useDelimiter("\\A").next().trim();
+      log.info("Determined hostname via `hostname` command ({})", hostnameFromPs);
       return hostnameFromPs;
     } catch (final Exception exc) {
       throw new RuntimeException(exc);
@@ -130,7 +225,10 @@ public class KubernetesSupport {
   public static String getInstanceIp() throws Exception {
     final String url = Optional.ofNullable(System.getenv("INSTANCE_METADATA_LOCAL_IPV4_URL"))
       .orElse("http://169.254.169.254/latest/meta-data/local-ipv4");
-    return new Scanner(new URL(url).openConnection().getInputStream()).next("\\A");
+    final URLConnection conn = new URL(url).openConnection();
+    conn.setConnectTimeout((int) METADATA_TIMEOUT.toMillis());
+    conn.setReadTimeout((int) METADATA_TIMEOUT.toMillis());
+    return new Scanner(conn.getInputStream()).useDelimiter("\\A").next().trim();
   }
 
   /**
@@ -153,8 +251,10 @@ public class KubernetesSupport {
       final String token = getKubernetesToken();
       final String uri = String.format(
         "https://%s:%s/api/v1/namespaces/%s/pods/%s", kubeHost, kubePort, namespace, hostname);
-      log.info("Querying pod details from uri={} using token={}", uri, token);
+      log.info("Querying pod details from uri={}", uri);
       final URLConnection conn = new URL(uri).openConnection();
+      conn.setConnectTimeout((int) API_TIMEOUT.toMillis());
+      conn.setReadTimeout((int) API_TIMEOUT.toMillis());
       if (conn instanceof HttpsURLConnection) {
         final SSLContext sc = SSLContext.getInstance("SSL");
         sc.init(null, new TrustManager[]{
@@ -181,8 +281,8 @@ public class KubernetesSupport {
       final Matcher m = Pattern.compile(regex).matcher(apiResponse);
       log.debug("Response from Kubernetes API: {}", apiResponse);
       if (!m.find()) {
-        log.error("Could not find regex={} (can be set via KUBERNETES_HOSTIP_REGEX) in API response", regex);
-        return "";
+        throw new IllegalStateException(
+          "Could not find regex=" + regex + " (can be set via KUBERNETES_HOSTIP_REGEX) in API response");
       }
       return m.group(1);
     } catch (final Exception exc) {
@@ -20,47 +20,12 @@ public interface Metric<M extends Metric> {
     return 1.0;
   }
 
+  /**
+   * This metric with an additional tag. The metric itself is not modified.
+   */
   @Nonnull
   default Metric<M> withTag(@Nonnull final String key, @Nullable final Object value) {
-    return new Metric<M>() {
-
-      private final List<Tag> tags = new ArrayList<>(5);
-
-      {
-        tags.add(tag(key, value));
-      }
-
-      @Nonnull
-      @Override
-      public String getName() {
-        return Metric.this.getName();
-      }
-
-      @Nonnull
-      @Override
-      public Kind getKind() {
-        return Metric.this.getKind();
-      }
-
-      @Nonnegative
-      @Override
-      public double getSampleRate() {
-        return Metric.this.getSampleRate();
-      }
-
-      @Override
-      @Nonnull
-      public Metric<M> withTag(@Nonnull final String tagName, @Nullable final Object value1) {
-        tags.add(tag(tagName, value1));
-        return this;
-      }
-
-      @Override
-      @Nonnull
-      public List<Tag> getTags() {
-        return tags;
-      }
-    };
+    return new TaggedMetric<>(this, tag(key, value));
   }
 
   @Value
@@ -72,7 +37,19 @@ public interface Metric<M extends Metric> {
   enum Kind {
     GAUGE,
     COUNTER,
-    TIMING
+    TIMING,
+    /**
+     * Counts distinct values (e.g. user ids, see {@link MetricsSender#emit(Metric, String)}). Sets are
+     * always aggregated on the client in a {@link HyperLogLog} per series and sent as a gauge holding
+     * the number of distinct values per flush interval.
+     */
+    SET,
+    /**
+     * Like {@link #TIMING}, but aggregated by the agent's backend across all hosts (dogstatsd
+     * <code>|d</code>), so that percentiles are global. When aggregating on the client, samples are
+     * packed into multi-value lines instead of being summarised.
+     */
+    DISTRIBUTION
   }
 
   static Tag tag(@Nonnull final String tagName, @Nullable final Object value) {
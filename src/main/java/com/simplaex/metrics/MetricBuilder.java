@@ -17,4 +17,14 @@ public interface MetricBuilder {
   String build(
     @Nonnull final Event event
   );
+
+  /**
+   * A builder which adds the given tags after the tags of every line and event, see
+   * {@link AbstractMetricSender.Options#getConstantTags()}. By default the tags are merged into the
+   * tags of every call; builders which encode lines themselves encode them only once instead.
+   */
+  @Nonnull
+  default MetricBuilder withConstantTags(@Nonnull final Collection<Metric.Tag> constantTags) {
+    return new ConstantTagsMetricBuilder(this, constantTags);
+  }
 }
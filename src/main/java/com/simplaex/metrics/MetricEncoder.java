@@ -0,0 +1,62 @@
+package com.simplaex.metrics;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * Byte-level counterpart of {@link MetricBuilder}: writes a complete line (including the trailing
+ * newline) directly into a caller supplied buffer instead of building a <code>String</code>.
+ * <p>
+ * Implementations must not allocate on the hot path. If the line does not fit into the remaining
+ * space of <code>target</code> a {@link java.nio.BufferOverflowException} is thrown and the position
+ * of <code>target</code> is undefined; callers are expected to retry with a larger buffer.
+ */
+public interface MetricEncoder {
+
+  void encode(
+    @Nonnull ByteBuffer target,
+    @Nonnull String metricName,
+    @Nonnull Metric.Kind kind,
+    double sampleRate,
+    double value,
+    @Nonnull Collection<Metric.Tag> tags
+  );
+
+  /**
+   * Encodes a value for an interned {@link MetricKey}. Implementations should cache the encoded
+   * name and tags of the key (see {@link MetricKey#encoded}) so that only the value and the sample
+   * rate need to be formatted per call.
+   */
+  default void encode(
+    @Nonnull final ByteBuffer target,
+    @Nonnull final MetricKey key,
+    final double sampleRate,
+    final double value
+  ) {
+    encode(target, key.getName(), key.getKind(), sampleRate, value, key.getTags());
+  }
+
+  /**
+   * Encodes the values <code>from</code> (inclusive) to <code>to</code> (exclusive) of a series which
+   * were sampled at the given rate. Formats which support it write a single multi-value line, by
+   * default every value gets a line of its own.
+   */
+  default void encode(
+    @Nonnull final ByteBuffer target,
+    @Nonnull final MetricKey key,
+    final double sampleRate,
+    @Nonnull final double[] values,
+    final int from,
+    final int to
+  ) {
+    for (int i = from; i < to; i += 1) {
+      encode(target, key, sampleRate, values[i]);
+    }
+  }
+
+  void encode(
+    @Nonnull ByteBuffer target,
+    @Nonnull Event event
+  );
+}
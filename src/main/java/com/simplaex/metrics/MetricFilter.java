@@ -0,0 +1,194 @@
+package com.simplaex.metrics;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Drops, renames and re-tags metrics before they are aggregated or encoded, see
+ * {@link AbstractMetricSender.Options#getFilter()}:
+ * <pre>
+ * MetricFilter.builder()
+ *   .deny("debug\\..*")
+ *   .renamePrefix("com.simplaex.", "")
+ *   .dropTag("user")
+ *   .addTag("env", "prod")
+ *   .build()
+ * </pre>
+ * Rules are applied in the order they were added, each to the result of the previous ones; a metric
+ * which is denied is dropped right away. Names are matched against patterns as a whole.
+ * <p>
+ * The outcome is cached per {@link Metric} (like {@link MetricKey#of(Metric)}), so for a metric
+ * which has been seen before, dropped or not, filtering is a single map lookup. At most
+ * {@link MetricKey#MAX_CACHED_KEYS} outcomes are cached, the ones of metrics which have not been emitted
+ * for a while are dropped to make room (see {@link BoundedCache}).
+ */
+public final class MetricFilter {
+
+  private interface Rule {
+    /**
+     * @return null if the metric is to be dropped.
+     */
+    @Nullable
+    Draft apply(@Nonnull Draft draft);
+  }
+
+  /**
+   * The name and tags of a metric while rules are being applied.
+   */
+  private static final class Draft {
+    String name;
+    final List<Metric.Tag> tags;
+
+    Draft(@Nonnull final String name, @Nonnull final List<Metric.Tag> tags) {
+      this.name = name;
+      this.tags = tags;
+    }
+  }
+
+  /**
+   * The cached outcome for a dropped metric.
+   */
+  private static final Object DROPPED = new Object();
+
+  private final List<Rule> rules;
+
+  private final BoundedCache<Metric<?>, Object> outcomes = new BoundedCache<>(MetricKey.MAX_CACHED_KEYS);
+
+  private MetricFilter(@Nonnull final List<Rule> rules) {
+    this.rules = rules;
+  }
+
+  @Nonnull
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * The key the given metric is emitted as, or null if it is dropped.
+   */
+  @Nullable
+  public MetricKey apply(@Nonnull final Metric<?> metric) {
+    final Object outcome = outcomes.computeIfAbsent(metric, m -> {
+      final MetricKey key = apply(MetricKey.of(m));
+      return key == null ? DROPPED : key;
+    });
+    return outcome == DROPPED ? null : (MetricKey) outcome;
+  }
+
+  /**
+   * Applies the rules without caching.
+   */
+  @Nullable
+  public MetricKey apply(@Nonnull final MetricKey key) {
+    Draft draft = new Draft(key.getName(), new ArrayList<>(key.getTags()));
+    for (final Rule rule : rules) {
+      draft = rule.apply(draft);
+      if (draft == null) {
+        return null;
+      }
+    }
+    if (draft.name.equals(key.getName()) && draft.tags.equals(key.getTags())) {
+      return key;
+    }
+    return MetricKey.of(draft.name, key.getKind(), key.getSampleRate(), draft.tags);
+  }
+
+  public static final class Builder {
+
+    private final List<Rule> rules = new ArrayList<>();
+
+    private Builder() {
+    }
+
+    /**
+     * Drops metrics whose name matches the given regular expression.
+     */
+    @Nonnull
+    public Builder deny(@Nonnull final String nameRegex) {
+      final Pattern pattern = Pattern.compile(nameRegex);
+      rules.add(draft -> pattern.matcher(draft.name).matches() ? null : draft);
+      return this;
+    }
+
+    /**
+     * Drops metrics whose name does not match the given regular expression.
+     */
+    @Nonnull
+    public Builder allowOnly(@Nonnull final String nameRegex) {
+      final Pattern pattern = Pattern.compile(nameRegex);
+      rules.add(draft -> pattern.matcher(draft.name).matches() ? draft : null);
+      return this;
+    }
+
+    /**
+     * Replaces the prefix <code>from</code> of names which start with it by <code>to</code>.
+     */
+    @Nonnull
+    public Builder renamePrefix(@Nonnull final String from, @Nonnull final String to) {
+      rules.add(draft -> {
+        if (draft.name.startsWith(from)) {
+          draft.name = to + draft.name.substring(from.length());
+        }
+        return draft;
+      });
+      return this;
+    }
+
+    /**
+     * Renames metrics whose name matches the given regular expression, the replacement may refer to
+     * groups as in {@link java.util.regex.Matcher#replaceAll(String)}.
+     */
+    @Nonnull
+    public Builder rename(@Nonnull final String nameRegex, @Nonnull final String replacement) {
+      final Pattern pattern = Pattern.compile(nameRegex);
+      rules.add(draft -> {
+        if (pattern.matcher(draft.name).matches()) {
+          draft.name = pattern.matcher(draft.name).replaceAll(replacement);
+        }
+        return draft;
+      });
+      return this;
+    }
+
+    /**
+     * Sets a tag, replacing the value of a tag with the same name.
+     */
+    @Nonnull
+    public Builder addTag(@Nonnull final String name, @Nullable final Object value) {
+      final Metric.Tag tag = Metric.tag(name, value);
+      rules.add(draft -> {
+        draft.tags.removeIf(t -> t.getName().equals(name));
+        draft.tags.add(tag);
+        return draft;
+      });
+      return this;
+    }
+
+    @Nonnull
+    public Builder dropTag(@Nonnull final String name) {
+      rules.add(draft -> {
+        draft.tags.removeIf(t -> t.getName().equals(name));
+        return draft;
+      });
+      return this;
+    }
+
+    @Nonnull
+    public Builder renameTag(@Nonnull final String from, @Nonnull final String to) {
+      rules.add(draft -> {
+        draft.tags.replaceAll(t -> t.getName().equals(from) ? Metric.tag(to, t.getValue()) : t);
+        return draft;
+      });
+      return this;
+    }
+
+    @Nonnull
+    public MetricFilter build() {
+      return new MetricFilter(Collections.unmodifiableList(new ArrayList<>(rules)));
+    }
+  }
+}
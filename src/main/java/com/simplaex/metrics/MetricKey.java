@@ -0,0 +1,169 @@
+package com.simplaex.metrics;
+
+import lombok.Getter;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Immutable, interned identity of a series: metric name, kind, sample rate and tags.
+ * <p>
+ * Keys are looked up once per {@link Metric} instance via {@link #of(Metric)} and cached, so that
+ * enum constants implementing {@link Metric} (and tagged variants of them) resolve to the same key
+ * on every emit. The caches are bounded (see {@link #MAX_CACHED_KEYS}) and forget keys which have
+ * not been used for a while, so that metrics with tags of unbounded cardinality (like request ids)
+ * neither hold on to memory nor crowd out the keys which are emitted all the time.
+ * <p>
+ * Encoders can attach their pre-encoded representation of the key via
+ * {@link #encoded(Object, Function)}, which means that formatting of the name and the tags is only
+ * paid once per key.
+ * <p>
+ * Metrics are expected to be immutable: the name, kind, sample rate and tags of a metric must not
+ * change once it has been emitted.
+ */
+public final class MetricKey {
+
+  /**
+   * The maximum number of metrics for which keys are cached (and of keys which are interned). Keys
+   * which have not been used for a while are dropped from the cache to make room for new ones.
+   */
+  public static final int MAX_CACHED_KEYS = 100_000;
+
+  private static final BoundedCache<Metric<?>, MetricKey> BY_METRIC = new BoundedCache<>(MAX_CACHED_KEYS);
+
+  private static final BoundedCache<MetricKey, MetricKey> INTERNED = new BoundedCache<>(MAX_CACHED_KEYS);
+
+  @Getter
+  @Nonnull
+  private final String name;
+
+  @Getter
+  @Nonnull
+  private final Metric.Kind kind;
+
+  @Getter
+  private final double sampleRate;
+
+  @Getter
+  @Nonnull
+  private final List<Metric.Tag> tags;
+
+  private final int hash;
+
+  private volatile Encoded encoded;
+
+  private static final class Encoded {
+    private final Object owner;
+    private final Object value;
+
+    private Encoded(final Object owner, final Object value) {
+      this.owner = owner;
+      this.value = value;
+    }
+  }
+
+  private MetricKey(
+    @Nonnull final String name,
+    @Nonnull final Metric.Kind kind,
+    final double sampleRate,
+    @Nonnull final List<Metric.Tag> tags
+  ) {
+    this.name = name;
+    this.kind = kind;
+    this.sampleRate = sampleRate;
+    this.tags = tags;
+    int h = name.hashCode();
+    h = 31 * h + kind.hashCode();
+    h = 31 * h + Double.hashCode(sampleRate);
+    h = 31 * h + tags.hashCode();
+    this.hash = h;
+  }
+
+  /**
+   * The key of the given metric. Cheap (a single map lookup) for metrics which have been seen before.
+   */
+  @Nonnull
+  public static MetricKey of(@Nonnull final Metric<?> metric) {
+    return BY_METRIC.computeIfAbsent(metric, MetricKey::create);
+  }
+
+  @Nonnull
+  public static MetricKey of(
+    @Nonnull final String name,
+    @Nonnull final Metric.Kind kind,
+    final double sampleRate,
+    @Nonnull final Collection<Metric.Tag> tags
+  ) {
+    final List<Metric.Tag> tagList = tags.isEmpty()
+      ? Collections.emptyList()
+      : Collections.unmodifiableList(new ArrayList<>(tags));
+    return intern(new MetricKey(name, kind, sampleRate, tagList));
+  }
+
+  @Nonnull
+  private static MetricKey create(@Nonnull final Metric<?> metric) {
+    return of(metric.getName(), metric.getKind(), metric.getSampleRate(), metric.getTags());
+  }
+
+  @Nonnull
+  private static MetricKey intern(@Nonnull final MetricKey key) {
+    return INTERNED.computeIfAbsent(key, Function.identity());
+  }
+
+  /**
+   * A key for a series derived from this one, e.g. <code>latency.p99</code> for <code>latency</code>,
+   * with the same tags.
+   */
+  @Nonnull
+  public MetricKey derive(@Nonnull final String nameSuffix, @Nonnull final Metric.Kind derivedKind) {
+    return intern(new MetricKey(name + nameSuffix, derivedKind, 1.0, tags));
+  }
+
+  /**
+   * Returns the representation of this key computed by <code>encode</code> for the given
+   * <code>owner</code> (typically the class of an encoder), computing it on first use.
+   * <p>
+   * Only the most recent owner's representation is kept, so a key which is alternately encoded
+   * by different owners is re-encoded every time.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T encoded(@Nonnull final Object owner, @Nonnull final Function<MetricKey, T> encode) {
+    final Encoded current = encoded;
+    if (current != null && current.owner == owner) {
+      return (T) current.value;
+    }
+    final T value = encode.apply(this);
+    encoded = new Encoded(owner, value);
+    return value;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof MetricKey)) {
+      return false;
+    }
+    final MetricKey that = (MetricKey) obj;
+    return hash == that.hash
+      && kind == that.kind
+      && Double.compare(sampleRate, that.sampleRate) == 0
+      && name.equals(that.name)
+      && tags.equals(that.tags);
+  }
+
+  @Override
+  public String toString() {
+    return "MetricKey(" + name + ", " + kind + ", " + sampleRate + ", " + tags + ")";
+  }
+}
@@ -1,9 +1,15 @@
 package com.simplaex.metrics;
 
 import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.ToDoubleFunction;
 
-public interface MetricsSender<M extends Metric<M>> {
+public interface MetricsSender<M extends Metric<M>> extends AutoCloseable {
 
   void emit(@Nonnull final Metric<M> metric, final double value);
 
@@ -11,6 +17,13 @@ public interface MetricsSender<M extends Metric<M>> {
     emit(metric, 1.0);
   }
 
+  /**
+   * Adds a member to a {@link Metric.Kind#SET} metric.
+   */
+  default void emit(@Nonnull final Metric<M> metric, @Nonnull final String member) {
+    emit(metric, HyperLogLog.toValue(member));
+  }
+
   default <V> V time(@Nonnull final Metric<M> metric, final Callable<V> callable) {
     final long started = System.nanoTime();
     try {
@@ -18,9 +31,7 @@ public interface MetricsSender<M extends Metric<M>> {
     } catch (final Exception exc) {
       throw new RuntimeException(exc);
     } finally {
-      final long now = System.nanoTime();
-      final double diff = (now - started) / 1000.0 /* micros */ / 1000.0 /* millis */;
-      emit(metric, diff);
+      emit(metric, Timing.Clock.PRECISE.millisSince(started));
     }
   }
 
@@ -31,8 +42,105 @@ public interface MetricsSender<M extends Metric<M>> {
     });
   }
 
+  /**
+   * Starts measuring time for {@link #stopTiming(Metric, long)}. The returned token is just a
+   * timestamp, there is nothing to clean up if timing is never stopped.
+   */
+  default long startTiming() {
+    return Timing.Clock.PRECISE.now();
+  }
+
+  default long startTiming(@Nonnull final Timing.Clock clock) {
+    return clock.now();
+  }
+
+  /**
+   * Emits the milliseconds since <code>started</code> (as returned by {@link #startTiming()}).
+   */
+  default void stopTiming(@Nonnull final Metric<M> metric, final long started) {
+    emit(metric, Timing.Clock.PRECISE.millisSince(started));
+  }
+
+  default void stopTiming(@Nonnull final Metric<M> metric, final long started, @Nonnull final Timing.Clock clock) {
+    emit(metric, clock.millisSince(started));
+  }
+
+  /**
+   * A started, per-thread pooled {@link Timing} to be used with try-with-resources.
+   */
+  @Nonnull
+  default Timing timing(@Nonnull final Metric<M> metric) {
+    return Timing.pooled(this, metric, Timing.Clock.PRECISE);
+  }
+
+  @Nonnull
+  default Timing timing(@Nonnull final Metric<M> metric, @Nonnull final Timing.Clock clock) {
+    return Timing.pooled(this, metric, clock);
+  }
+
   void emit(@Nonnull final Event event);
 
+  /**
+   * Registers a gauge which is polled once per flush interval (on the sender's thread) instead of
+   * being emitted. Registering the same metric again replaces the previous registration.
+   * <p>
+   * Only a weak reference to <code>target</code> is kept, the gauge disappears once it has been
+   * garbage collected. <code>valueFunction</code> is referenced strongly and must therefore not
+   * capture <code>target</code>:
+   * <pre>
+   * metricsSender.registerGauge(AppMetrics.QUEUE_SIZE, queue, Queue::size);
+   * </pre>
+   * The default implementation does nothing, so senders which do not poll gauges (like
+   * {@link NoMetrics}) silently ignore the registration rather than failing the caller.
+   */
+  default <T> void registerGauge(
+    @Nonnull final Metric<M> metric,
+    @Nonnull final T target,
+    @Nonnull final ToDoubleFunction<? super T> valueFunction
+  ) {
+  }
+
+  /**
+   * Registers a polled gauge, see {@link #registerGauge(Metric, Object, ToDoubleFunction)}. The
+   * supplier itself is only weakly referenced, the caller has to keep a reference to it for as
+   * long as the gauge should be reported.
+   */
+  default void registerGauge(@Nonnull final Metric<M> metric, @Nonnull final DoubleSupplier supplier) {
+    registerGauge(metric, supplier, DoubleSupplier::getAsDouble);
+  }
+
+  /**
+   * Registers a polled gauge, see {@link #registerGauge(Metric, DoubleSupplier)}.
+   */
+  default void registerGauge(@Nonnull final Metric<M> metric, @Nonnull final LongSupplier supplier) {
+    registerGauge(metric, supplier, LongSupplier::getAsLong);
+  }
+
+  /**
+   * Removes a polled gauge, does nothing if none is registered for the metric (or if the sender
+   * does not poll gauges).
+   */
+  default void unregisterGauge(@Nonnull final Metric<M> metric) {
+  }
+
+  /**
+   * The names of the metrics which had more combinations of tags than allowed, with the number of
+   * values which have been folded into their <code>other</code> series. Empty for senders which do
+   * not limit cardinality.
+   */
+  @Nonnull
+  default Map<String, Long> getCappedMetrics() {
+    return Collections.emptyMap();
+  }
+
+  /**
+   * Sends what is buffered or aggregated and releases threads, sockets and buffers. Metrics emitted
+   * afterwards are dropped. Senders which have not been closed are flushed when the JVM shuts down.
+   */
+  @Override
+  default void close() {
+  }
+
   static <M extends Metric<M>> MetricsSender<M> udpSender() {
     return new StatsdMetricSender<>();
   }
@@ -45,6 +153,38 @@ public interface MetricsSender<M extends Metric<M>> {
     return new StatsdMetricSender<>(host, port);
   }
 
+  static <M extends Metric<M>> MetricsSender<M> udpSender(final @Nonnull AbstractMetricSender.Options options) {
+    return new StatsdMetricSender<>(options);
+  }
+
+  static <M extends Metric<M>> MetricsSender<M> aggregatingUdpSender() {
+    return new StatsdMetricSender<>(AbstractMetricSender.options().aggregating(true).build());
+  }
+
+  /**
+   * Sends metrics in the Graphite plaintext format over TCP, e.g. to port 2003 of a carbon relay.
+   * <p>
+   * Graphite keeps only the last value per series and second, so metrics are aggregated and flushed
+   * once per second.
+   */
+  static <M extends Metric<M>> MetricsSender<M> graphiteSender(final @Nonnull String host, final @Nonnull int port) {
+    return new StatsdMetricSender<>(new GraphiteMetricBuilder(), new BatchedTcpSender(host, port, BatchedTcpSender.options()
+      .maxPacketSize(BatchedTcpSender.DEFAULT_MAX_PACKET_SIZE)
+      .flushInterval(Duration.ofSeconds(1))
+      .build()), AbstractMetricSender.options().aggregating(true).build());
+  }
+
+  /**
+   * Sends metrics in the InfluxDB line protocol over TCP, e.g. to a Telegraf <code>socket_listener</code>.
+   * <p>
+   * InfluxDB keeps only the last value per series and timestamp (milliseconds here), so metrics are
+   * aggregated and flushed every 100 milliseconds.
+   */
+  static <M extends Metric<M>> MetricsSender<M> influxSender(final @Nonnull String host, final @Nonnull int port) {
+    return new StatsdMetricSender<>(new InfluxMetricBuilder(), new BatchedTcpSender(host, port),
+      AbstractMetricSender.options().aggregating(true).build());
+  }
+
   static <M extends Metric<M>> MetricsSender<M> noMetrics() {
     return new NoMetrics<>();
   }
@@ -2,6 +2,7 @@ package com.simplaex.metrics;
 
 import javax.annotation.Nonnull;
 import java.util.Objects;
+import java.util.function.ToDoubleFunction;
 
 public class NoMetrics<M extends Metric<M>> implements MetricsSender<M> {
   @Override
@@ -13,4 +14,13 @@ public class NoMetrics<M extends Metric<M>> implements MetricsSender<M> {
   public void emit(@Nonnull final Event event) {
     Objects.requireNonNull(event, "'event' must not be null");
   }
+
+  @Override
+  public <T> void registerGauge(
+    @Nonnull final Metric<M> metric,
+    @Nonnull final T target,
+    @Nonnull final ToDoubleFunction<? super T> valueFunction
+  ) {
+    Objects.requireNonNull(metric, "'metric' must not be null");
+  }
 }
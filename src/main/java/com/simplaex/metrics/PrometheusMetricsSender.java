@@ -0,0 +1,607 @@
+package com.simplaex.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Builder;
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Keeps metrics in memory and serves them in the
+ * <a href="https://openmetrics.io/">OpenMetrics</a> text format for Prometheus to scrape.
+ * <p>
+ * Counters are exported as <code>name_total</code>, gauges as is and timings and distributions as
+ * histograms in seconds (<code>name_seconds_bucket</code>, <code>_sum</code> and <code>_count</code>)
+ * with the configured bucket boundaries. Dots and other characters which are not allowed in metric and
+ * label names are replaced with underscores. Sets are exported as a gauge of the number of distinct
+ * values seen since the start. Events are only counted, per level, as <code>events_total</code>.
+ * <p>
+ * Every metric name is exported with one kind only: a metric which has the same (sanitized) name as one
+ * of another kind which was emitted before, or which is named <code>events</code>, is exported with the
+ * kind appended to its name (e.g. <code>hits_gauge</code>). Metrics which end up with the same name and
+ * labels (e.g. <code>a.b</code> and <code>a_b</code>, or the same metric with different sample rates)
+ * are exported as one series.
+ * <p>
+ * With <code>maxSeriesPerMetric</code> the number of label combinations per metric is bounded, further
+ * combinations are folded into one with all label values set to <code>other</code>. Combinations which
+ * have not been emitted for a while are evicted and disappear from the output.
+ * <p>
+ * Emitting is lock-free and does not allocate once a series exists. {@link #writeTo(OutputStream)}
+ * streams all series through a fixed size buffer, the name and labels of every series are encoded
+ * only once when the series is created.
+ */
+@Log4j2
+public class PrometheusMetricsSender<M extends Metric<M>> implements MetricsSender<M> {
+
+  public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+  /**
+   * Bucket boundaries in seconds, the same as the ones of the official Prometheus clients.
+   */
+  public static final double[] DEFAULT_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Enough for any number written by {@link Encoding#putDouble(ByteBuffer, double)} plus a newline.
+   */
+  private static final int MAX_VALUE_LENGTH = 32;
+
+  private static final byte[] EOF = "# EOF\n".getBytes(StandardCharsets.US_ASCII);
+
+  private static final String EVENTS = "events";
+
+  @Value
+  @Builder
+  public static class Options {
+    @Builder.Default
+    final double[] buckets = DEFAULT_BUCKETS;
+    @Builder.Default
+    final String path = "/metrics";
+    final int maxSeriesPerMetric;
+  }
+
+  public static final Options DEFAULT_OPTIONS = options().build();
+
+  @Nonnull
+  public static Options.OptionsBuilder options() {
+    return Options.builder();
+  }
+
+  private abstract static class Series {
+
+    /**
+     * <code>{label="value",...}</code>, or nothing if there are no tags.
+     */
+    final byte[] labels;
+
+    /**
+     * The key of the first metric recorded into this series.
+     */
+    final MetricKey key;
+
+    /**
+     * Whether metrics with other keys are recorded into this series, too.
+     */
+    volatile boolean shared = false;
+
+    Series(@Nonnull final MetricKey key) {
+      this.labels = labels(key, null);
+      this.key = key;
+    }
+
+    abstract void record(double value);
+
+    abstract void writeTo(@Nonnull Family family, @Nonnull Writer writer) throws IOException;
+  }
+
+  private static final class CounterSeries extends Series {
+
+    private final DoubleAdder sum = new DoubleAdder();
+
+    CounterSeries(@Nonnull final MetricKey key) {
+      super(key);
+    }
+
+    @Override
+    void record(final double value) {
+      sum.add(value);
+    }
+
+    @Override
+    void writeTo(@Nonnull final Family family, @Nonnull final Writer writer) throws IOException {
+      writer.sample(family.name, TOTAL_SUFFIX, labels, sum.sum());
+    }
+  }
+
+  private static final class GaugeSeries extends Series {
+
+    private volatile double last;
+
+    GaugeSeries(@Nonnull final MetricKey key) {
+      super(key);
+    }
+
+    @Override
+    void record(final double value) {
+      last = value;
+    }
+
+    @Override
+    void writeTo(@Nonnull final Family family, @Nonnull final Writer writer) throws IOException {
+      writer.sample(family.name, NO_SUFFIX, labels, last);
+    }
+  }
+
+  private static final class SetSeries extends Series {
+
+    private final HyperLogLog members = new HyperLogLog();
+
+    SetSeries(@Nonnull final MetricKey key) {
+      super(key);
+    }
+
+    @Override
+    void record(final double value) {
+      members.add(value);
+    }
+
+    @Override
+    void writeTo(@Nonnull final Family family, @Nonnull final Writer writer) throws IOException {
+      writer.sample(family.name, NO_SUFFIX, labels, members.estimate());
+    }
+  }
+
+  private static final class HistogramSeries extends Series {
+
+    private final double[] bounds;
+    private final byte[][] bucketLabels;
+    private final LongAdder[] buckets;
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+
+    HistogramSeries(@Nonnull final MetricKey key, @Nonnull final double[] bounds) {
+      super(key);
+      this.bounds = bounds;
+      this.bucketLabels = new byte[bounds.length + 1][];
+      this.buckets = new LongAdder[bounds.length + 1];
+      for (int i = 0; i <= bounds.length; i += 1) {
+        bucketLabels[i] = labels(key, i < bounds.length ? formatDouble(bounds[i]) : "+Inf");
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    @Override
+    void record(final double millis) {
+      final double seconds = millis / 1000.0;
+      int bucket = 0;
+      while (bucket < bounds.length && seconds > bounds[bucket]) {
+        bucket += 1;
+      }
+      buckets[bucket].increment();
+      sum.add(seconds);
+      count.increment();
+    }
+
+    @Override
+    void writeTo(@Nonnull final Family family, @Nonnull final Writer writer) throws IOException {
+      // read the count first so that it is never larger than the +Inf bucket
+      final long total = count.sum();
+      long cumulative = 0;
+      for (int i = 0; i < buckets.length; i += 1) {
+        cumulative += buckets[i].sum();
+        writer.sample(family.name, BUCKET_SUFFIX, bucketLabels[i], i == bounds.length ? Math.max(cumulative, total) : cumulative);
+      }
+      writer.sample(family.name, COUNT_SUFFIX, labels, total);
+      writer.sample(family.name, SUM_SUFFIX, labels, sum.sum());
+    }
+  }
+
+  private static final byte[] NO_SUFFIX = new byte[0];
+  private static final byte[] TOTAL_SUFFIX = "_total".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] BUCKET_SUFFIX = "_bucket".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] COUNT_SUFFIX = "_count".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] SUM_SUFFIX = "_sum".getBytes(StandardCharsets.US_ASCII);
+
+  private static final Map<Metric.Kind, String> TYPES = new EnumMap<>(Metric.Kind.class);
+
+  static {
+    TYPES.put(Metric.Kind.COUNTER, "counter");
+    TYPES.put(Metric.Kind.GAUGE, "gauge");
+    TYPES.put(Metric.Kind.TIMING, "histogram");
+    TYPES.put(Metric.Kind.SET, "gauge");
+    TYPES.put(Metric.Kind.DISTRIBUTION, "histogram");
+  }
+
+  /**
+   * All series with the same name, written together below one <code># TYPE</code> line.
+   */
+  private static final class Family {
+
+    final byte[] name;
+
+    final Metric.Kind kind;
+
+    final byte[] header;
+
+    /**
+     * The series by their labels, which are unique within a family.
+     */
+    final Map<String, Series> series = new ConcurrentHashMap<>();
+
+    Family(@Nonnull final String name, @Nonnull final Metric.Kind kind) {
+      this.name = name.getBytes(StandardCharsets.UTF_8);
+      this.kind = kind;
+      this.header = ("# TYPE " + name + " " + TYPES.get(kind) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Writes through a fixed size buffer to an output stream.
+   */
+  private static final class Writer {
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private final OutputStream out;
+
+    Writer(@Nonnull final OutputStream out) {
+      this.out = out;
+    }
+
+    void put(@Nonnull final byte[] bytes) throws IOException {
+      if (bytes.length > buffer.remaining()) {
+        flush();
+        if (bytes.length > buffer.capacity()) {
+          out.write(bytes);
+          return;
+        }
+      }
+      buffer.put(bytes);
+    }
+
+    void sample(
+      @Nonnull final byte[] name,
+      @Nonnull final byte[] suffix,
+      @Nonnull final byte[] labels,
+      final double value
+    ) throws IOException {
+      put(name);
+      put(suffix);
+      put(labels);
+      if (buffer.remaining() < MAX_VALUE_LENGTH) {
+        flush();
+      }
+      buffer.put((byte) ' ');
+      putValue(buffer, value);
+      buffer.put((byte) '\n');
+    }
+
+    void flush() throws IOException {
+      out.write(buffer.array(), 0, buffer.position());
+      buffer.clear();
+    }
+  }
+
+  private final double[] buckets;
+  private final Map<MetricKey, Series> series = new ConcurrentHashMap<>();
+  private final Map<String, Family> families = new ConcurrentHashMap<>();
+  private final Map<Event.Level, LongAdder> events = new EnumMap<>(Event.Level.class);
+  private final Family eventFamily = new Family(EVENTS, Metric.Kind.COUNTER);
+  private final Map<Event.Level, byte[]> eventLabels = new EnumMap<>(Event.Level.class);
+  private final GaugeRegistry gauges = new GaugeRegistry();
+
+  @Nullable
+  private final CardinalityLimiter cardinalityLimiter;
+
+  @Nullable
+  private final HttpServer server;
+
+  /**
+   * Creates a registry without an HTTP endpoint, see {@link #writeTo(OutputStream)}.
+   */
+  public PrometheusMetricsSender() {
+    this(null, null);
+  }
+
+  /**
+   * Serves metrics on <code>http://0.0.0.0:port/metrics</code>.
+   */
+  public PrometheusMetricsSender(final int port) {
+    this(new InetSocketAddress(port), null);
+  }
+
+  /**
+   * @param address Where to serve metrics, or null to not start an HTTP endpoint.
+   */
+  public PrometheusMetricsSender(@Nullable final InetSocketAddress address, @Nullable final Options options) {
+    final Options opts = Optional.ofNullable(options).orElse(DEFAULT_OPTIONS);
+    this.buckets = opts.getBuckets().clone();
+    for (int i = 1; i < buckets.length; i += 1) {
+      if (!(buckets[i] > buckets[i - 1])) {
+        throw new IllegalArgumentException("buckets must be sorted in ascending order");
+      }
+    }
+    for (final Event.Level level : Event.Level.values()) {
+      events.put(level, new LongAdder());
+      eventLabels.put(level, ("{level=\"" + level.name().toLowerCase() + "\"}").getBytes(StandardCharsets.US_ASCII));
+    }
+    this.cardinalityLimiter = opts.getMaxSeriesPerMetric() > 0
+      ? new CardinalityLimiter(opts.getMaxSeriesPerMetric(), CardinalityLimiter.EVICT_AFTER, this::evict) : null;
+    this.server = address == null ? null : startServer(address, opts.getPath());
+  }
+
+  @Nonnull
+  private HttpServer startServer(@Nonnull final InetSocketAddress address, @Nonnull final String path) {
+    try {
+      final HttpServer httpServer = HttpServer.create(address, 0);
+      final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+        thread.setName(PrometheusMetricsSender.class.getName());
+        thread.setDaemon(true);
+        return thread;
+      });
+      httpServer.setExecutor(executor);
+      httpServer.createContext(path, this::handle);
+      httpServer.start();
+      log.info("Serving metrics on {}{}", httpServer.getAddress(), path);
+      return httpServer;
+    } catch (final IOException exc) {
+      throw new IllegalStateException("Could not start HTTP server on " + address, exc);
+    }
+  }
+
+  private void handle(@Nonnull final HttpExchange exchange) throws IOException {
+    try {
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, 0);
+      try (final OutputStream out = exchange.getResponseBody()) {
+        writeTo(out);
+      }
+    } catch (final IOException | RuntimeException exc) {
+      log.warn("Could not serve metrics", exc);
+      throw exc;
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * The address the HTTP endpoint is listening on, if any.
+   */
+  @Nullable
+  public InetSocketAddress getAddress() {
+    return server == null ? null : server.getAddress();
+  }
+
+  @Override
+  public void emit(@Nonnull final Metric<M> metric, final double value) {
+    final MetricKey key = MetricKey.of(metric);
+    record(cardinalityLimiter == null ? key : cardinalityLimiter.limit(key), value);
+  }
+
+  private void evict(@Nonnull final MetricKey key) {
+    final Series s = series.remove(key);
+    if (s == null) {
+      return;
+    }
+    final String labels = new String(s.labels, StandardCharsets.UTF_8);
+    families.values().forEach(family -> family.series.remove(labels, s));
+    if (s.shared) {
+      // the other keys recorded into the same series start over with a new one, too
+      series.values().removeIf(other -> other == s);
+    }
+  }
+
+  @Nonnull
+  @Override
+  public Map<String, Long> getCappedMetrics() {
+    return cardinalityLimiter == null ? Collections.emptyMap() : cardinalityLimiter.getCapped();
+  }
+
+  private void record(@Nonnull final MetricKey key, final double value) {
+    Series s = series.get(key);
+    if (s == null) {
+      s = series.computeIfAbsent(key, this::newSeries);
+    }
+    s.record(value);
+  }
+
+  /**
+   * The series of the family and labels of the given key, which may already exist for another key
+   * which only differs in its sample rate or in characters which are replaced when sanitizing.
+   */
+  @Nonnull
+  private Series newSeries(@Nonnull final MetricKey key) {
+    final boolean histogram = key.getKind() == Metric.Kind.TIMING || key.getKind() == Metric.Kind.DISTRIBUTION;
+    final Family family = family(sanitizeName(key.getName()) + (histogram ? "_seconds" : ""), key.getKind());
+    final Series s = family.series.computeIfAbsent(new String(labels(key, null), StandardCharsets.UTF_8), labels -> {
+      switch (key.getKind()) {
+        case COUNTER:
+          return new CounterSeries(key);
+        case TIMING:
+        case DISTRIBUTION:
+          return new HistogramSeries(key, buckets);
+        case SET:
+          return new SetSeries(key);
+        case GAUGE:
+        default:
+          return new GaugeSeries(key);
+      }
+    });
+    if (s.key != key) {
+      s.shared = true;
+    }
+    return s;
+  }
+
+  /**
+   * The family with the given name, or with the kind appended to the name if that is taken by a family
+   * of another kind (or by the events).
+   */
+  @Nonnull
+  private Family family(@Nonnull final String name, @Nonnull final Metric.Kind kind) {
+    final String suffix = '_' + kind.name().toLowerCase();
+    String unique = name;
+    while (true) {
+      if (!unique.equals(EVENTS)) {
+        final Family family = families.computeIfAbsent(unique, n -> {
+          if (!n.equals(name)) {
+            log.warn("Exporting {} metric {} as {}, the name is already taken", kind, name, n);
+          }
+          return new Family(n, kind);
+        });
+        if (family.kind == kind) {
+          return family;
+        }
+      }
+      unique += suffix;
+    }
+  }
+
+  @Override
+  public void emit(@Nonnull final Event event) {
+    events.get(event.getLevel()).increment();
+  }
+
+  @Override
+  public <T> void registerGauge(
+    @Nonnull final Metric<M> metric,
+    @Nonnull final T target,
+    @Nonnull final ToDoubleFunction<? super T> valueFunction
+  ) {
+    gauges.register(MetricKey.of(metric), target, valueFunction);
+  }
+
+  @Override
+  public void unregisterGauge(@Nonnull final Metric<M> metric) {
+    gauges.unregister(MetricKey.of(metric));
+  }
+
+  /**
+   * Writes all series in the OpenMetrics text format. Polled gauges are sampled right before.
+   */
+  public void writeTo(@Nonnull final OutputStream out) throws IOException {
+    if (!gauges.isEmpty()) {
+      gauges.sample(this::record);
+    }
+    final Writer writer = new Writer(out);
+    for (final Family family : families.values()) {
+      writer.put(family.header);
+      for (final Series s : family.series.values()) {
+        s.writeTo(family, writer);
+      }
+    }
+    writer.put(eventFamily.header);
+    for (final Map.Entry<Event.Level, LongAdder> entry : events.entrySet()) {
+      writer.sample(eventFamily.name, TOTAL_SUFFIX, eventLabels.get(entry.getKey()), entry.getValue().sum());
+    }
+    writer.put(EOF);
+    writer.flush();
+  }
+
+  /**
+   * Stops the HTTP endpoint, if there is one.
+   */
+  public void stop() {
+    if (server != null) {
+      server.stop(0);
+      ((ExecutorService) server.getExecutor()).shutdown();
+    }
+  }
+
+  /**
+   * Stops the HTTP endpoint, see {@link #stop()}.
+   */
+  @Override
+  public void close() {
+    stop();
+  }
+
+  @Nonnull
+  static String sanitizeName(@Nonnull final String name) {
+    final StringBuilder b = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i += 1) {
+      final char c = name.charAt(i);
+      final boolean valid = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c == ':' || i > 0 && c >= '0' && c <= '9';
+      b.append(valid ? c : '_');
+    }
+    return b.toString();
+  }
+
+  @Nonnull
+  private static byte[] labels(@Nonnull final MetricKey key, @Nullable final String le) {
+    if (key.getTags().isEmpty() && le == null) {
+      return NO_SUFFIX;
+    }
+    final StringBuilder b = new StringBuilder();
+    b.append('{');
+    for (final Metric.Tag tag : key.getTags()) {
+      if (b.length() > 1) {
+        b.append(',');
+      }
+      b.append(sanitizeName(tag.getName()).replace(':', '_')).append("=\"");
+      appendEscaped(b, tag.getValue());
+      b.append('"');
+    }
+    if (le != null) {
+      if (b.length() > 1) {
+        b.append(',');
+      }
+      b.append("le=\"").append(le).append('"');
+    }
+    b.append('}');
+    return b.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void appendEscaped(@Nonnull final StringBuilder b, @Nonnull final String value) {
+    for (int i = 0; i < value.length(); i += 1) {
+      final char c = value.charAt(i);
+      switch (c) {
+        case '\\':
+          b.append("\\\\");
+          break;
+        case '"':
+          b.append("\\\"");
+          break;
+        case '\n':
+          b.append("\\n");
+          break;
+        default:
+          b.append(c);
+      }
+    }
+  }
+
+  @Nonnull
+  private static String formatDouble(final double value) {
+    final ByteBuffer buffer = ByteBuffer.allocate(MAX_VALUE_LENGTH);
+    putValue(buffer, value);
+    return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+  }
+
+  private static void putValue(@Nonnull final ByteBuffer target, final double value) {
+    if (Double.isInfinite(value)) {
+      Encoding.putAscii(target, value > 0 ? "+Inf" : "-Inf");
+    } else {
+      Encoding.putDouble(target, value);
+    }
+  }
+}
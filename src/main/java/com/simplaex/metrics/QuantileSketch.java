@@ -0,0 +1,184 @@
+package com.simplaex.metrics;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * A mergeable quantile sketch with bounded memory and a guaranteed relative error, modelled after
+ * <a href="https://arxiv.org/abs/1908.10693">DDSketch</a>.
+ * <p>
+ * Values are counted in logarithmically sized buckets so that every quantile is accurate to within
+ * the configured relative accuracy. The buckets cover the range {@link #MIN_VALUE} to
+ * {@link #MAX_VALUE}; smaller values are counted as {@link #MIN_VALUE} and larger ones as
+ * {@link #MAX_VALUE}. For timings in milliseconds that is one microsecond to almost three hours.
+ * <p>
+ * Recording is lock-free and does not allocate. {@link #snapshot(Snapshot)} reads and resets the
+ * sketch; it must not be called concurrently with itself.
+ */
+public final class QuantileSketch {
+
+  public static final double MIN_VALUE = 1e-3;
+  public static final double MAX_VALUE = 1e7;
+
+  public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+  private final double gamma;
+  private final double logGamma;
+  private final int offset;
+  private final AtomicLongArray buckets;
+
+  private final DoubleAdder sum = new DoubleAdder();
+  private final DoubleAccumulator min = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+  private final DoubleAccumulator max = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+
+  /**
+   * A point-in-time copy of a sketch. Instances are meant to be reused across calls to
+   * {@link QuantileSketch#snapshot(Snapshot)} so that taking a snapshot does not allocate.
+   */
+  public static final class Snapshot {
+    private long[] counts = new long[0];
+    private int from;
+    private int to;
+    private long count;
+    private double sum;
+    private double min;
+    private double max;
+    private QuantileSketch sketch;
+
+    public long getCount() {
+      return count;
+    }
+
+    public double getSum() {
+      return sum;
+    }
+
+    public double getMin() {
+      return min;
+    }
+
+    public double getMax() {
+      return max;
+    }
+
+    /**
+     * The value at the given quantile (between 0 and 1, nearest rank), or NaN if the snapshot is empty.
+     */
+    public double quantile(final double q) {
+      if (count == 0) {
+        return Double.NaN;
+      }
+      final long rank = Math.max(0, (long) Math.ceil(Math.min(1.0, q) * count) - 1);
+      long seen = 0;
+      for (int i = from; i <= to; i += 1) {
+        seen += counts[i];
+        if (seen > rank) {
+          return Math.max(min, Math.min(max, sketch.value(i)));
+        }
+      }
+      return max;
+    }
+  }
+
+  public QuantileSketch() {
+    this(DEFAULT_RELATIVE_ACCURACY);
+  }
+
+  public QuantileSketch(@Nonnegative final double relativeAccuracy) {
+    if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+      throw new IllegalArgumentException("relativeAccuracy must be between 0 and 1 (exclusive)");
+    }
+    this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+    this.logGamma = Math.log(gamma);
+    this.offset = rawIndex(MIN_VALUE);
+    this.buckets = new AtomicLongArray(rawIndex(MAX_VALUE) - offset + 1);
+  }
+
+  private int rawIndex(final double value) {
+    return (int) Math.ceil(Math.log(value) / logGamma);
+  }
+
+  private int index(final double value) {
+    if (!(value > MIN_VALUE)) {
+      return 0;
+    }
+    if (value >= MAX_VALUE) {
+      return buckets.length() - 1;
+    }
+    return rawIndex(value) - offset;
+  }
+
+  /**
+   * The representative value of a bucket, which is within the relative accuracy of every value
+   * counted in it.
+   */
+  private double value(final int index) {
+    return 2 * Math.pow(gamma, index + offset) / (gamma + 1);
+  }
+
+  public void record(final double value) {
+    if (Double.isNaN(value)) {
+      return;
+    }
+    buckets.incrementAndGet(index(value));
+    sum.add(value);
+    min.accumulate(value);
+    max.accumulate(value);
+  }
+
+  /**
+   * Adds all values recorded in <code>other</code> (which must have the same relative accuracy) to
+   * this sketch, leaving <code>other</code> unchanged.
+   */
+  public void merge(@Nonnull final QuantileSketch other) {
+    if (other.gamma != gamma) {
+      throw new IllegalArgumentException("Can only merge sketches with the same relative accuracy");
+    }
+    for (int i = 0; i < buckets.length(); i += 1) {
+      final long count = other.buckets.get(i);
+      if (count != 0) {
+        buckets.addAndGet(i, count);
+      }
+    }
+    sum.add(other.sum.sum());
+    min.accumulate(other.min.get());
+    max.accumulate(other.max.get());
+  }
+
+  /**
+   * Moves the contents of this sketch into the given snapshot and resets the sketch.
+   */
+  @Nonnull
+  public Snapshot snapshot(@Nonnull final Snapshot snapshot) {
+    final double lo = min.getThenReset();
+    final double hi = max.getThenReset();
+    snapshot.sketch = this;
+    // sumThenReset() would lose what is added between reading and resetting a cell
+    final double total = sum.sum();
+    sum.add(-total);
+    snapshot.sum = total;
+    snapshot.min = lo;
+    snapshot.max = hi;
+    snapshot.count = 0;
+    if (snapshot.counts.length != buckets.length()) {
+      snapshot.counts = new long[buckets.length()];
+    }
+    if (lo > hi) {
+      snapshot.from = 0;
+      snapshot.to = -1;
+      return snapshot;
+    }
+    // values recorded concurrently may lie outside of [lo, hi], those are picked up by the next snapshot
+    snapshot.from = index(lo);
+    snapshot.to = index(hi);
+    for (int i = snapshot.from; i <= snapshot.to; i += 1) {
+      final long count = buckets.getAndSet(i, 0);
+      snapshot.counts[i] = count;
+      snapshot.count += count;
+    }
+    return snapshot;
+  }
+}
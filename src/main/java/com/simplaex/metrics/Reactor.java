@@ -0,0 +1,209 @@
+package com.simplaex.metrics;
+
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The thread and the selector which {@link BatchedSender}s do their I/O on.
+ * <p>
+ * All senders share one reactor (see {@link #acquireShared(int)}): one daemon thread on which every
+ * sender flushes and drains, one {@link Selector} on which their channels are registered and, only if
+ * a sender resolves its destination in the background, one daemon thread for blocking lookups. The
+ * shards of a {@link StatsdMetricSender} are meant to run in parallel, so every shard index has a
+ * shared reactor of its own (shard 0 being the one of all other senders). A shared reactor is shut
+ * down when the last sender using it is closed and started again for the next sender. Senders whose
+ * writes block get a reactor of their own (see {@link #dedicated(String)}).
+ * <p>
+ * Senders which have not been closed when the JVM shuts down are closed by a shutdown hook, in the
+ * order they were started, so that what they have buffered is flushed.
+ */
+@Log4j2
+final class Reactor {
+
+  /**
+   * The shared reactors by shard index, guarded by the class' lock.
+   */
+  private static final Map<Integer, Reactor> SHARED = new HashMap<>();
+
+  /**
+   * The senders which have been started and not closed yet. They are referenced by their flush tasks
+   * anyway, so they are kept here strongly, too; {@link BatchedSender#close()} removes them.
+   */
+  private static final Set<BatchedSender> OPEN = new LinkedHashSet<>();
+
+  private static boolean shutdownHookInstalled = false;
+
+  private final String name;
+
+  private final ScheduledExecutorService loop;
+
+  private final Selector selector;
+
+  @Nullable
+  private ScheduledExecutorService resolver;
+
+  private volatile Thread loopThread;
+
+  /**
+   * The shard index of a shared reactor, -1 for a dedicated one.
+   */
+  private final int shard;
+
+  /**
+   * The number of senders using a shared reactor, guarded by the class' lock.
+   */
+  private int users = 0;
+
+  private Reactor(@Nonnull final String name, final int shard) throws IOException {
+    this.name = name;
+    this.shard = shard;
+    this.selector = Selector.open();
+    this.loop = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+      thread.setName(name);
+      thread.setDaemon(true);
+      loopThread = thread;
+      return thread;
+    });
+  }
+
+  /**
+   * The shared reactor for the given shard index, see {@link BatchedSender.Options#getShards()}.
+   */
+  @Nonnull
+  static synchronized Reactor acquireShared(final int shard) throws IOException {
+    Reactor reactor = SHARED.get(shard);
+    if (reactor == null) {
+      reactor = new Reactor(shard == 0 ? Reactor.class.getName() : Reactor.class.getName() + "-shard-" + shard, shard);
+      SHARED.put(shard, reactor);
+    }
+    reactor.users += 1;
+    return reactor;
+  }
+
+  /**
+   * A reactor which is used by a single sender only and shut down when it is released.
+   */
+  @Nonnull
+  static Reactor dedicated(@Nonnull final String name) throws IOException {
+    return new Reactor(name, -1);
+  }
+
+  void release() {
+    if (shard >= 0) {
+      synchronized (Reactor.class) {
+        users -= 1;
+        if (users > 0) {
+          return;
+        }
+        SHARED.remove(shard);
+      }
+    }
+    shutdown();
+  }
+
+  private void shutdown() {
+    loop.shutdown();
+    synchronized (this) {
+      if (resolver != null) {
+        resolver.shutdownNow();
+      }
+    }
+    try {
+      selector.close();
+    } catch (final IOException exc) {
+      log.warn("Could not close selector of {}", name, exc);
+    }
+  }
+
+  /**
+   * The thread on which senders do all their work.
+   */
+  @Nonnull
+  ScheduledExecutorService loop() {
+    return loop;
+  }
+
+  boolean inLoop() {
+    return Thread.currentThread() == loopThread;
+  }
+
+  /**
+   * A thread for tasks which may block, started on first use.
+   */
+  @Nonnull
+  synchronized ScheduledExecutorService resolver() {
+    if (resolver == null) {
+      resolver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+        thread.setName(name + "-resolver");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return resolver;
+  }
+
+  @Nonnull
+  SelectionKey register(@Nonnull final SelectableChannel channel, final int ops) throws ClosedChannelException {
+    return channel.register(selector, ops);
+  }
+
+  /**
+   * Whether the channel of the given key is ready for the given operations. Only ever called from
+   * the reactor's thread.
+   */
+  boolean isReady(@Nonnull final SelectionKey key, final int ops) throws IOException {
+    selector.selectNow();
+    final boolean ready = key.isValid() && (key.readyOps() & ops) == ops;
+    selector.selectedKeys().remove(key);
+    return ready;
+  }
+
+  static void opened(@Nonnull final BatchedSender sender) {
+    synchronized (OPEN) {
+      OPEN.add(sender);
+      if (!shutdownHookInstalled) {
+        shutdownHookInstalled = true;
+        final Thread hook = new Thread(Reactor::closeAll);
+        hook.setName(Reactor.class.getName() + "-shutdown");
+        Runtime.getRuntime().addShutdownHook(hook);
+      }
+    }
+  }
+
+  static void closed(@Nonnull final BatchedSender sender) {
+    synchronized (OPEN) {
+      OPEN.remove(sender);
+    }
+  }
+
+  private static void closeAll() {
+    final List<BatchedSender> senders;
+    synchronized (OPEN) {
+      senders = new ArrayList<>(OPEN);
+    }
+    for (final BatchedSender sender : senders) {
+      try {
+        sender.close();
+      } catch (final RuntimeException exc) {
+        log.warn("Could not close {} on shutdown", sender, exc);
+      }
+    }
+  }
+}
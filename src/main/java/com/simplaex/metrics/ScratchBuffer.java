@@ -0,0 +1,45 @@
+package com.simplaex.metrics;
+
+import lombok.experimental.UtilityClass;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+
+/**
+ * Per-thread heap buffers into which lines are encoded before they are handed to a transport.
+ * <p>
+ * A buffer grows when a line does not fit; buffers up to {@link #MAX_CACHED_CAPACITY} are kept for
+ * the thread, larger ones are only used for the line at hand.
+ */
+@UtilityClass
+class ScratchBuffer {
+
+  static final int INITIAL_CAPACITY = 1024;
+
+  static final int MAX_CACHED_CAPACITY = 64 * 1024;
+
+  private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_CAPACITY));
+
+  /**
+   * The cleared scratch buffer of the current thread.
+   */
+  @Nonnull
+  static ByteBuffer get() {
+    final ByteBuffer buffer = BUFFER.get();
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * A cleared buffer with twice the capacity of the given one.
+   */
+  @Nonnull
+  static ByteBuffer grow(@Nonnull final ByteBuffer buffer) {
+    final int capacity = buffer.capacity() * 2;
+    final ByteBuffer larger = ByteBuffer.allocate(capacity);
+    if (capacity <= MAX_CACHED_CAPACITY) {
+      BUFFER.set(larger);
+    }
+    return larger;
+  }
+}
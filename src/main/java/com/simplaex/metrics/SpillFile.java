@@ -0,0 +1,155 @@
+package com.simplaex.metrics;
+
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A ring of newline terminated lines in a memory-mapped file, see
+ * {@link BatchedSender.Options#getSpillFile()}.
+ * <p>
+ * The read and write positions are kept in a header in the file itself, so lines which have been
+ * spilled by a process which exited before they could be replayed are replayed by the next process
+ * using the same file. The operating system writes the pages back to disk; spilled lines survive the
+ * process, but not necessarily a crash of the machine.
+ * <p>
+ * Appending may happen from any thread, reading only from the sender's thread; all methods are
+ * synchronized as spilling is the slow path anyway.
+ */
+@Log4j2
+class SpillFile {
+
+  private static final long MAGIC = 0x6d65747269637331L;
+
+  private static final int HEADER_SIZE = 24;
+
+  private static final int HEAD_OFFSET = 8;
+
+  private static final int TAIL_OFFSET = 16;
+
+  private final Path path;
+
+  private final MappedByteBuffer mapped;
+
+  private final int capacity;
+
+  /**
+   * Bytes read and written since the file was created. Their difference is the size.
+   */
+  private long head;
+  private long tail;
+
+  SpillFile(@Nonnull final Path path, @Nonnegative final int size) throws IOException {
+    if (size <= HEADER_SIZE) {
+      throw new IllegalArgumentException("spill file size must be larger than " + HEADER_SIZE);
+    }
+    this.path = path;
+    this.capacity = size - HEADER_SIZE;
+    try (final FileChannel channel = FileChannel.open(path,
+      StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final boolean existing = channel.size() == size;
+      this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      if (existing && mapped.getLong(0) == MAGIC) {
+        head = mapped.getLong(HEAD_OFFSET);
+        tail = mapped.getLong(TAIL_OFFSET);
+      }
+    }
+    if (head < 0 || tail < head || tail - head > capacity) {
+      log.warn("Discarding corrupt spill file {}", path);
+      head = 0;
+      tail = 0;
+    } else if (tail > head) {
+      log.info("Found {} bytes in spill file {} which will be replayed", tail - head, path);
+    }
+    mapped.putLong(0, MAGIC);
+    writeHeader();
+  }
+
+  private void writeHeader() {
+    mapped.putLong(HEAD_OFFSET, head);
+    mapped.putLong(TAIL_OFFSET, tail);
+  }
+
+  synchronized long size() {
+    return tail - head;
+  }
+
+  /**
+   * Appends the remaining bytes of <code>lines</code>, which must consist of complete lines. On
+   * success the position of <code>lines</code> is advanced to its limit.
+   *
+   * @return false if there is not enough space.
+   */
+  synchronized boolean append(@Nonnull final ByteBuffer lines) {
+    final int length = lines.remaining();
+    if (tail - head + length > capacity) {
+      return false;
+    }
+    int offset = (int) (tail % capacity);
+    final int end = lines.limit();
+    while (lines.hasRemaining()) {
+      final int chunk = Math.min(lines.remaining(), capacity - offset);
+      lines.limit(lines.position() + chunk);
+      final ByteBuffer target = mapped.duplicate();
+      target.position(HEADER_SIZE + offset);
+      target.put(lines);
+      lines.limit(end);
+      offset = 0;
+    }
+    tail += length;
+    writeHeader();
+    return true;
+  }
+
+  /**
+   * Copies as many complete lines as fit into the remaining space of <code>target</code>, starting
+   * <code>offset</code> bytes after the oldest line, without removing them, see {@link #skip(int)}.
+   *
+   * @return the number of bytes copied, 0 if there is nothing to copy or the next line does not fit.
+   */
+  synchronized int peek(@Nonnull final ByteBuffer target, @Nonnegative final int offset) {
+    final long available = tail - head - offset;
+    if (available <= 0) {
+      return 0;
+    }
+    final int start = target.position();
+    final int length = (int) Math.min(target.remaining(), available);
+    int position = (int) ((head + offset) % capacity);
+    int remaining = length;
+    while (remaining > 0) {
+      final int chunk = Math.min(remaining, capacity - position);
+      final ByteBuffer source = mapped.duplicate();
+      source.position(HEADER_SIZE + position);
+      source.limit(HEADER_SIZE + position + chunk);
+      target.put(source);
+      remaining -= chunk;
+      position = 0;
+    }
+    int complete = length;
+    while (complete > 0 && target.get(start + complete - 1) != '\n') {
+      complete -= 1;
+    }
+    if (complete == 0 && length == available) {
+      log.warn("Discarding incomplete line in spill file {}", path);
+      tail = head + offset;
+      writeHeader();
+    }
+    target.position(start + complete);
+    return complete;
+  }
+
+  /**
+   * Removes bytes which have been {@link #peek(ByteBuffer, int) peeked} and replayed.
+   */
+  synchronized void skip(@Nonnegative final int length) {
+    head = Math.min(tail, head + length);
+    writeHeader();
+  }
+}
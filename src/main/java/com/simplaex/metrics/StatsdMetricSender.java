@@ -4,25 +4,70 @@ import lombok.extern.log4j.Log4j2;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
 @Log4j2
 public class StatsdMetricSender<M extends Metric<M>> extends AbstractMetricSender<M> {
 
-  private final BatchedUdpSender udpSender;
+  /**
+   * One or more senders, see {@link BatchedSender.Options#getShards()}.
+   */
+  private final BatchedSender[] senders;
 
-  private static String getStatsdHost() {
+  private final BatchedSender.Sharding sharding;
+
+  @Nonnull
+  private static Supplier<String> getStatsdHost() {
     final String host = System.getenv("STATSD_HOST");
     if (host != null && !host.isEmpty()) {
       log.info("Using STATSD_HOST environment variable (host={})", host);
-      return host;
+      return () -> host;
     }
-    try {
-      final String hostIp = KubernetesSupport.getHostIp();
-      log.info("Using Kubernetes Host-IP={}", hostIp);
-      return hostIp;
-    } catch (final Exception exc) {
-      log.warn("Could not get kubernetes host ip and STATSD_HOST environment variable is not set, falling back to lcoalhost", exc);
-      return "localhost";
+    return new KubernetesHost(System.getenv("KUBERNETES_SERVICE_HOST") != null);
+  }
+
+  /**
+   * The host IP of the node, which does not change during the lifetime of a pod and is therefore
+   * only looked up until it has been found. Falls back to localhost if the first lookup fails; later
+   * lookups throw instead, so that the sender keeps the address it has. Outside of Kubernetes a failed
+   * lookup is not retried.
+   */
+  private static final class KubernetesHost implements Supplier<String> {
+
+    private final boolean retry;
+
+    @Nullable
+    private String hostIp;
+
+    private boolean lookedUp = false;
+
+    KubernetesHost(final boolean retry) {
+      this.retry = retry;
+    }
+
+    @Override
+    public synchronized String get() {
+      if (hostIp != null || (lookedUp && !retry)) {
+        return hostIp == null ? "localhost" : hostIp;
+      }
+      try {
+        hostIp = KubernetesSupport.getHostIp();
+        log.info("Using Kubernetes Host-IP={}", hostIp);
+        return hostIp;
+      } catch (final RuntimeException exc) {
+        if (lookedUp) {
+          throw exc;
+        }
+        lookedUp = true;
+        log.warn("Could not get kubernetes host ip and STATSD_HOST environment variable is not set, falling back to localhost", exc);
+        return "localhost";
+      }
     }
   }
 
@@ -44,17 +89,148 @@ public class StatsdMetricSender<M extends Metric<M>> extends AbstractMetricSende
     }
   }
 
+  /**
+   * Sends to <code>STATSD_HOST</code> or the Kubernetes host IP (see {@link KubernetesSupport#getHostIp()}),
+   * which is resolved in the background, and <code>STATSD_PORT</code>.
+   */
   public StatsdMetricSender() {
-    this(getStatsdHost(), getStatsdPort());
+    this((Options) null);
+  }
+
+  public StatsdMetricSender(@Nullable final Options options) {
+    this(getStatsdHost(), getStatsdPort(), null, options);
   }
 
   public StatsdMetricSender(@Nonnull final String host, @Nonnegative final int port) {
-    super(new DogstatsdMetricBuilder());
-    this.udpSender = new BatchedUdpSender(host, port);
+    this(host, port, null, null);
+  }
+
+  public StatsdMetricSender(
+    @Nonnull final String host,
+    @Nonnegative final int port,
+    @Nullable final BatchedUdpSender.Options udpOptions,
+    @Nullable final Options options
+  ) {
+    this(openUdpSenders(shard -> new BatchedUdpSender(host, port, udpOptions, shard), udpOptions),
+      udpOptions == null ? BatchedSender.Sharding.BY_SERIES : udpOptions.getSharding(), options);
+  }
+
+  /**
+   * Resolves the host in the background, see {@link BatchedUdpSender#BatchedUdpSender(Supplier, int, BatchedSender.Options)}.
+   */
+  public StatsdMetricSender(
+    @Nonnull final Supplier<String> host,
+    @Nonnegative final int port,
+    @Nullable final BatchedUdpSender.Options udpOptions,
+    @Nullable final Options options
+  ) {
+    this(openUdpSenders(shard -> new BatchedUdpSender(host, port, udpOptions, shard), udpOptions),
+      udpOptions == null ? BatchedSender.Sharding.BY_SERIES : udpOptions.getSharding(), options);
+  }
+
+  /**
+   * Sends metrics via the given transport, e.g. a {@link BatchedUnixSocketSender}.
+   */
+  public StatsdMetricSender(@Nonnull final BatchedSender sender, @Nullable final Options options) {
+    this(Collections.singletonList(sender), BatchedSender.Sharding.BY_SERIES, options);
+  }
+
+  /**
+   * Sends metrics in another line format via the given transport, e.g. {@link GraphiteMetricBuilder}
+   * lines via a {@link BatchedTcpSender}.
+   */
+  public StatsdMetricSender(
+    @Nonnull final MetricBuilder metricBuilder,
+    @Nonnull final BatchedSender sender,
+    @Nullable final Options options
+  ) {
+    this(metricBuilder, Collections.singletonList(sender), BatchedSender.Sharding.BY_SERIES, options);
+  }
+
+  /**
+   * Spreads metrics over the given senders. Aggregated metrics are flushed on the flush interval
+   * of the first sender.
+   */
+  public StatsdMetricSender(
+    @Nonnull final List<? extends BatchedSender> senders,
+    @Nonnull final BatchedSender.Sharding sharding,
+    @Nullable final Options options
+  ) {
+    this(new DogstatsdMetricBuilder(), senders, sharding, options);
+  }
+
+  public StatsdMetricSender(
+    @Nonnull final MetricBuilder metricBuilder,
+    @Nonnull final List<? extends BatchedSender> senders,
+    @Nonnull final BatchedSender.Sharding sharding,
+    @Nullable final Options options
+  ) {
+    super(metricBuilder, options);
+    if (senders.isEmpty()) {
+      throw new IllegalArgumentException("At least one sender is required");
+    }
+    this.senders = senders.toArray(new BatchedSender[0]);
+    this.sharding = sharding;
+    for (final BatchedSender sender : this.senders) {
+      sender.formatTelemetry(getMetricBuilder());
+    }
+    this.senders[0].addFlushListener(this::flush);
+  }
+
+  @Nonnull
+  private static List<BatchedUdpSender> openUdpSenders(
+    @Nonnull final IntFunction<BatchedUdpSender> factory,
+    @Nullable final BatchedUdpSender.Options udpOptions
+  ) {
+    final int shards = udpOptions == null ? 1 : Math.max(1, udpOptions.getShards());
+    final List<BatchedUdpSender> senders = new ArrayList<>(shards);
+    for (int i = 0; i < shards; i += 1) {
+      senders.add(factory.apply(i));
+    }
+    return senders;
+  }
+
+  @Nonnull
+  private BatchedSender senderForThread() {
+    if (senders.length == 1) {
+      return senders[0];
+    }
+    return senders[shard(Long.hashCode(Thread.currentThread().getId()))];
+  }
+
+  private int shard(final int hash) {
+    return Math.floorMod(hash ^ (hash >>> 16), senders.length);
+  }
+
+  /**
+   * Closes the senders in order, the first one (which flushes aggregated metrics) first, so that
+   * lines it hands to the others on its final flush are still sent.
+   */
+  @Override
+  public void close() {
+    for (final BatchedSender sender : senders) {
+      sender.close();
+    }
   }
 
   @Override
   protected void send(@Nonnull final String metric) {
-    udpSender.send(metric);
+    senderForThread().send(metric);
+  }
+
+  @Override
+  protected void send(@Nonnull final ByteBuffer metric) {
+    senderForThread().send(metric);
+  }
+
+  @Override
+  protected void send(@Nonnull final ByteBuffer metric, @Nonnull final MetricKey key) {
+    if (senders.length == 1) {
+      senders[0].send(metric);
+    } else if (sharding == BatchedSender.Sharding.BY_THREAD && key.getKind() != Metric.Kind.GAUGE) {
+      senderForThread().send(metric);
+    } else {
+      senders[shard(key.hashCode())].send(metric);
+    }
   }
 }
@@ -0,0 +1,92 @@
+package com.simplaex.metrics;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable metric with additional tags, as returned by {@link Metric#withTag(String, Object)}.
+ * <p>
+ * Two tagged metrics are equal if they are based on the same metric and carry the same tags in the
+ * same order; the hash code is computed once on construction so that {@link MetricKey#of(Metric)}
+ * resolves them with a single lookup.
+ */
+final class TaggedMetric<M extends Metric> implements Metric<M> {
+
+  private final Metric<M> metric;
+  private final Tag[] tags;
+  private final int hash;
+
+  private List<Tag> tagList;
+
+  TaggedMetric(@Nonnull final Metric<M> metric, @Nonnull final Tag tag) {
+    this(metric, new Tag[]{tag}, 31 * metric.hashCode() + tag.hashCode());
+  }
+
+  private TaggedMetric(@Nonnull final Metric<M> metric, @Nonnull final Tag[] tags, final int hash) {
+    this.metric = metric;
+    this.tags = tags;
+    this.hash = hash;
+  }
+
+  @Nonnull
+  @Override
+  public String getName() {
+    return metric.getName();
+  }
+
+  @Nonnull
+  @Override
+  public Kind getKind() {
+    return metric.getKind();
+  }
+
+  @Nonnegative
+  @Override
+  public double getSampleRate() {
+    return metric.getSampleRate();
+  }
+
+  @Nonnull
+  @Override
+  public Metric<M> withTag(@Nonnull final String key, @Nullable final Object value) {
+    final Tag tag = Metric.tag(key, value);
+    final Tag[] newTags = Arrays.copyOf(tags, tags.length + 1);
+    newTags[tags.length] = tag;
+    return new TaggedMetric<>(metric, newTags, 31 * hash + tag.hashCode());
+  }
+
+  @Nonnull
+  @Override
+  public List<Tag> getTags() {
+    if (tagList == null) {
+      tagList = Collections.unmodifiableList(Arrays.asList(tags));
+    }
+    return tagList;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof TaggedMetric)) {
+      return false;
+    }
+    final TaggedMetric<?> that = (TaggedMetric<?>) obj;
+    return hash == that.hash && metric.equals(that.metric) && Arrays.equals(tags, that.tags);
+  }
+
+  @Override
+  public String toString() {
+    return metric + Arrays.toString(tags);
+  }
+}
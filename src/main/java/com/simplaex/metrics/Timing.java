@@ -0,0 +1,141 @@
+package com.simplaex.metrics;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time until it is closed and emits it (in milliseconds) to a {@link Metric.Kind#TIMING} metric:
+ * <pre>
+ * try (final Timing ignored = metricsSender.timing(AppMetrics.REQUEST_TIME)) {
+ *   handleRequest();
+ * }
+ * </pre>
+ * Instances obtained from {@link MetricsSender#timing(Metric)} are pooled per thread and must not be
+ * used after they have been closed. Instances created with {@link #create(MetricsSender, Metric, Clock)}
+ * belong to the caller and can be started again with {@link #restart()}.
+ */
+public final class Timing implements AutoCloseable {
+
+  public enum Clock {
+    /**
+     * {@link System#nanoTime()}, monotonic and precise.
+     */
+    PRECISE {
+      @Override
+      public long now() {
+        return System.nanoTime();
+      }
+
+      @Override
+      public double millisSince(final long started) {
+        return (System.nanoTime() - started) * NANOS_TO_MILLIS;
+      }
+    },
+    /**
+     * {@link System#currentTimeMillis()}, which is cheaper on some platforms but only has millisecond
+     * (or worse) resolution and is affected by wall clock adjustments.
+     */
+    COARSE {
+      @Override
+      public long now() {
+        return System.currentTimeMillis();
+      }
+
+      @Override
+      public double millisSince(final long started) {
+        return System.currentTimeMillis() - started;
+      }
+    };
+
+    private static final double NANOS_TO_MILLIS = 1.0 / TimeUnit.MILLISECONDS.toNanos(1);
+
+    public abstract long now();
+
+    public abstract double millisSince(long started);
+  }
+
+  private static final ThreadLocal<Timing> POOL = new ThreadLocal<>();
+
+  private final boolean pooled;
+
+  private MetricsSender<?> sender;
+  private Metric<?> metric;
+  private Clock clock;
+  private long started;
+  private boolean running;
+
+  private Timing(final boolean pooled) {
+    this.pooled = pooled;
+  }
+
+  /**
+   * A new (not pooled) timing which is started right away.
+   */
+  @Nonnull
+  public static <M extends Metric<M>> Timing create(
+    @Nonnull final MetricsSender<M> sender,
+    @Nonnull final Metric<M> metric,
+    @Nonnull final Clock clock
+  ) {
+    return new Timing(false).init(sender, metric, clock);
+  }
+
+  @Nonnull
+  static <M extends Metric<M>> Timing pooled(
+    @Nonnull final MetricsSender<M> sender,
+    @Nonnull final Metric<M> metric,
+    @Nonnull final Clock clock
+  ) {
+    Timing timing = POOL.get();
+    if (timing == null) {
+      timing = new Timing(true);
+    } else {
+      POOL.set(null);
+    }
+    return timing.init(sender, metric, clock);
+  }
+
+  private Timing init(final MetricsSender<?> sender, final Metric<?> metric, final Clock clock) {
+    this.sender = sender;
+    this.metric = metric;
+    this.clock = clock;
+    this.started = clock.now();
+    this.running = true;
+    return this;
+  }
+
+  /**
+   * Starts measuring again. Only for timings created with {@link #create(MetricsSender, Metric, Clock)}.
+   */
+  @Nonnull
+  public Timing restart() {
+    if (pooled) {
+      throw new IllegalStateException("Pooled timings can not be restarted");
+    }
+    started = clock.now();
+    running = true;
+    return this;
+  }
+
+  /**
+   * Emits the time since the timing was started. Does nothing if it was closed already.
+   */
+  @Override
+  public void close() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    emit(sender, metric, clock.millisSince(started));
+    if (pooled) {
+      sender = null;
+      metric = null;
+      POOL.set(this);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <M extends Metric<M>> void emit(final MetricsSender<?> sender, final Metric<?> metric, final double millis) {
+    ((MetricsSender<M>) sender).emit((Metric<M>) metric, millis);
+  }
+}
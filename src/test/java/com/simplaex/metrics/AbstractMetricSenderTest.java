@@ -0,0 +1,298 @@
+package com.simplaex.metrics;
+
+import lombok.Getter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+public class AbstractMetricSenderTest {
+
+  enum M implements Metric<M> {
+    HITS(Kind.COUNTER),
+    SIZE(Kind.GAUGE),
+    LATENCY(Kind.TIMING),
+    USERS(Kind.SET),
+    PAYLOAD(Kind.DISTRIBUTION);
+
+    M(@Nonnull final Kind kind) {
+      this.name = name().toLowerCase();
+      this.kind = kind;
+    }
+
+    @Getter
+    private final String name;
+
+    @Getter
+    private final Kind kind;
+  }
+
+  static class CollectingSender extends AbstractMetricSender<M> {
+
+    final List<String> lines = new ArrayList<>();
+
+    CollectingSender(final Options options) {
+      super(new DogstatsdMetricBuilder(), options);
+    }
+
+    CollectingSender(final Options options, final LongSupplier clock) {
+      super(new DogstatsdMetricBuilder(), options, clock);
+    }
+
+    @Override
+    protected void send(final String metric) {
+      lines.add(metric);
+    }
+
+    List<String> flushAndGet() {
+      flush();
+      final List<String> result = new ArrayList<>(lines);
+      Collections.sort(result);
+      lines.clear();
+      return result;
+    }
+  }
+
+  @Test
+  public void checkAggregation() {
+    final CollectingSender sender = new CollectingSender(AbstractMetricSender.options().aggregating(true).build());
+    for (int i = 0; i < 1000; i += 1) {
+      sender.emit(M.HITS);
+      sender.emit(M.HITS.withTag("path", "/a"), 2);
+      sender.emit(M.SIZE, i);
+    }
+    sender.emit(M.LATENCY, 10);
+    sender.emit(M.LATENCY, 30);
+    Assert.assertTrue(sender.lines.isEmpty());
+    final List<String> lines = sender.flushAndGet();
+    assertApproximately(10, "latency.p50", lines.remove(5));
+    assertApproximately(30, "latency.p95", lines.remove(5));
+    assertApproximately(30, "latency.p99", lines.remove(5));
+    Assert.assertEquals(Arrays.asList(
+      "hits:1000|c\n",
+      "hits:2000|c|#path:/a\n",
+      "latency.count:2|c\n",
+      "latency.max:30|g\n",
+      "latency.min:10|g\n",
+      "latency.sum:40|g\n",
+      "size:999|g\n"
+    ), lines);
+    sender.emit(M.HITS);
+    Assert.assertEquals(Collections.singletonList("hits:1|c\n"), sender.flushAndGet());
+  }
+
+  @Test
+  public void checkConcurrentCountsAreNotLost() throws Exception {
+    final CollectingSender sender = new CollectingSender(AbstractMetricSender.options().aggregating(true).build());
+    final int threads = 4;
+    final int emits = 200_000;
+    final Thread[] emitters = new Thread[threads];
+    for (int t = 0; t < threads; t += 1) {
+      // blocks of emits per tag, so that series go idle, are evicted and come back while emitting
+      emitters[t] = new Thread(() -> {
+        for (int i = 0; i < emits; i += 1) {
+          sender.emit(M.HITS.withTag("block", (i / 10_000) % 4));
+        }
+      });
+      emitters[t].start();
+    }
+    long total = 0;
+    while (Arrays.stream(emitters).anyMatch(Thread::isAlive)) {
+      total += countHits(sender.flushAndGet());
+    }
+    total += countHits(sender.flushAndGet());
+    Assert.assertEquals((long) threads * emits, total);
+  }
+
+  @Test
+  public void checkFlushedCountersStartFromZero() throws Exception {
+    final CollectingSender sender = new CollectingSender(AbstractMetricSender.options().aggregating(true).build());
+    final Thread[] emitters = new Thread[4];
+    for (int t = 0; t < emitters.length; t += 1) {
+      emitters[t] = new Thread(() -> {
+        for (int i = 0; i < 100_000; i += 1) {
+          sender.emit(M.HITS, 0.1);
+          sender.emit(M.HITS, 2);
+        }
+      });
+      emitters[t].start();
+    }
+    for (final Thread emitter : emitters) {
+      emitter.join();
+    }
+    Assert.assertEquals(1, sender.flushAndGet().size());
+    sender.emit(M.HITS, 3);
+    Assert.assertEquals(Collections.singletonList("hits:3|c\n"), sender.flushAndGet());
+    sender.emit(M.HITS, 0.5);
+    Assert.assertEquals(Collections.singletonList("hits:0.5|c\n"), sender.flushAndGet());
+  }
+
+  private static long countHits(final List<String> lines) {
+    long count = 0;
+    for (final String line : lines) {
+      count += Long.parseLong(line.substring("hits:".length(), line.indexOf('|')));
+    }
+    return count;
+  }
+
+  private static void assertApproximately(final double expected, final String name, final String line) {
+    Assert.assertTrue(line, line.startsWith(name + ":") && line.endsWith("|g\n"));
+    final double value = Double.parseDouble(line.substring(name.length() + 1, line.length() - 3));
+    Assert.assertEquals(expected, value, expected * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+  }
+
+  @Test
+  public void checkTagCardinalityIsLimited() {
+    final CollectingSender sender = new CollectingSender(AbstractMetricSender.options()
+      .aggregating(true).maxSeriesPerMetric(2).build());
+    for (int i = 0; i < 5; i += 1) {
+      sender.emit(M.HITS.withTag("user", i));
+    }
+    Assert.assertEquals(Arrays.asList(
+      "hits:1|c|#user:0\n",
+      "hits:1|c|#user:1\n",
+      "hits:3|c|#user:other\n"
+    ), sender.flushAndGet());
+    Assert.assertEquals(Collections.singletonMap("hits", 3L), sender.getCappedMetrics());
+  }
+
+  @Test
+  public void checkConstantTagsAreAdded() {
+    final CollectingSender sender = new CollectingSender(AbstractMetricSender.options()
+      .constantTag(Metric.tag("env", "prod")).build());
+    sender.emit(M.HITS);
+    sender.emit(M.HITS.withTag("path", "/a"));
+    Assert.assertEquals(Arrays.asList("hits:1|c|#env:prod\n", "hits:1|c|#path:/a,env:prod\n"), sender.lines);
+  }
+
+  @Test
+  public void checkFilter() {
+    final CollectingSender sender = new CollectingSender(AbstractMetricSender.options()
+      .filter(MetricFilter.builder().deny("size").renamePrefix("hi", "visi").dropTag("user").build()).build());
+    for (int i = 0; i < 3; i += 1) {
+      sender.emit(M.SIZE, i);
+      sender.emit(M.HITS.withTag("user", i));
+    }
+    Assert.assertEquals(Arrays.asList("visits:1|c\n", "visits:1|c\n", "visits:1|c\n"), sender.lines);
+  }
+
+  @Test
+  public void checkAdaptiveSampling() {
+    final CollectingSender sender = new CollectingSender(AbstractMetricSender.options().maxLinesPerSecond(100).build());
+    for (int i = 0; i < 10_000; i += 1) {
+      sender.emit(M.HITS);
+    }
+    Assert.assertEquals(10_000, sender.flushAndGet().size());
+    for (int i = 0; i < 100_000; i += 1) {
+      sender.emit(M.HITS);
+    }
+    final List<String> lines = sender.flushAndGet();
+    Assert.assertTrue(lines.size() < 10_000);
+    Assert.assertTrue(lines.get(0), lines.get(0).startsWith("hits:1|c|@0."));
+  }
+
+  @Test
+  public void checkPolledGauges() {
+    final CollectingSender sender = new CollectingSender(null);
+    final List<String> queue = new ArrayList<>(Arrays.asList("a", "b", "c"));
+    sender.registerGauge(M.SIZE, queue, List::size);
+    Assert.assertTrue(sender.lines.isEmpty());
+    Assert.assertEquals(Collections.singletonList("size:3|g\n"), sender.flushAndGet());
+    queue.clear();
+    Assert.assertEquals(Collections.singletonList("size:0|g\n"), sender.flushAndGet());
+    sender.unregisterGauge(M.SIZE);
+    Assert.assertEquals(Collections.emptyList(), sender.flushAndGet());
+  }
+
+  @Test
+  public void checkPolledGaugesAreIgnoredByDefault() {
+    final MetricsSender<M> sender = new MetricsSender<M>() {
+      @Override
+      public void emit(@Nonnull final Metric<M> metric, final double value) {
+      }
+
+      @Override
+      public void emit(@Nonnull final Event event) {
+      }
+    };
+    sender.registerGauge(M.SIZE, () -> 1L);
+    sender.unregisterGauge(M.SIZE);
+  }
+
+  @Test
+  public void checkEventCoalescing() {
+    final AtomicLong now = new AtomicLong();
+    final CollectingSender sender = new CollectingSender(AbstractMetricSender.options()
+      .eventWindow(Duration.ofMillis(500)).eventsPerWindow(2).build(), now::get);
+    for (int i = 0; i < 1000; i += 1) {
+      sender.emit(Event.error("Database down", "attempt " + i));
+    }
+    sender.emit(Event.error("Database down", "tagged").withTag("db", "users"));
+    Assert.assertEquals(Arrays.asList(
+      "_e{13,6}:Database down|tagged|t:error|#db:users\n",
+      "_e{13,9}:Database down|attempt 0|t:error\n",
+      "_e{13,9}:Database down|attempt 1|t:error\n"
+    ), sender.flushAndGet());
+    now.addAndGet(Duration.ofMillis(600).toNanos());
+    Assert.assertEquals(Collections.singletonList(
+      "_e{13,11}:Database down|attempt 999|t:error|#occurrences:998\n"
+    ), sender.flushAndGet());
+    now.addAndGet(Duration.ofMillis(600).toNanos());
+    Assert.assertEquals(Collections.emptyList(), sender.flushAndGet());
+  }
+
+  @Test
+  public void checkDistributionsArePacked() {
+    final CollectingSender sender = new CollectingSender(AbstractMetricSender.options()
+      .aggregating(true)
+      .distributionSamples(100)
+      .build());
+    sender.emit(M.PAYLOAD, 1);
+    sender.emit(M.PAYLOAD, 2.5);
+    sender.emit(M.PAYLOAD, 1);
+    Assert.assertEquals(Collections.singletonList("payload:1:2.5:1|d\n"), sender.flushAndGet());
+    for (int i = 0; i < 400; i += 1) {
+      sender.emit(M.PAYLOAD.withTag("k", "v"), 7);
+    }
+    final List<String> lines = sender.flushAndGet();
+    // 100 samples at a rate of 1/4, in lines of at most 64 values
+    Assert.assertEquals(2, lines.size());
+    final StringBuilder values = new StringBuilder();
+    for (final String line : lines) {
+      Assert.assertTrue(line, line.startsWith("payload:7:") && line.endsWith(":7|d|@0.25|#k:v\n"));
+      values.append(line, "payload".length(), line.indexOf('|'));
+    }
+    Assert.assertEquals(new String(new char[100]).replace("\0", ":7"), values.toString());
+  }
+
+  @Test
+  public void checkSetsAreAlwaysAggregated() {
+    final CollectingSender sender = new CollectingSender(null);
+    for (int i = 0; i < 1000; i += 1) {
+      sender.emit(M.USERS, "user-" + (i % 100));
+      sender.emit(M.USERS.withTag("path", "/a"), i % 10);
+    }
+    Assert.assertTrue(sender.lines.isEmpty());
+    final List<String> lines = sender.flushAndGet();
+    Assert.assertEquals("users:10|g|#path:/a\n", lines.get(1));
+    Assert.assertTrue(lines.get(0), lines.get(0).matches("users:(99|100|101)\\|g\n"));
+    sender.emit(M.USERS, "user-1");
+    Assert.assertEquals(Collections.singletonList("users:1|g\n"), sender.flushAndGet());
+  }
+
+  @Test
+  public void checkNoAggregationByDefault() {
+    final CollectingSender sender = new CollectingSender(null);
+    sender.emit(M.HITS);
+    sender.emit(M.HITS);
+    Assert.assertEquals(2, sender.lines.size());
+    Assert.assertEquals(2, sender.flushAndGet().size());
+  }
+}
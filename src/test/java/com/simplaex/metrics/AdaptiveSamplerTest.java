@@ -0,0 +1,53 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+public class AdaptiveSamplerTest {
+
+  private static final MetricKey KEY = MetricKey.of("requests", Metric.Kind.COUNTER, 1.0, Collections.emptyList());
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  public void checkRateFollowsBudget() {
+    final AdaptiveSampler sampler = new AdaptiveSampler(100);
+    final long start = System.nanoTime();
+    for (int i = 0; i < 50; i += 1) {
+      Assert.assertEquals(1.0, sampler.sampleRate(KEY, 1.0), 0.0);
+    }
+    sampler.update(start + SECOND);
+    Assert.assertEquals(1.0, sampler.sampleRate(KEY, 1.0), 0.0);
+    for (int i = 0; i < 999; i += 1) {
+      sampler.sampleRate(KEY, 1.0);
+    }
+    sampler.update(start + 2 * SECOND);
+    Assert.assertEquals(0.1, sampler.sampleRate(KEY, 1.0), 1e-9);
+    Assert.assertEquals(0.05, sampler.sampleRate(KEY, 0.05), 0.0);
+  }
+
+  @Test
+  public void checkRateRecoversAndIdleSeriesAreEvicted() {
+    final AdaptiveSampler sampler = new AdaptiveSampler(100);
+    final long start = System.nanoTime();
+    for (int i = 0; i < 1000; i += 1) {
+      sampler.sampleRate(KEY, 1.0);
+    }
+    sampler.update(start + SECOND);
+    double previous = sampler.sampleRate(KEY, 1.0);
+    for (int i = 2; i < 10; i += 1) {
+      sampler.update(start + i * SECOND);
+      final double rate = sampler.sampleRate(KEY, 1.0);
+      Assert.assertTrue(rate >= previous);
+      previous = rate;
+    }
+    Assert.assertEquals(1.0, previous, 0.0);
+    for (int i = 10; i <= 10 + AdaptiveSampler.MAX_IDLE_UPDATES; i += 1) {
+      sampler.update(start + i * SECOND);
+    }
+    Assert.assertEquals(0, sampler.size());
+  }
+}
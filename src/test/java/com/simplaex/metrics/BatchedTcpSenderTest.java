@@ -0,0 +1,120 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+
+public class BatchedTcpSenderTest {
+
+  enum M implements Metric<M> {
+    HITS;
+
+    @Nonnull
+    @Override
+    public String getName() {
+      return "hits";
+    }
+
+    @Nonnull
+    @Override
+    public Kind getKind() {
+      return Kind.COUNTER;
+    }
+  }
+
+  private static BufferedReader reader(final Socket socket) throws Exception {
+    return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+  }
+
+  @Test(timeout = 10_000)
+  public void checkLinesArriveInOrder() throws Exception {
+    try (final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      final BatchedTcpSender sender = new BatchedTcpSender("localhost", server.getLocalPort(),
+        BatchedSender.options().flushInterval(Duration.ofMillis(10)).maxPacketSize(64).build());
+      for (int i = 0; i < 1000; i += 1) {
+        sender.send("line." + i + " 1\n");
+      }
+      try (final Socket client = server.accept(); final BufferedReader in = reader(client)) {
+        for (int i = 0; i < 1000; i += 1) {
+          Assert.assertEquals("line." + i + " 1", in.readLine());
+        }
+      }
+      Assert.assertEquals(0, sender.getDroppedCount());
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void checkGraphiteCountsSurvive() throws Exception {
+    try (final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      final MetricsSender<M> sender = MetricsSender.graphiteSender("localhost", server.getLocalPort());
+      for (int i = 0; i < 100; i += 1) {
+        sender.emit(M.HITS);
+      }
+      sender.close();
+      double total = 0;
+      final Set<String> timestamps = new HashSet<>();
+      try (final Socket client = server.accept(); final BufferedReader in = reader(client)) {
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+          final String[] fields = line.split(" ");
+          Assert.assertEquals(line, "hits", fields[0]);
+          total += Double.parseDouble(fields[1]);
+          // a second line with the same timestamp would replace the first one
+          Assert.assertTrue(line, timestamps.add(fields[2]));
+        }
+      }
+      Assert.assertEquals(100, total, 0.0);
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void checkTelemetryIsSentInTheSendersFormat() throws Exception {
+    try (final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      final MetricsSender<M> sender = new StatsdMetricSender<>(new GraphiteMetricBuilder(), new BatchedTcpSender("localhost",
+        server.getLocalPort(), BatchedSender.options().flushInterval(Duration.ofMillis(10)).telemetryInterval(Duration.ofMillis(10)).build()), null);
+      try (final Socket client = server.accept(); final BufferedReader in = reader(client)) {
+        String line = in.readLine();
+        while (!line.startsWith("metrics.client.queue.bytes ")) {
+          line = in.readLine();
+        }
+        Assert.assertTrue(line, line.matches("metrics\\.client\\.queue\\.bytes \\d+ \\d+"));
+      }
+      sender.close();
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void checkReconnect() throws Exception {
+    try (final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      final BatchedTcpSender sender = new BatchedTcpSender("localhost", server.getLocalPort(),
+        BatchedSender.options().flushInterval(Duration.ofMillis(10)).build());
+      sender.send("first 1\n");
+      try (final Socket client = server.accept(); final BufferedReader in = reader(client)) {
+        Assert.assertEquals("first 1", in.readLine());
+      }
+      // the closed connection is only noticed when writing to it
+      String line = null;
+      for (int i = 0; line == null; i += 1) {
+        sender.send("again." + i + " 1\n");
+        server.setSoTimeout(50);
+        try (final Socket client = server.accept(); final BufferedReader in = reader(client)) {
+          line = in.readLine();
+        } catch (final SocketTimeoutException ignore) {
+          // not reconnected yet
+        }
+      }
+      Assert.assertTrue(line, line.startsWith("again."));
+      Assert.assertTrue(sender.getStats().getWriteErrors() > 0);
+    }
+  }
+}
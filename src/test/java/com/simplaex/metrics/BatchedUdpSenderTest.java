@@ -0,0 +1,360 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BatchedUdpSenderTest {
+
+  @Test(timeout = 10_000)
+  public void checkLinesArrive() throws Exception {
+    try (final DatagramChannel receiver = DatagramChannel.open()) {
+      receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+      final int port = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+      final BatchedUdpSender sender = new BatchedUdpSender("127.0.0.1", port,
+        BatchedUdpSender.options().flushInterval(Duration.ofMillis(10)).build());
+      sender.send("one:1|c\n");
+      sender.send(ByteBuffer.wrap("two:2|c\n".getBytes(StandardCharsets.UTF_8)));
+      final StringBuilder received = new StringBuilder();
+      final ByteBuffer buffer = ByteBuffer.allocate(BatchedUdpSender.MAXIMUM_UDP_PAYLOAD_SIZE);
+      while (received.length() < "one:1|c\ntwo:2|c\n".length()) {
+        buffer.clear();
+        receiver.receive(buffer);
+        buffer.flip();
+        received.append(StandardCharsets.UTF_8.decode(buffer));
+      }
+      Assert.assertEquals("one:1|c\ntwo:2|c\n", received.toString());
+      Assert.assertEquals(0, sender.getDroppedCount());
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void checkPacking() throws Exception {
+    try (final DatagramChannel receiver = DatagramChannel.open()) {
+      receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+      final int port = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+      final BatchedUdpSender sender = new BatchedUdpSender("127.0.0.1", port,
+        BatchedUdpSender.options().flushInterval(Duration.ofSeconds(60)).maxPacketSize(20).build());
+      for (int i = 0; i < 10; i += 1) {
+        sender.send("line:" + i + "|c\n");
+      }
+      final ByteBuffer buffer = ByteBuffer.allocate(BatchedUdpSender.MAXIMUM_UDP_PAYLOAD_SIZE);
+      // the last datagram is only sent on the next flush as it is not known to be full yet
+      for (int i = 0; i < 8; i += 2) {
+        buffer.clear();
+        receiver.receive(buffer);
+        buffer.flip();
+        Assert.assertEquals("line:" + i + "|c\nline:" + (i + 1) + "|c\n", StandardCharsets.UTF_8.decode(buffer).toString());
+      }
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void checkTelemetry() throws Exception {
+    try (final DatagramChannel receiver = DatagramChannel.open()) {
+      receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+      final int port = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+      final BatchedUdpSender sender = new BatchedUdpSender("127.0.0.1", port, BatchedUdpSender.options()
+        .flushInterval(Duration.ofMillis(10)).ringBufferSize(1024).telemetryInterval(Duration.ofMillis(50)).build());
+      sender.send("one:1|c\n");
+      sender.send(new byte[2000]);
+      sender.send(new byte[BatchedUdpSender.MAXIMUM_UDP_PAYLOAD_SIZE + 1]);
+      final BatchedSender.Stats stats = sender.getStats();
+      Assert.assertEquals(1, stats.getLinesEnqueued());
+      Assert.assertEquals(1, stats.getLinesDroppedOverflow());
+      Assert.assertEquals(1, stats.getLinesDroppedOversize());
+      Assert.assertEquals(2, sender.getDroppedCount());
+      final ByteBuffer buffer = ByteBuffer.allocate(BatchedUdpSender.MAXIMUM_UDP_PAYLOAD_SIZE);
+      String received = "";
+      while (!received.contains("metrics.client.lines.dropped.overflow:")) {
+        buffer.clear();
+        receiver.receive(buffer);
+        buffer.flip();
+        received = StandardCharsets.UTF_8.decode(buffer).toString();
+      }
+      Assert.assertTrue(received, received.contains("metrics.client.lines.dropped.overflow:1|c\n"));
+      Assert.assertTrue(received, received.contains("metrics.client.lines.dropped.oversize:1|c\n"));
+      Assert.assertTrue(received, received.contains("metrics.client.packets.written:1|c\n"));
+      Assert.assertTrue(received, received.contains("metrics.client.bytes.written:8|c\n"));
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void checkLinesAreKeptUntilHostIsResolved() throws Exception {
+    try (final DatagramChannel receiver = DatagramChannel.open()) {
+      receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+      final int port = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+      final CountDownLatch resolved = new CountDownLatch(1);
+      final BatchedUdpSender sender = new BatchedUdpSender(() -> {
+        try {
+          resolved.await();
+        } catch (final InterruptedException exc) {
+          throw new IllegalStateException(exc);
+        }
+        return "127.0.0.1";
+      }, port, BatchedUdpSender.options().flushInterval(Duration.ofMillis(10)).build());
+      sender.send("early:1|c\n");
+      sender.flushNow();
+      Assert.assertEquals(0, sender.getStats().getPacketsWritten());
+      resolved.countDown();
+      final ByteBuffer buffer = ByteBuffer.allocate(BatchedUdpSender.MAXIMUM_UDP_PAYLOAD_SIZE);
+      receiver.receive(buffer);
+      buffer.flip();
+      Assert.assertEquals("early:1|c\n", StandardCharsets.UTF_8.decode(buffer).toString());
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void checkResolvedAddressIsKeptWhenTheHostCannotBeDetermined() throws Exception {
+    try (final DatagramChannel receiver = DatagramChannel.open()) {
+      receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+      final int port = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+      final AtomicInteger lookups = new AtomicInteger();
+      final CountDownLatch failed = new CountDownLatch(2);
+      final BatchedUdpSender sender = new BatchedUdpSender(() -> {
+        switch (lookups.getAndIncrement()) {
+          case 0:
+            return "127.0.0.1";
+          case 1:
+            failed.countDown();
+            return null;
+          default:
+            failed.countDown();
+            throw new IllegalStateException("lookup failed");
+        }
+      }, port, BatchedUdpSender.options().flushInterval(Duration.ofMillis(10)).resolveInterval(Duration.ofMillis(1)).build());
+      failed.await();
+      sender.send("late:1|c\n");
+      final ByteBuffer buffer = ByteBuffer.allocate(BatchedUdpSender.MAXIMUM_UDP_PAYLOAD_SIZE);
+      receiver.receive(buffer);
+      buffer.flip();
+      Assert.assertEquals("late:1|c\n", StandardCharsets.UTF_8.decode(buffer).toString());
+      sender.close();
+    }
+  }
+
+  @Test(timeout = 20_000)
+  public void checkLinesAreSpilledWhileTheAgentIsDown() throws Exception {
+    final int port;
+    try (final DatagramChannel probe = DatagramChannel.open()) {
+      probe.bind(new InetSocketAddress("127.0.0.1", 0));
+      port = ((InetSocketAddress) probe.getLocalAddress()).getPort();
+    }
+    final Path spillFile = Files.createTempFile("metrics", ".spill");
+    try {
+      // flushed by hand only, one line per packet
+      final BatchedUdpSender sender = new BatchedUdpSender("127.0.0.1", port, BatchedUdpSender.options()
+        .flushInterval(Duration.ofSeconds(60))
+        .spillFile(spillFile)
+        .spillFileSize(1 << 16)
+        .build());
+      for (int i = 0; i < 50; i += 1) {
+        sender.send("line." + i + ":1|c\n");
+        sender.flushNow();
+      }
+      Assert.assertTrue(sender.getStats().getLinesSpilled() > 0);
+      Assert.assertTrue(sender.getStats().getPacketsUnreachable() > 0);
+      Assert.assertEquals(0, sender.getStats().getWriteErrors());
+      try (final DatagramChannel receiver = DatagramChannel.open()) {
+        receiver.bind(new InetSocketAddress("127.0.0.1", port));
+        receiver.configureBlocking(false);
+        final Set<String> received = new HashSet<>();
+        final ByteBuffer buffer = ByteBuffer.allocate(BatchedUdpSender.MAXIMUM_UDP_PAYLOAD_SIZE);
+        while (received.size() < 50) {
+          sender.flushNow();
+          buffer.clear();
+          while (receiver.receive(buffer) != null) {
+            buffer.flip();
+            for (final String line : StandardCharsets.UTF_8.decode(buffer).toString().split("\n")) {
+              received.add(line);
+            }
+            buffer.clear();
+          }
+        }
+        for (int i = 0; i < 50; i += 1) {
+          Assert.assertTrue(received.contains("line." + i + ":1|c"));
+        }
+      }
+      Assert.assertEquals(0, sender.getDroppedCount());
+    } finally {
+      Files.delete(spillFile);
+    }
+  }
+
+  @Test(timeout = 20_000)
+  public void checkShardsSpillToFilesOfTheirOwn() throws Exception {
+    final int port;
+    try (final DatagramChannel probe = DatagramChannel.open()) {
+      probe.bind(new InetSocketAddress("127.0.0.1", 0));
+      port = ((InetSocketAddress) probe.getLocalAddress()).getPort();
+    }
+    final Path spillFile = Files.createTempFile("metrics", ".spill");
+    final Path secondSpillFile = spillFile.resolveSibling(spillFile.getFileName() + ".1");
+    try {
+      final BatchedUdpSender.Options options = BatchedUdpSender.options()
+        .flushInterval(Duration.ofSeconds(60))
+        .spillFile(spillFile)
+        .spillFileSize(1 << 16)
+        .shards(2)
+        .build();
+      final List<BatchedUdpSender> shards = new ArrayList<>();
+      for (int shard = 0; shard < 2; shard += 1) {
+        shards.add(new BatchedUdpSender("127.0.0.1", port, options, shard));
+      }
+      Assert.assertTrue(Files.exists(secondSpillFile));
+      for (int i = 0; i < 50; i += 1) {
+        for (int shard = 0; shard < 2; shard += 1) {
+          shards.get(shard).send("shard" + shard + ".line." + i + ":1|c\n");
+          shards.get(shard).flushNow();
+        }
+      }
+      for (final BatchedUdpSender shard : shards) {
+        Assert.assertTrue(shard.getStats().getLinesSpilled() > 0);
+      }
+      try (final DatagramChannel receiver = DatagramChannel.open()) {
+        receiver.bind(new InetSocketAddress("127.0.0.1", port));
+        receiver.configureBlocking(false);
+        final Set<String> received = new HashSet<>();
+        final ByteBuffer buffer = ByteBuffer.allocate(BatchedUdpSender.MAXIMUM_UDP_PAYLOAD_SIZE);
+        while (received.size() < 100) {
+          for (final BatchedUdpSender shard : shards) {
+            shard.flushNow();
+          }
+          buffer.clear();
+          while (receiver.receive(buffer) != null) {
+            buffer.flip();
+            for (final String line : StandardCharsets.UTF_8.decode(buffer).toString().split("\n")) {
+              Assert.assertTrue(line, line.matches("shard[01]\\.line\\.\\d+:1\\|c"));
+              received.add(line);
+            }
+            buffer.clear();
+          }
+        }
+      }
+      shards.forEach(BatchedSender::close);
+    } finally {
+      Files.delete(spillFile);
+      Files.deleteIfExists(secondSpillFile);
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void checkCloseFlushes() throws Exception {
+    try (final DatagramChannel receiver = DatagramChannel.open()) {
+      receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+      final int port = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+      final BatchedUdpSender sender = new BatchedUdpSender("127.0.0.1", port,
+        BatchedUdpSender.options().flushInterval(Duration.ofSeconds(60)).build());
+      sender.send("last:1|c\n");
+      sender.close();
+      Assert.assertTrue(sender.isClosed());
+      final ByteBuffer buffer = ByteBuffer.allocate(BatchedUdpSender.MAXIMUM_UDP_PAYLOAD_SIZE);
+      receiver.receive(buffer);
+      buffer.flip();
+      Assert.assertEquals("last:1|c\n", StandardCharsets.UTF_8.decode(buffer).toString());
+      sender.send("late:1|c\n");
+      Assert.assertEquals(1, sender.getStats().getLinesDroppedTransport());
+      sender.close();
+    }
+  }
+
+  @Test
+  public void checkPacketsNotTakenByTheTransportAreCounted() {
+    final BatchedSender sender = new BatchedSender(null, BatchedUdpSender.MAXIMUM_UDP_PAYLOAD_SIZE) {
+      {
+        start();
+      }
+
+      @Override
+      protected void write(@Nonnull final ByteBuffer packet) {
+        // e.g. a socket which is not writable right now
+      }
+    };
+    sender.send("one:1|c\ntwo:1|c\n");
+    sender.close();
+    Assert.assertEquals(2, sender.getStats().getLinesDroppedTransport());
+    Assert.assertEquals(0, sender.getStats().getPacketsWritten());
+  }
+
+  @Test
+  public void checkEmptyLinesAreIgnored() {
+    final List<String> packets = new ArrayList<>();
+    final BatchedSender sender = new BatchedSender(null, BatchedUdpSender.MAXIMUM_UDP_PAYLOAD_SIZE) {
+      {
+        start();
+      }
+
+      @Override
+      protected void write(@Nonnull final ByteBuffer packet) {
+        packets.add(StandardCharsets.UTF_8.decode(packet).toString());
+      }
+    };
+    sender.send("");
+    sender.send(new byte[0]);
+    sender.send("one:1|c\n");
+    sender.close();
+    Assert.assertEquals(Collections.singletonList("one:1|c\n"), packets);
+    Assert.assertEquals(1, sender.getStats().getLinesEnqueued());
+    Assert.assertEquals(0, sender.getDroppedCount());
+  }
+
+  @Test
+  public void checkFailedSendersReleaseTheirThread() throws Exception {
+    try {
+      new BatchedUdpSender("127.0.0.1", 70_000, null, 7);
+      Assert.fail();
+    } catch (final BatchedSender.CreationException expected) {
+      // an invalid port
+    }
+    final BatchedUdpSender sender = new BatchedUdpSender("127.0.0.1", 8125, null, 7);
+    final Reactor reactor = sender.reactor();
+    sender.close();
+    final Reactor next = Reactor.acquireShared(7);
+    try {
+      // the last user of the shard has released it, so it has been shut down
+      Assert.assertNotSame(reactor, next);
+    } finally {
+      next.release();
+    }
+  }
+
+  @Test
+  public void checkSendersShareOneThread() {
+    final List<BatchedUdpSender> senders = new ArrayList<>();
+    for (int i = 0; i < 10; i += 1) {
+      senders.add(new BatchedUdpSender("127.0.0.1", 8125, null));
+    }
+    final long threads = Thread.getAllStackTraces().keySet().stream()
+      .filter(thread -> thread.getName().equals(Reactor.class.getName()))
+      .count();
+    Assert.assertEquals(1, threads);
+    senders.forEach(BatchedSender::close);
+  }
+
+  @Test
+  public void checkShardsRunOnThreadsOfTheirOwn() {
+    final StatsdMetricSender<?> sender = new StatsdMetricSender<>("127.0.0.1", 8125,
+      BatchedUdpSender.options().shards(3).build(), null);
+    final Set<String> threads = new HashSet<>();
+    Thread.getAllStackTraces().keySet().forEach(thread -> threads.add(thread.getName()));
+    Assert.assertTrue(threads.toString(), threads.contains(Reactor.class.getName()));
+    Assert.assertTrue(threads.toString(), threads.contains(Reactor.class.getName() + "-shard-1"));
+    Assert.assertTrue(threads.toString(), threads.contains(Reactor.class.getName() + "-shard-2"));
+    sender.close();
+  }
+}
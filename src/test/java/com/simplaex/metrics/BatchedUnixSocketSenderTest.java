@@ -0,0 +1,76 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+public class BatchedUnixSocketSenderTest {
+
+  private static boolean unixDomainSocketsSupported() {
+    try {
+      Class.forName("java.net.UnixDomainSocketAddress");
+      return true;
+    } catch (final ClassNotFoundException exc) {
+      return false;
+    }
+  }
+
+  private static ServerSocketChannel listen(final Path path) throws Exception {
+    final SocketAddress address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+      .getMethod("of", Path.class)
+      .invoke(null, path);
+    final ServerSocketChannel server = (ServerSocketChannel) ServerSocketChannel.class
+      .getMethod("open", ProtocolFamily.class)
+      .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+    server.bind(address);
+    return server;
+  }
+
+  private static void readFully(final SocketChannel channel, final ByteBuffer buffer) throws Exception {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new IllegalStateException("unexpected end of stream");
+      }
+    }
+    buffer.flip();
+  }
+
+  @Test(timeout = 10_000)
+  public void checkLengthPrefixedPackets() throws Exception {
+    Assume.assumeTrue(unixDomainSocketsSupported());
+    final Path directory = Files.createTempDirectory("metrics");
+    final Path path = directory.resolve("dsd.socket");
+    try (final ServerSocketChannel server = listen(path)) {
+      final BatchedUnixSocketSender sender = new BatchedUnixSocketSender(path.toString(),
+        BatchedSender.options().flushInterval(Duration.ofMillis(10)).maxPacketSize(8192).build());
+      sender.send("one:1|c\n");
+      sender.send("two:2|c\n");
+      try (final SocketChannel client = server.accept()) {
+        final StringBuilder received = new StringBuilder();
+        while (received.length() < 16) {
+          final ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+          readFully(client, length);
+          final ByteBuffer payload = ByteBuffer.allocate(length.getInt());
+          readFully(client, payload);
+          received.append(StandardCharsets.UTF_8.decode(payload));
+        }
+        Assert.assertEquals("one:1|c\ntwo:2|c\n", received.toString());
+      }
+    } finally {
+      Files.deleteIfExists(path);
+      Files.delete(directory);
+    }
+  }
+}
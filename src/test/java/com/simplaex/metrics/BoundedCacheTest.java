@@ -0,0 +1,33 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BoundedCacheTest {
+
+  @Test
+  public void checkUnusedEntriesAreDropped() {
+    final BoundedCache<Integer, String> cache = new BoundedCache<>(100);
+    cache.computeIfAbsent(-1, String::valueOf);
+    for (int i = 0; i < 10_000; i += 1) {
+      cache.computeIfAbsent(i, String::valueOf);
+      // looked up all the time, so never dropped
+      Assert.assertNotNull(cache.get(-1));
+      Assert.assertTrue(cache.size() <= 100);
+    }
+    Assert.assertNull(cache.get(0));
+    Assert.assertEquals("9999", cache.get(9999));
+  }
+
+  @Test
+  public void checkCachedValuesAreReturned() {
+    final BoundedCache<String, Object> cache = new BoundedCache<>(10);
+    final Object first = cache.computeIfAbsent("key", key -> new Object());
+    Assert.assertSame(first, cache.computeIfAbsent("key", key -> new Object()));
+    for (int i = 0; i < 5; i += 1) {
+      cache.computeIfAbsent("other." + i, key -> new Object());
+    }
+    // moved from the previous generation to the current one
+    Assert.assertSame(first, cache.computeIfAbsent("key", key -> new Object()));
+  }
+}
@@ -0,0 +1,88 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class ByteRingBufferTest {
+
+  @Test
+  public void checkOfferAndPollAcrossTheEnd() {
+    final ByteRingBuffer ring = new ByteRingBuffer(64);
+    final ByteBuffer target = ByteBuffer.allocate(64);
+    for (int i = 0; i < 100; i += 1) {
+      final byte[] record = ("record-" + i).getBytes(StandardCharsets.US_ASCII);
+      Assert.assertTrue(ring.offer(record, 0, record.length));
+      target.clear();
+      Assert.assertEquals(record.length, ring.poll(target));
+      Assert.assertEquals("record-" + i, new String(target.array(), 0, target.position(), StandardCharsets.US_ASCII));
+    }
+    Assert.assertTrue(ring.isEmpty());
+    Assert.assertEquals(0, ring.poll(target));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void checkRejectsEmptyRecords() {
+    new ByteRingBuffer(64).offer(ByteBuffer.allocate(0));
+  }
+
+  @Test
+  public void checkRejectsWhenFull() {
+    final ByteRingBuffer ring = new ByteRingBuffer(64);
+    final byte[] record = new byte[12];
+    for (int i = 0; i < 4; i += 1) {
+      Assert.assertTrue(ring.offer(record, 0, record.length));
+    }
+    Assert.assertFalse(ring.offer(ByteBuffer.wrap(record)));
+    Assert.assertEquals(-1, ring.poll(ByteBuffer.allocate(4)));
+    ring.skip();
+    Assert.assertTrue(ring.offer(ByteBuffer.wrap(record)));
+  }
+
+  @Test(timeout = 30_000)
+  public void checkConcurrentProducers() throws InterruptedException {
+    final int producers = 8;
+    final int perProducer = 20_000;
+    final ByteRingBuffer ring = new ByteRingBuffer(4096);
+    final CountDownLatch done = new CountDownLatch(producers);
+    for (int p = 0; p < producers; p += 1) {
+      final int producer = p;
+      new Thread(() -> {
+        final ByteBuffer record = ByteBuffer.allocate(8);
+        for (int i = 0; i < perProducer; i += 1) {
+          record.clear();
+          record.putInt(producer).putInt(i).flip();
+          while (!ring.offer(record)) {
+            Thread.yield();
+          }
+        }
+        done.countDown();
+      }).start();
+    }
+    final Map<Integer, Integer> next = new HashMap<>();
+    final ByteBuffer target = ByteBuffer.allocate(8);
+    int received = 0;
+    while (received < producers * perProducer) {
+      target.clear();
+      final int length = ring.poll(target);
+      if (length == 0) {
+        Thread.yield();
+        continue;
+      }
+      Assert.assertEquals(8, length);
+      target.flip();
+      final int producer = target.getInt();
+      final int sequence = target.getInt();
+      Assert.assertEquals((int) next.getOrDefault(producer, 0), sequence);
+      next.put(producer, sequence + 1);
+      received += 1;
+    }
+    done.await();
+    Assert.assertTrue(ring.isEmpty());
+  }
+}
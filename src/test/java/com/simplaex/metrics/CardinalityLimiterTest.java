@@ -0,0 +1,54 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class CardinalityLimiterTest {
+
+  private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+  private static MetricKey key(final String user) {
+    return MetricKey.of("logins", Metric.Kind.COUNTER, 1.0, Collections.singletonList(Metric.tag("user", user)));
+  }
+
+  @Test
+  public void checkNewCombinationsAreFoldedWhenFull() {
+    final CardinalityLimiter limiter = new CardinalityLimiter(2);
+    final long now = System.nanoTime();
+    Assert.assertSame(key("a"), limiter.limit(key("a"), now));
+    Assert.assertSame(key("b"), limiter.limit(key("b"), now));
+    Assert.assertEquals(key(CardinalityLimiter.OTHER), limiter.limit(key("c"), now));
+    Assert.assertEquals(key(CardinalityLimiter.OTHER), limiter.limit(key("d"), now));
+    Assert.assertSame(key("a"), limiter.limit(key("a"), now));
+    Assert.assertEquals(Collections.singletonMap("logins", 2L), limiter.getCapped());
+  }
+
+  @Test
+  public void checkUntaggedMetricsAreNotLimited() {
+    final CardinalityLimiter limiter = new CardinalityLimiter(1);
+    final MetricKey untagged = MetricKey.of("logins", Metric.Kind.COUNTER, 1.0, Collections.emptyList());
+    limiter.limit(key("a"));
+    Assert.assertSame(untagged, limiter.limit(untagged));
+    Assert.assertTrue(limiter.getCapped().isEmpty());
+  }
+
+  @Test
+  public void checkIdleCombinationsAreEvicted() {
+    final List<MetricKey> evicted = new ArrayList<>();
+    final CardinalityLimiter limiter = new CardinalityLimiter(2, Duration.ofMinutes(5), evicted::add);
+    final long start = System.nanoTime();
+    limiter.limit(key("a"), start);
+    limiter.limit(key("b"), start);
+    limiter.limit(key("a"), start + 4 * MINUTE);
+    Assert.assertEquals(key(CardinalityLimiter.OTHER), limiter.limit(key("c"), start + 4 * MINUTE));
+    Assert.assertSame(key("c"), limiter.limit(key("c"), start + 6 * MINUTE));
+    Assert.assertEquals(Collections.singletonList(key("b")), evicted);
+    Assert.assertEquals(2, limiter.size());
+  }
+}
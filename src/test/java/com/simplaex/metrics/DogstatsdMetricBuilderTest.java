@@ -0,0 +1,99 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class DogstatsdMetricBuilderTest {
+
+  private final DogstatsdMetricBuilder builder = new DogstatsdMetricBuilder();
+
+  private static String encodeDouble(final double value) {
+    final ByteBuffer buffer = ByteBuffer.allocate(64);
+    Encoding.putDouble(buffer, value);
+    return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+  }
+
+  @Test
+  public void checkDoubleFormatting() {
+    Assert.assertEquals("0", encodeDouble(0));
+    Assert.assertEquals("1", encodeDouble(1.0));
+    Assert.assertEquals("-17", encodeDouble(-17.0));
+    Assert.assertEquals("0.1", encodeDouble(0.1));
+    Assert.assertEquals("0.05", encodeDouble(0.05));
+    Assert.assertEquals("1234.5678", encodeDouble(1234.5678));
+    Assert.assertEquals("-3.75", encodeDouble(-3.75));
+    Assert.assertEquals("2", encodeDouble(1.9999999999));
+    Assert.assertEquals("9.223372036854776E18", encodeDouble(Long.MAX_VALUE));
+    Assert.assertEquals("1.0E-5", encodeDouble(0.00001));
+    Assert.assertEquals("NaN", encodeDouble(Double.NaN));
+  }
+
+  @Test
+  public void checkMetricLines() {
+    Assert.assertEquals("a.b:3|c\n", builder.build("a.b", Metric.Kind.COUNTER, 1.0, 3, Collections.emptyList()));
+    Assert.assertEquals("a.b:1.5|g|@0.25\n", builder.build("a.b", Metric.Kind.GAUGE, 0.25, 1.5, Collections.emptyList()));
+    Assert.assertEquals("d:0.5|d\n", builder.build("d", Metric.Kind.DISTRIBUTION, 1.0, 0.5, Collections.emptyList()));
+    Assert.assertEquals("t:12.125|ms|#k:v,x:\u00e4\n", builder.build("t", Metric.Kind.TIMING, 1.0, 12.125,
+      Arrays.asList(Metric.tag("k", "v"), Metric.tag("x", "\u00e4"))));
+  }
+
+  @Test
+  public void checkEvents() {
+    Assert.assertEquals("_e{5,7}:title|message\n", builder.build(Event.info("title", "message")));
+    Assert.assertEquals("_e{5,9}:title|line\\none|p:low|t:error|#k:v\n",
+      builder.build(Event.error("title", "line\none").lowPriority().withTag("k", "v")));
+    Assert.assertEquals("_e{2,0}:\u00fc||t:warning|#a:b\n", builder.build(Event.warning("\u00fc", "").withTag("a", "b")));
+  }
+
+  @Test
+  public void checkSanitizing() {
+    Assert.assertEquals("a_b_c:1|c|#k_1:v:_x\n", builder.build("a|b:c", Metric.Kind.COUNTER, 1.0, 1,
+      Collections.singletonList(Metric.tag("k:1", "v:,x"))));
+  }
+
+  @Test
+  public void checkKeys() {
+    final Metric<InMemoryMetricsTest.M> metric = InMemoryMetricsTest.M.ONE.withTag("a", 1).withTag("b", "x|y");
+    final MetricKey key = MetricKey.of(metric);
+    Assert.assertSame(key, MetricKey.of(InMemoryMetricsTest.M.ONE.withTag("a", 1).withTag("b", "x|y")));
+    Assert.assertNotSame(key, MetricKey.of(InMemoryMetricsTest.M.ONE.withTag("a", 2).withTag("b", "x|y")));
+    Assert.assertSame(MetricKey.of(InMemoryMetricsTest.M.ONE), MetricKey.of(InMemoryMetricsTest.M.ONE));
+    final ByteBuffer buffer = ByteBuffer.allocate(64);
+    builder.encode(buffer, key, 0.5, 2.5);
+    builder.encode(buffer, key, 1.0, 3);
+    Assert.assertEquals("one:2.5|c|@0.5|#a:1,b:x_y\none:3|c|#a:1,b:x_y\n",
+      new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void checkMultiValueLines() {
+    final MetricKey key = MetricKey.of("d", Metric.Kind.DISTRIBUTION, 1.0, Collections.singletonList(Metric.tag("k", "v")));
+    final ByteBuffer buffer = ByteBuffer.allocate(64);
+    builder.encode(buffer, key, 0.5, new double[]{0, 1.5, 2, 3}, 1, 3);
+    Assert.assertEquals("d:1.5:2|d|@0.5|#k:v\n", new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+  }
+
+  @Test(expected = BufferOverflowException.class)
+  public void checkOverflow() {
+    builder.encode(ByteBuffer.allocate(8), "some.long.metric.name", Metric.Kind.COUNTER, 1.0, 1, Collections.emptyList());
+  }
+
+  @Test
+  public void checkConstantTags() {
+    final DogstatsdMetricBuilder tagging = new DogstatsdMetricBuilder(Collections.singletonList(Metric.tag("env", "prod")));
+    final MetricBuilder moreTags = tagging.withConstantTags(Collections.singletonList(Metric.tag("pod", "a|b")));
+    Assert.assertEquals("a:3|c|#env:prod\n", tagging.build("a", Metric.Kind.COUNTER, 1.0, 3, Collections.emptyList()));
+    Assert.assertEquals("a:3|c|#k:v,env:prod,pod:a_b\n",
+      moreTags.build("a", Metric.Kind.COUNTER, 1.0, 3, Collections.singletonList(Metric.tag("k", "v"))));
+    final ByteBuffer buffer = ByteBuffer.allocate(128);
+    tagging.encode(buffer, MetricKey.of("a", Metric.Kind.GAUGE, 1.0, Collections.singletonList(Metric.tag("k", "v"))), 1.0, 2);
+    Assert.assertEquals("a:2|g|#k:v,env:prod\n", new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+    Assert.assertEquals("_e{1,1}:t|m|#env:prod\n", tagging.build(Event.info("t", "m")));
+  }
+}
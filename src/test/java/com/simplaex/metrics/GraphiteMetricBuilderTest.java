@@ -0,0 +1,39 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class GraphiteMetricBuilderTest {
+
+  private final GraphiteMetricBuilder builder = new GraphiteMetricBuilder();
+
+  private static String withoutTimestamp(final String line) {
+    Assert.assertTrue(line, line.matches(".* [0-9]+\n"));
+    return line.substring(0, line.lastIndexOf(' '));
+  }
+
+  @Test
+  public void checkMetricLines() {
+    Assert.assertEquals("a.b 3", withoutTimestamp(builder.build("a.b", Metric.Kind.COUNTER, 1.0, 3, Collections.emptyList())));
+    Assert.assertEquals("a.b 12", withoutTimestamp(builder.build("a.b", Metric.Kind.COUNTER, 0.25, 3, Collections.emptyList())));
+    Assert.assertEquals("a.b 1.5", withoutTimestamp(builder.build("a.b", Metric.Kind.GAUGE, 0.25, 1.5, Collections.emptyList())));
+    Assert.assertEquals("t_x;k=v;a_b=_c=d 12.125", withoutTimestamp(builder.build("t x", Metric.Kind.TIMING, 1.0, 12.125,
+      Arrays.asList(Metric.tag("k", "v"), Metric.tag("a=b", "~c=d")))));
+  }
+
+  @Test
+  public void checkEvents() {
+    Assert.assertEquals("events;level=error;title=Out_of_memory;k=v 1",
+      withoutTimestamp(builder.build(Event.error("Out of memory", "message").withTag("k", "v"))));
+  }
+
+  @Test
+  public void checkConstantTags() {
+    final GraphiteMetricBuilder tagging = new GraphiteMetricBuilder(Collections.singletonList(Metric.tag("env", "prod")));
+    Assert.assertEquals("a;k=v;env=prod 3", withoutTimestamp(tagging.build("a", Metric.Kind.COUNTER, 1.0, 3,
+      Collections.singletonList(Metric.tag("k", "v")))));
+  }
+}
@@ -0,0 +1,30 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+  @Test
+  public void checkSmallSets() {
+    final HyperLogLog hll = new HyperLogLog();
+    Assert.assertEquals(0, hll.estimate());
+    for (int i = 0; i < 100; i += 1) {
+      hll.add(HyperLogLog.hash("member-" + i));
+      hll.add(HyperLogLog.hash("member-" + i));
+    }
+    Assert.assertEquals(100, hll.estimateAndReset(), 2);
+    Assert.assertEquals(0, hll.estimate());
+  }
+
+  @Test
+  public void checkLargeSetsAreAccurate() {
+    final HyperLogLog hll = new HyperLogLog();
+    final int count = 1_000_000;
+    for (int i = 0; i < count; i += 1) {
+      hll.add((double) i);
+    }
+    // four times the standard error of about 1.6%
+    Assert.assertEquals(count, hll.estimate(), count * 0.065);
+  }
+}
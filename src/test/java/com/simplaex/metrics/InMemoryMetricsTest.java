@@ -8,17 +8,27 @@ import javax.annotation.Nonnull;
 import java.math.BigDecimal;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 public class InMemoryMetricsTest {
 
   enum M implements Metric<M> {
     ONE(Kind.COUNTER),
     TWO(Kind.GAUGE),
-    TIME(Kind.TIMING);
+    TIME(Kind.TIMING),
+    SAMPLED_ONE("one", Kind.COUNTER, 0.5);
 
     M(@Nonnull final Kind kind) {
       this.name = name().toLowerCase();
       this.kind = kind;
+      this.sampleRate = 1.0;
+    }
+
+    M(@Nonnull final String name, @Nonnull final Kind kind, final double sampleRate) {
+      this.name = name;
+      this.kind = kind;
+      this.sampleRate = sampleRate;
     }
 
     @Getter
@@ -26,6 +36,9 @@ public class InMemoryMetricsTest {
 
     @Getter
     private final Kind kind;
+
+    @Getter
+    private final double sampleRate;
   }
 
   @Test
@@ -42,6 +55,105 @@ public class InMemoryMetricsTest {
     Assert.assertEquals(values.get("one,key=value").stripTrailingZeros(), BigDecimal.valueOf(3.75).stripTrailingZeros());
   }
 
+  @Test
+  public void checkConcurrentCounters() throws Exception {
+    final InMemoryMetrics<M> sender = new InMemoryMetrics<>();
+    final Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t += 1) {
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 10_000; i += 1) {
+          sender.emit(M.ONE);
+          sender.emit(M.ONE.withTag("key", "value"), 2);
+        }
+      });
+      threads[t].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(80_000, sender.getValue(M.ONE), 0.0);
+    Assert.assertEquals(160_000, sender.getValue(M.ONE.withTag("key", "value")), 0.0);
+    Assert.assertEquals(2, sender.snapshot().size());
+    sender.reset();
+    Assert.assertEquals(0, sender.getValue(M.ONE), 0.0);
+    Assert.assertTrue(sender.getValues().isEmpty());
+  }
+
+  @Test
+  public void checkCountersAreSummedExactly() {
+    final InMemoryMetrics<M> sender = new InMemoryMetrics<>();
+    sender.emit(M.ONE, 0.1);
+    sender.emit(M.ONE, 0.2);
+    sender.emit(M.ONE.withTag("key", "value"));
+    sender.emit(M.ONE.withTag("key", "value"), 2);
+    Assert.assertEquals(new BigDecimal("0.3"), sender.getValues().get("one"));
+    Assert.assertEquals(new BigDecimal("3.0"), sender.getValues().get("one,key=value"));
+  }
+
+  @Test
+  public void checkSampleRatesShareASeries() {
+    final InMemoryMetrics<M> sender = new InMemoryMetrics<>();
+    sender.emit(M.ONE, 2);
+    sender.emit(M.SAMPLED_ONE, 3);
+    sender.emit(M.SAMPLED_ONE.withTag("key", "value"));
+    final Map<String, BigDecimal> values = sender.getValues();
+    Assert.assertEquals(new BigDecimal("5.0"), values.get("one"));
+    Assert.assertEquals(5, sender.getValue(M.SAMPLED_ONE), 0.0);
+    Assert.assertEquals(2, values.size());
+    Assert.assertEquals(2, values.entrySet().size());
+    Assert.assertEquals(2, sender.snapshot().size());
+  }
+
+  @Test
+  public void checkValuesAreALiveView() {
+    final InMemoryMetrics<M> sender = new InMemoryMetrics<>();
+    final Map<String, BigDecimal> values = sender.getValues();
+    Assert.assertTrue(values.isEmpty());
+    sender.emit(M.ONE);
+    sender.emit(M.TWO, 5);
+    Assert.assertEquals(new BigDecimal("1.0"), values.get("one"));
+    sender.emit(M.ONE);
+    Assert.assertEquals(new BigDecimal("2.0"), values.get("one"));
+    Assert.assertEquals(2, values.size());
+    Assert.assertEquals(new BigDecimal("5.0"), values.get("two"));
+  }
+
+  @Test
+  public void checkSnapshotsAreConsistent() throws Exception {
+    final InMemoryMetrics<M> sender = new InMemoryMetrics<>();
+    final MetricKey first = MetricKey.of(M.ONE.withTag("step", 1));
+    final MetricKey second = MetricKey.of(M.ONE.withTag("step", 2));
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t += 1) {
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 50_000; i += 1) {
+          sender.emit(M.ONE.withTag("step", 1));
+          sender.emit(M.ONE.withTag("step", 2));
+        }
+      });
+      threads[t].start();
+    }
+    while (Arrays.stream(threads).anyMatch(Thread::isAlive)) {
+      final Map<MetricKey, BigDecimal> snapshot = sender.snapshot();
+      final long ahead = snapshot.getOrDefault(first, BigDecimal.ZERO).longValue()
+        - snapshot.getOrDefault(second, BigDecimal.ZERO).longValue();
+      // every thread is at most one step ahead at any point in time
+      Assert.assertTrue(String.valueOf(ahead), ahead >= 0 && ahead <= threads.length);
+    }
+    Assert.assertEquals(200_000, sender.getValue(M.ONE.withTag("step", 2)), 0.0);
+  }
+
+  @Test
+  public void checkPolledGauges() {
+    final InMemoryMetrics<M> sender = new InMemoryMetrics<>();
+    final int[] size = {7};
+    final LongSupplier supplier = () -> size[0];
+    sender.registerGauge(M.TWO, supplier);
+    Assert.assertEquals(7, sender.getValue(M.TWO), 0.0);
+    size[0] = 9;
+    Assert.assertEquals(BigDecimal.valueOf(9.0), sender.getValues().get("two"));
+  }
+
   @Test
   public void checkInMemoryEvents() {
     final InMemoryMetrics<M> sender = new InMemoryMetrics<>();
@@ -61,4 +173,34 @@ public class InMemoryMetricsTest {
     Assert.assertTrue(sender.getValues().get("time").compareTo(BigDecimal.ZERO) > 0);
   }
 
+  @Test
+  public void checkTimingApi() {
+    final InMemoryMetrics<M> sender = new InMemoryMetrics<>();
+    // as if timing had been started five milliseconds ago
+    final long started = sender.startTiming() - TimeUnit.MILLISECONDS.toNanos(5);
+    sender.stopTiming(M.TIME, started);
+    Assert.assertTrue(sender.getValue(M.TIME) >= 5);
+
+    final Timing first;
+    try (final Timing timing = sender.timing(M.TIME, Timing.Clock.COARSE)) {
+      first = timing;
+      sender.emit(M.TIME, -1);
+    }
+    Assert.assertTrue(sender.getValue(M.TIME) >= 0);
+    try (final Timing timing = sender.timing(M.TIME)) {
+      Assert.assertSame(first, timing);
+      try (final Timing nested = sender.timing(M.TIME)) {
+        Assert.assertNotSame(timing, nested);
+      }
+    }
+
+    final Timing reusable = Timing.create(sender, M.TIME, Timing.Clock.PRECISE);
+    for (int i = 0; i < 3; i += 1) {
+      sender.emit(M.TIME, -1);
+      try (final Timing ignored = reusable.restart()) {
+        Assert.assertEquals(-1, sender.getValue(M.TIME), 0.0);
+      }
+      Assert.assertTrue(sender.getValue(M.TIME) >= 0);
+    }
+  }
 }
@@ -0,0 +1,39 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class InfluxMetricBuilderTest {
+
+  private final InfluxMetricBuilder builder = new InfluxMetricBuilder();
+
+  private static String withoutTimestamp(final String line) {
+    Assert.assertTrue(line, line.matches(".* [0-9]+\n"));
+    return line.substring(0, line.lastIndexOf(' '));
+  }
+
+  @Test
+  public void checkMetricLines() {
+    Assert.assertEquals("a.b value=3", withoutTimestamp(builder.build("a.b", Metric.Kind.COUNTER, 1.0, 3, Collections.emptyList())));
+    Assert.assertEquals("a.b value=12", withoutTimestamp(builder.build("a.b", Metric.Kind.COUNTER, 0.25, 3, Collections.emptyList())));
+    Assert.assertEquals("t\\ x,a\\=b=c\\,d,k=v value=12.125", withoutTimestamp(builder.build("t x", Metric.Kind.TIMING, 1.0, 12.125,
+      Arrays.asList(Metric.tag("k", "v"), Metric.tag("a=b", "c,d")))));
+  }
+
+  @Test
+  public void checkEvents() {
+    Assert.assertEquals("events,k=v,level=error title=\"Out of \\\"memory\\\"\",text=\"line one\"",
+      withoutTimestamp(builder.build(Event.error("Out of \"memory\"", "line\none").withTag("k", "v"))));
+  }
+
+  @Test
+  public void checkConstantTags() {
+    final InfluxMetricBuilder tagging = new InfluxMetricBuilder(Collections.singletonList(Metric.tag("env", "prod")));
+    Assert.assertEquals("a,k=v,env=prod value=3", withoutTimestamp(tagging.build("a", Metric.Kind.COUNTER, 1.0, 3,
+      Collections.singletonList(Metric.tag("k", "v")))));
+    Assert.assertEquals("events,level=info,env=prod title=\"t\",text=\"m\"", withoutTimestamp(tagging.build(Event.info("t", "m"))));
+  }
+}
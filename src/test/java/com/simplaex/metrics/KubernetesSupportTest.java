@@ -0,0 +1,32 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+public class KubernetesSupportTest {
+
+  @Test
+  public void checkConstantTags() {
+    final Map<String, String> env = new HashMap<>();
+    env.put("DD_TAGS", "team:core, region:eu-west-1 invalid");
+    env.put("DD_VERSION", "1.2.3");
+    env.put("DD_ENTITY_ID", "3fd2-11ea");
+    env.put("HOSTNAME", "app-7d9f");
+    Assert.assertEquals(Arrays.asList(
+      Metric.tag("team", "core"),
+      Metric.tag("region", "eu-west-1"),
+      Metric.tag("version", "1.2.3"),
+      Metric.tag("dd.internal.entity_id", "3fd2-11ea"),
+      Metric.tag("kube_namespace", "shop"),
+      Metric.tag("pod_name", "app-7d9f")
+    ), KubernetesSupport.getConstantTags(env::get, () -> Optional.of("shop")));
+    Assert.assertEquals(Collections.emptyList(),
+      KubernetesSupport.getConstantTags(Collections.singletonMap("HOSTNAME", "app-7d9f")::get, Optional::empty));
+  }
+}
@@ -0,0 +1,40 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class MetricFilterTest {
+
+  private static MetricKey key(final String name, final Metric.Tag... tags) {
+    return MetricKey.of(name, Metric.Kind.COUNTER, 1.0, Arrays.asList(tags));
+  }
+
+  @Test
+  public void checkRules() {
+    final MetricFilter filter = MetricFilter.builder()
+      .deny("debug\\..*")
+      .renamePrefix("com.simplaex.", "")
+      .rename("requests\\.(.*)", "http.$1")
+      .allowOnly("http\\..*|jobs")
+      .dropTag("user")
+      .renameTag("p", "path")
+      .addTag("env", "prod")
+      .build();
+    Assert.assertNull(filter.apply(key("debug.cache")));
+    Assert.assertNull(filter.apply(key("com.simplaex.other")));
+    Assert.assertEquals(key("jobs", Metric.tag("env", "prod")), filter.apply(key("com.simplaex.jobs")));
+    Assert.assertEquals(key("http.count", Metric.tag("path", "/a"), Metric.tag("env", "prod")),
+      filter.apply(key("requests.count", Metric.tag("user", "42"), Metric.tag("p", "/a"), Metric.tag("env", "dev"))));
+  }
+
+  @Test
+  public void checkUnchangedKeysAreKept() {
+    final MetricFilter filter = MetricFilter.builder().deny("debug\\..*").build();
+    final MetricKey key = key("jobs", Metric.tag("k", "v"));
+    Assert.assertSame(key, filter.apply(key));
+    Assert.assertSame(key("jobs"), filter.apply(MetricKey.of("jobs", Metric.Kind.COUNTER, 1.0, Collections.emptyList())));
+  }
+}
@@ -0,0 +1,163 @@
+package com.simplaex.metrics;
+
+import lombok.Getter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+public class PrometheusMetricsSenderTest {
+
+  enum M implements Metric<M> {
+    REQUESTS("http.requests", Kind.COUNTER),
+    SESSIONS("sessions", Kind.GAUGE),
+    LATENCY("http.latency", Kind.TIMING),
+    CONNECTIONS("connections", Kind.COUNTER),
+    OPEN_CONNECTIONS("connections", Kind.GAUGE),
+    EVENTS("events", Kind.COUNTER),
+    VISITORS("visitors", Kind.SET),
+    VISITOR_COUNT("visitors", Kind.GAUGE),
+    CACHE_HITS("cache.hits", Kind.COUNTER),
+    SAMPLED_CACHE_HITS("cache.hits", Kind.COUNTER, 0.5),
+    CACHE_HITS_SANITIZED("cache_hits", Kind.COUNTER);
+
+    M(@Nonnull final String name, @Nonnull final Kind kind) {
+      this(name, kind, 1.0);
+    }
+
+    M(@Nonnull final String name, @Nonnull final Kind kind, final double sampleRate) {
+      this.name = name;
+      this.kind = kind;
+      this.sampleRate = sampleRate;
+    }
+
+    @Getter
+    private final double sampleRate;
+
+    @Getter
+    private final String name;
+
+    @Getter
+    private final Kind kind;
+  }
+
+  private static List<String> render(@Nonnull final PrometheusMetricsSender<M> sender) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    sender.writeTo(out);
+    return Arrays.asList(new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n"));
+  }
+
+  @Test
+  public void checkOpenMetricsFormat() throws Exception {
+    final PrometheusMetricsSender<M> sender = new PrometheusMetricsSender<>(null, PrometheusMetricsSender.options()
+      .buckets(new double[]{0.01, 0.1})
+      .build());
+    sender.emit(M.REQUESTS.withTag("method", "GET"), 3);
+    sender.emit(M.REQUESTS.withTag("method", "GET"));
+    sender.emit(M.REQUESTS.withTag("path", "/a\"b\\c"));
+    sender.emit(M.SESSIONS, 12);
+    sender.emit(M.SESSIONS, 7);
+    sender.emit(M.LATENCY, 5);
+    sender.emit(M.LATENCY, 50);
+    sender.emit(M.LATENCY, 500);
+    sender.emit(Event.error("Oops", "Something went wrong"));
+
+    final List<String> lines = render(sender);
+    Assert.assertTrue(lines.contains("# TYPE http_requests counter"));
+    Assert.assertTrue(lines.contains("http_requests_total{method=\"GET\"} 4"));
+    Assert.assertTrue(lines.contains("http_requests_total{path=\"/a\\\"b\\\\c\"} 1"));
+    Assert.assertTrue(lines.contains("# TYPE sessions gauge"));
+    Assert.assertTrue(lines.contains("sessions 7"));
+    Assert.assertTrue(lines.contains("# TYPE http_latency_seconds histogram"));
+    Assert.assertTrue(lines.contains("http_latency_seconds_bucket{le=\"0.01\"} 1"));
+    Assert.assertTrue(lines.contains("http_latency_seconds_bucket{le=\"0.1\"} 2"));
+    Assert.assertTrue(lines.contains("http_latency_seconds_bucket{le=\"+Inf\"} 3"));
+    Assert.assertTrue(lines.contains("http_latency_seconds_count 3"));
+    Assert.assertTrue(lines.contains("http_latency_seconds_sum 0.555"));
+    Assert.assertTrue(lines.contains("events_total{level=\"error\"} 1"));
+    Assert.assertEquals("# EOF", lines.get(lines.size() - 1));
+  }
+
+  @Test
+  public void checkNamesAreExportedWithOneTypeOnly() throws Exception {
+    final PrometheusMetricsSender<M> sender = new PrometheusMetricsSender<>();
+    sender.emit(M.CONNECTIONS);
+    sender.emit(M.OPEN_CONNECTIONS, 3);
+    sender.emit(M.EVENTS, 2);
+    sender.emit(Event.info("title", "message"));
+
+    final List<String> lines = render(sender);
+    Assert.assertTrue(lines.contains("# TYPE connections counter"));
+    Assert.assertTrue(lines.contains("connections_total 1"));
+    Assert.assertTrue(lines.contains("# TYPE connections_gauge gauge"));
+    Assert.assertTrue(lines.contains("connections_gauge 3"));
+    Assert.assertTrue(lines.contains("# TYPE events_counter counter"));
+    Assert.assertTrue(lines.contains("events_counter_total 2"));
+    Assert.assertTrue(lines.contains("events_total{level=\"info\"} 1"));
+    Assert.assertEquals(1, lines.stream().filter(line -> line.startsWith("# TYPE events ")).count());
+  }
+
+  @Test
+  public void checkSeriesWithTheSameNameAndLabelsAreMerged() throws Exception {
+    final PrometheusMetricsSender<M> sender = new PrometheusMetricsSender<>();
+    sender.emit(M.CACHE_HITS.withTag("cache", "users"));
+    sender.emit(M.SAMPLED_CACHE_HITS.withTag("cache", "users"));
+    sender.emit(M.CACHE_HITS_SANITIZED.withTag("cache", "users"));
+    sender.emit(M.VISITOR_COUNT, 3);
+    sender.emit(M.VISITORS, 42);
+
+    final List<String> lines = render(sender);
+    Assert.assertEquals(1, lines.stream().filter(line -> line.startsWith("cache_hits_total")).count());
+    Assert.assertTrue(lines.contains("cache_hits_total{cache=\"users\"} 3"));
+    Assert.assertTrue(lines.contains("# TYPE visitors gauge"));
+    Assert.assertTrue(lines.contains("visitors 3"));
+    Assert.assertTrue(lines.contains("# TYPE visitors_set gauge"));
+    Assert.assertTrue(lines.contains("visitors_set 1"));
+  }
+
+  @Test
+  public void checkManySeriesAreStreamed() throws Exception {
+    final PrometheusMetricsSender<M> sender = new PrometheusMetricsSender<>();
+    for (int i = 0; i < 20_000; i += 1) {
+      sender.emit(M.REQUESTS.withTag("id", i));
+    }
+    final List<String> lines = render(sender);
+    Assert.assertEquals(20_000 + 1 + 4 + 2, lines.size());
+    Assert.assertTrue(lines.contains("http_requests_total{id=\"19999\"} 1"));
+  }
+
+  @Test
+  public void checkHttpEndpoint() throws Exception {
+    final PrometheusMetricsSender<M> sender = new PrometheusMetricsSender<>(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), null);
+    try {
+      final Object target = new Object();
+      sender.registerGauge(M.SESSIONS, target, t -> 42);
+      final URL url = new URL("http://localhost:" + sender.getAddress().getPort() + "/metrics");
+      final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      Assert.assertEquals(200, connection.getResponseCode());
+      Assert.assertEquals(PrometheusMetricsSender.CONTENT_TYPE, connection.getContentType());
+      final ByteArrayOutputStream body = new ByteArrayOutputStream();
+      try (final InputStream in = connection.getInputStream()) {
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+          body.write(buffer, 0, read);
+        }
+      }
+      final String text = new String(body.toByteArray(), StandardCharsets.UTF_8);
+      Assert.assertTrue(text.contains("\nsessions 42\n"));
+      Assert.assertTrue(text.endsWith("# EOF\n"));
+    } finally {
+      sender.stop();
+    }
+  }
+}
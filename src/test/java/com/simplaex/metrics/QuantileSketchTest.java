@@ -0,0 +1,90 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+public class QuantileSketchTest {
+
+  private static void assertWithinAccuracy(final double expected, final double actual) {
+    Assert.assertEquals(expected, actual, expected * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+  }
+
+  @Test
+  public void checkQuantiles() {
+    final QuantileSketch sketch = new QuantileSketch();
+    for (int i = 1; i <= 10_000; i += 1) {
+      sketch.record(i / 10.0);
+    }
+    final QuantileSketch.Snapshot snapshot = sketch.snapshot(new QuantileSketch.Snapshot());
+    Assert.assertEquals(10_000, snapshot.getCount());
+    Assert.assertEquals(0.1, snapshot.getMin(), 0.0);
+    Assert.assertEquals(1000, snapshot.getMax(), 0.0);
+    Assert.assertEquals(5_000_500, snapshot.getSum(), 1e-6);
+    assertWithinAccuracy(500, snapshot.quantile(0.5));
+    assertWithinAccuracy(950, snapshot.quantile(0.95));
+    assertWithinAccuracy(999, snapshot.quantile(0.999));
+    Assert.assertEquals(1000, snapshot.quantile(1), 0.0);
+    Assert.assertEquals(0.1, snapshot.quantile(0), 0.0);
+  }
+
+  @Test
+  public void checkSnapshotResets() {
+    final QuantileSketch sketch = new QuantileSketch();
+    final QuantileSketch.Snapshot snapshot = new QuantileSketch.Snapshot();
+    sketch.record(42);
+    Assert.assertEquals(1, sketch.snapshot(snapshot).getCount());
+    Assert.assertEquals(0, sketch.snapshot(snapshot).getCount());
+    Assert.assertTrue(Double.isNaN(snapshot.quantile(0.5)));
+  }
+
+  @Test
+  public void checkOutOfRangeValues() {
+    final QuantileSketch sketch = new QuantileSketch();
+    sketch.record(0);
+    sketch.record(-5);
+    sketch.record(1e12);
+    final QuantileSketch.Snapshot snapshot = sketch.snapshot(new QuantileSketch.Snapshot());
+    Assert.assertEquals(3, snapshot.getCount());
+    Assert.assertEquals(-5, snapshot.getMin(), 0.0);
+    Assert.assertEquals(1e12, snapshot.getMax(), 0.0);
+    assertWithinAccuracy(QuantileSketch.MAX_VALUE, snapshot.quantile(0.99));
+  }
+
+  @Test
+  public void checkMerge() {
+    final QuantileSketch a = new QuantileSketch();
+    final QuantileSketch b = new QuantileSketch();
+    for (int i = 1; i <= 100; i += 1) {
+      a.record(i);
+      b.record(i + 100);
+    }
+    a.merge(b);
+    final QuantileSketch.Snapshot snapshot = a.snapshot(new QuantileSketch.Snapshot());
+    Assert.assertEquals(200, snapshot.getCount());
+    Assert.assertEquals(200, snapshot.getMax(), 0.0);
+    assertWithinAccuracy(100, snapshot.quantile(0.5));
+    Assert.assertEquals(100, b.snapshot(new QuantileSketch.Snapshot()).getCount());
+  }
+
+  @Test
+  public void checkConcurrentRecording() throws Exception {
+    final QuantileSketch sketch = new QuantileSketch();
+    final int threads = 8;
+    final int perThread = 100_000;
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t += 1) {
+      new Thread(() -> {
+        for (int i = 0; i < perThread; i += 1) {
+          sketch.record(1 + i % 100);
+        }
+        done.countDown();
+      }).start();
+    }
+    done.await();
+    final QuantileSketch.Snapshot snapshot = sketch.snapshot(new QuantileSketch.Snapshot());
+    Assert.assertEquals(threads * perThread, snapshot.getCount());
+    assertWithinAccuracy(50, snapshot.quantile(0.5));
+  }
+}
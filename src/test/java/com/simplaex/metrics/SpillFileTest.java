@@ -0,0 +1,47 @@
+package com.simplaex.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class SpillFileTest {
+
+  private static ByteBuffer lines(final String lines) {
+    return ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String peek(final SpillFile spill, final int capacity, final int offset) {
+    final ByteBuffer buffer = ByteBuffer.allocate(capacity);
+    final int length = spill.peek(buffer, offset);
+    Assert.assertEquals(length, buffer.position());
+    return new String(buffer.array(), 0, length, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void checkRingAndPersistence() throws Exception {
+    final Path path = Files.createTempFile("metrics", ".spill");
+    try {
+      final SpillFile spill = new SpillFile(path, 24 + 16);
+      Assert.assertTrue(spill.append(lines("a:1|c\nb:2|c\n")));
+      Assert.assertFalse(spill.append(lines("c:3|c\n")));
+      Assert.assertEquals("a:1|c\n", peek(spill, 8, 0));
+      Assert.assertEquals("b:2|c\n", peek(spill, 8, 6));
+      spill.skip(6);
+      // wraps around the end of the file
+      Assert.assertTrue(spill.append(lines("c:3|c\n")));
+      Assert.assertEquals(12, spill.size());
+
+      final SpillFile reopened = new SpillFile(path, 24 + 16);
+      Assert.assertEquals("b:2|c\nc:3|c\n", peek(reopened, 64, 0));
+      reopened.skip(12);
+      Assert.assertEquals(0, reopened.size());
+      Assert.assertEquals("", peek(reopened, 64, 0));
+    } finally {
+      Files.delete(path);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.simplaex.metrics;
+
+import lombok.Getter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class StatsdMetricSenderTest {
+
+  enum M implements Metric<M> {
+    LEVEL(Kind.GAUGE);
+
+    M(@Nonnull final Kind kind) {
+      this.name = name().toLowerCase();
+      this.kind = kind;
+    }
+
+    @Getter
+    private final String name;
+
+    @Getter
+    private final Kind kind;
+  }
+
+  @Test(timeout = 10_000)
+  public void checkShardingBySeries() throws Exception {
+    try (final DatagramChannel receiver = DatagramChannel.open()) {
+      receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+      final int port = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+      final StatsdMetricSender<M> sender = new StatsdMetricSender<>("127.0.0.1", port, BatchedUdpSender.options()
+        .flushInterval(Duration.ofMillis(10)).shards(3).build(), null);
+      for (int value = 0; value < 10; value += 1) {
+        for (int series = 0; series < 50; series += 1) {
+          sender.emit(M.LEVEL.withTag("series", series), value);
+        }
+      }
+      final Map<String, List<String>> valuesBySeries = new HashMap<>();
+      final Map<String, Set<SocketAddress>> sourcesBySeries = new HashMap<>();
+      final Set<SocketAddress> sources = new HashSet<>();
+      final ByteBuffer buffer = ByteBuffer.allocate(BatchedUdpSender.MAXIMUM_UDP_PAYLOAD_SIZE);
+      int received = 0;
+      while (received < 500) {
+        buffer.clear();
+        final SocketAddress source = receiver.receive(buffer);
+        sources.add(source);
+        buffer.flip();
+        for (final String line : StandardCharsets.UTF_8.decode(buffer).toString().split("\n")) {
+          final String series = line.substring(line.indexOf("|#"));
+          valuesBySeries.computeIfAbsent(series, k -> new ArrayList<>()).add(line.substring(line.indexOf(':') + 1, line.indexOf('|')));
+          sourcesBySeries.computeIfAbsent(series, k -> new HashSet<>()).add(source);
+          received += 1;
+        }
+      }
+      Assert.assertEquals(3, sources.size());
+      Assert.assertEquals(50, valuesBySeries.size());
+      valuesBySeries.forEach((series, values) -> {
+        Assert.assertEquals(series, 1, sourcesBySeries.get(series).size());
+        for (int value = 0; value < 10; value += 1) {
+          Assert.assertEquals(series, Integer.toString(value), values.get(value));
+        }
+      });
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void checkCloseFlushesAggregatedMetrics() throws Exception {
+    try (final DatagramChannel receiver = DatagramChannel.open()) {
+      receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+      final int port = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+      try (final StatsdMetricSender<M> sender = new StatsdMetricSender<>("127.0.0.1", port,
+        BatchedUdpSender.options().flushInterval(Duration.ofSeconds(60)).build(),
+        AbstractMetricSender.options().aggregating(true).build())) {
+        sender.emit(M.LEVEL, 42);
+      }
+      final ByteBuffer buffer = ByteBuffer.allocate(BatchedUdpSender.MAXIMUM_UDP_PAYLOAD_SIZE);
+      receiver.receive(buffer);
+      buffer.flip();
+      Assert.assertEquals("level:42|g\n", StandardCharsets.UTF_8.decode(buffer).toString());
+    }
+  }
+}